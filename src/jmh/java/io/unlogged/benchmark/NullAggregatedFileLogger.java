@@ -0,0 +1,82 @@
+package io.unlogged.benchmark;
+
+import java.io.ByteArrayOutputStream;
+
+import io.unlogged.logging.util.AggregatedFileLogger;
+
+/**
+ * Writer which keeps nothing, so that a benchmark measures the event loggers without the file system.
+ * The values are folded into a field so the calls cannot be optimised away.
+ */
+public class NullAggregatedFileLogger implements AggregatedFileLogger {
+
+    private long sink;
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        sink += id ^ typeId;
+    }
+
+    @Override
+    public void writeEvent(int id, long value) {
+        sink += id ^ value;
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        sink += typeId;
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        sink += frameId;
+        return true;
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        sink += objectId ^ frameIds.length;
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        sink += blobHash[0] ^ value.length;
+        return true;
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        sink += byteArray.length;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+        sink += dataId ^ objectId ^ toByteArray.length;
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+        sink += dataId ^ objectId ^ outputStream.size();
+    }
+
+    @Override
+    public void errorLog(String message) {
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        sink += delta;
+    }
+
+    public long getSink() {
+        return sink;
+    }
+}
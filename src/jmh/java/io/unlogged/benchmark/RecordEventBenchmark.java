@@ -0,0 +1,92 @@
+package io.unlogged.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.unlogged.logging.Logging;
+
+/**
+ * Cost of a single probe, for every recordEvent overload called by woven code, in each recording mode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordEventBenchmark {
+
+    /**
+     * Values passed to the probes, read from a field so that they are not constants.
+     */
+    @State(Scope.Thread)
+    public static class Values {
+        public Object objectValue = "recorded value";
+        public boolean booleanValue = true;
+        public byte byteValue = 7;
+        public char charValue = 'u';
+        public short shortValue = 300;
+        public int intValue = 70000;
+        public long longValue = 1L << 40;
+        public float floatValue = 1.5f;
+        public double doubleValue = 2.25;
+    }
+
+    @Benchmark
+    public void recordObject(RecordingState recording, Values values) {
+        Logging.recordEvent(values.objectValue, RecordingState.OBJECT_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordBoolean(RecordingState recording, Values values) {
+        Logging.recordEvent(values.booleanValue, RecordingState.BOOLEAN_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordByte(RecordingState recording, Values values) {
+        Logging.recordEvent(values.byteValue, RecordingState.BYTE_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordChar(RecordingState recording, Values values) {
+        Logging.recordEvent(values.charValue, RecordingState.CHAR_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordShort(RecordingState recording, Values values) {
+        Logging.recordEvent(values.shortValue, RecordingState.SHORT_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordInt(RecordingState recording, Values values) {
+        Logging.recordEvent(values.intValue, RecordingState.INT_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordLong(RecordingState recording, Values values) {
+        Logging.recordEvent(values.longValue, RecordingState.LONG_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordFloat(RecordingState recording, Values values) {
+        Logging.recordEvent(values.floatValue, RecordingState.FLOAT_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordDouble(RecordingState recording, Values values) {
+        Logging.recordEvent(values.doubleValue, RecordingState.DOUBLE_PROBE_ID);
+    }
+
+    @Benchmark
+    public void recordVoid(RecordingState recording) {
+        Logging.recordEvent(RecordingState.VOID_PROBE_ID);
+    }
+}
@@ -0,0 +1,76 @@
+package io.unlogged.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.unlogged.logging.Logging;
+
+/**
+ * Throughput of an int and an object probe as more application threads record at the same time. The
+ * score is the total over all threads, flat scaling means the threads contend somewhere in the logger or
+ * the writer. Threads.MAX uses one thread per available processor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordEventScalingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Values {
+        public Object objectValue = "recorded value";
+        public int intValue = 70000;
+    }
+
+    private static void record(Values values) {
+        Logging.recordEvent(values.intValue, RecordingState.INT_PROBE_ID);
+        Logging.recordEvent(values.objectValue, RecordingState.OBJECT_PROBE_ID);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01(RecordingState recording, Values values) {
+        record(values);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void threads02(RecordingState recording, Values values) {
+        record(values);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04(RecordingState recording, Values values) {
+        record(values);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void threads08(RecordingState recording, Values values) {
+        record(values);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(RecordingState recording, Values values) {
+        record(values);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void threadsMax(RecordingState recording, Values values) {
+        record(values);
+    }
+}
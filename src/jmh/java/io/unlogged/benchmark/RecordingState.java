@@ -0,0 +1,102 @@
+package io.unlogged.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.IErrorLogger;
+import io.unlogged.logging.Logging;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.impl.DetailedEventStreamAggregatedLogger;
+import io.unlogged.logging.perthread.PerThreadBinaryFileAggregatedLogger;
+import io.unlogged.logging.perthread.RawFileCollector;
+import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.FileNameGenerator;
+
+/**
+ * The event logger installed in Logging for a benchmark trial, set up the way Runtime does for each mode.
+ * <p>
+ * mode is DISCARD, PER_THREAD (EventStreamAggregatedLogger) or TESTING (DetailedEventStreamAggregatedLogger,
+ * the object probe is serialized). writer is "null" to leave out the file system, or "stream" for the
+ * per thread log files written into a temporary directory. The stream writer stops the shared
+ * RawFileCollector executor on shutdown, so run it forked (the JMH default).
+ */
+@State(Scope.Benchmark)
+public class RecordingState {
+
+    public static final int OBJECT_PROBE_ID = 1;
+    public static final int BOOLEAN_PROBE_ID = 2;
+    public static final int BYTE_PROBE_ID = 3;
+    public static final int CHAR_PROBE_ID = 4;
+    public static final int SHORT_PROBE_ID = 5;
+    public static final int INT_PROBE_ID = 6;
+    public static final int LONG_PROBE_ID = 7;
+    public static final int FLOAT_PROBE_ID = 8;
+    public static final int DOUBLE_PROBE_ID = 9;
+    public static final int VOID_PROBE_ID = 10;
+
+    @Param({"DISCARD", "PER_THREAD", "TESTING"})
+    public String mode;
+
+    @Param({"null"})
+    public String writer;
+
+    private File outputDir;
+    private AggregatedFileLogger aggregatedFileLogger;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        outputDir = Files.createTempDirectory("unlogged-benchmark").toFile();
+        if (mode.equals("DISCARD")) {
+            Logging.initialiseDiscardLogger();
+            return;
+        }
+        aggregatedFileLogger = createAggregatedFileLogger();
+        if (mode.equals("PER_THREAD")) {
+            Logging.initialiseAggregatedLogger(aggregatedFileLogger, outputDir);
+        } else if (mode.equals("TESTING")) {
+            DetailedEventStreamAggregatedLogger logger =
+                    Logging.initialiseDetailedAggregatedLogger(aggregatedFileLogger, outputDir);
+            logger.recordWeaveInfo(new byte[0], null, Arrays.asList(OBJECT_PROBE_ID));
+        } else {
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+    }
+
+    private AggregatedFileLogger createAggregatedFileLogger() throws IOException {
+        if (writer.equals("null")) {
+            return new NullAggregatedFileLogger();
+        }
+        if (writer.equals("stream")) {
+            IErrorLogger errorLogger = new SimpleFileLogger(outputDir);
+            RawFileCollector fileCollector = new RawFileCollector(16,
+                    new FileNameGenerator(outputDir, "index-", ".zip"), null, errorLogger, outputDir);
+            return new PerThreadBinaryFileAggregatedLogger(new FileNameGenerator(outputDir, "log-", ".selog"),
+                    errorLogger, fileCollector, UnloggedMode.LogAll);
+        }
+        throw new IllegalArgumentException("unknown writer: " + writer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Logging.initialiseDiscardLogger();
+        if (aggregatedFileLogger != null) {
+            aggregatedFileLogger.shutdown();
+        }
+        try (Stream<File> files = Files.walk(outputDir.toPath()).map(Path::toFile)) {
+            files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.unlogged.benchmark;
+
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class woven by WeavingBenchmark, with the kinds of code a probe is put around: method entry and exit,
+ * calls, field and array access, object allocation and a loop.
+ */
+public class SampleTarget implements LongUnaryOperator {
+
+    private final long[] window = new long[8];
+    private long total;
+
+    @Override
+    public long applyAsLong(long value) {
+        int slot = (int) (value & (window.length - 1));
+        window[slot] = mix(value);
+        long sum = 0;
+        for (long entry : window) {
+            sum += entry;
+        }
+        total += sum;
+        return describe(sum).length() + total;
+    }
+
+    private static long mix(long value) {
+        return value * 0x9E3779B97F4A7C15L ^ (value >>> 29);
+    }
+
+    private String describe(long sum) {
+        return new StringBuilder().append("sum=").append(sum & 0xff).toString();
+    }
+}
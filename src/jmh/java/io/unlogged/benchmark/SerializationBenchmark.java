@@ -0,0 +1,107 @@
+package io.unlogged.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import io.unlogged.logging.ObjectMapperFactory;
+import io.unlogged.logging.SerializationMode;
+
+/**
+ * Cost of serializing a numeric DTO, the way DetailedEventStreamAggregatedLogger records a value, and of
+ * reading it back, for each serialization mode. The size of a serialized value is printed at the start of
+ * each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"JACKSON", "SMILE"})
+    public SerializationMode serialization;
+
+    private ObjectMapper objectMapper;
+    private ObjectWriter writer;
+    private Order value;
+    private byte[] serializedValue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        objectMapper = ObjectMapperFactory.createObjectMapperReactive(serialization);
+        writer = objectMapper.writerFor(Order.class);
+        value = new Order(42);
+        serializedValue = writer.writeValueAsBytes(value);
+        System.out.println("[" + serialization + "] " + serializedValue.length + " bytes per value");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return writer.writeValueAsBytes(value);
+    }
+
+    @Benchmark
+    public JsonNode deserialize() throws Exception {
+        return objectMapper.readTree(serializedValue);
+    }
+
+    /**
+     * Mostly numbers, like the DTOs of services which record prices, quantities and timestamps.
+     */
+    public static class Order {
+        private final long orderId;
+        private final long createdAt;
+        private final int customerId;
+        private final double total;
+        private final double[] taxRates = {0.05, 0.12, 0.18, 0.28};
+        private final List<Line> lines = new ArrayList<>();
+
+        Order(int lineCount) {
+            orderId = 9_000_000_123L;
+            createdAt = 1_700_000_000_000L;
+            customerId = 77_301;
+            double sum = 0;
+            for (int i = 0; i < lineCount; i++) {
+                Line line = new Line(i);
+                lines.add(line);
+                sum += line.price * line.quantity;
+            }
+            total = sum;
+        }
+    }
+
+    public static class Line {
+        private final int productId;
+        private final int quantity;
+        private final double price;
+        private final double discount;
+        private final long updatedAt;
+
+        Line(int index) {
+            productId = 10_000 + index * 37;
+            quantity = 1 + index % 5;
+            price = 19.99 + index * 0.75;
+            discount = index % 3 == 0 ? 0.1 : 0;
+            updatedAt = 1_700_000_000_000L + index * 1000L;
+        }
+    }
+}
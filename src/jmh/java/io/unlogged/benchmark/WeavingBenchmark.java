@@ -0,0 +1,103 @@
+package io.unlogged.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+import com.sun.tools.javac.file.JavacFileManager;
+import com.sun.tools.javac.util.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.unlogged.UnloggedLoggingLevel;
+import io.unlogged.UnloggedMode;
+import io.unlogged.core.bytecode.ClassTransformer;
+import io.unlogged.core.bytecode.RuntimeWeaverParameters;
+import io.unlogged.core.bytecode.WeaveConfig;
+import io.unlogged.core.processor.UnloggedProcessorConfig;
+import io.unlogged.weaver.DataInfoProvider;
+import io.unlogged.weaver.TypeHierarchy;
+import io.unlogged.weaver.WeaveLog;
+
+/**
+ * Throughput of SampleTarget as compiled and as woven by ClassTransformer with every probe, the gap
+ * between the two is the instrumentation overhead seen by application code in each recording mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WeavingBenchmark {
+
+    private static final String TARGET_CLASS = SampleTarget.class.getName();
+
+    private LongUnaryOperator unwoven;
+    private LongUnaryOperator woven;
+    private long input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        unwoven = new SampleTarget();
+        byte[] wovenClass = weave(readClass());
+        woven = (LongUnaryOperator) new WovenClassLoader(getClass().getClassLoader())
+                .define(TARGET_CLASS, wovenClass).getDeclaredConstructor().newInstance();
+    }
+
+    private static byte[] readClass() throws IOException {
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        try (InputStream in = SampleTarget.class.getResourceAsStream("SampleTarget.class")) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                classBytes.write(buffer, 0, read);
+            }
+        }
+        return classBytes.toByteArray();
+    }
+
+    private static byte[] weave(byte[] classBytes) throws IOException {
+        DataInfoProvider dataInfoProvider = new DataInfoProvider(0, 0, 0);
+        dataInfoProvider.setProbeOutputStream(new ByteArrayOutputStream());
+        WeaveLog weaveLog = new WeaveLog(0, dataInfoProvider);
+        WeaveConfig weaveConfig = new WeaveConfig(new RuntimeWeaverParameters("weave=ALL"));
+        Context context = new Context();
+        new JavacFileManager(context, true, null);
+        ClassTransformer classTransformer = new ClassTransformer(weaveLog, weaveConfig, classBytes,
+                new TypeHierarchy(context),
+                new UnloggedProcessorConfig(1, UnloggedLoggingLevel.COUNTER, UnloggedMode.LogAll));
+        return classTransformer.getWeaveResult();
+    }
+
+    @Benchmark
+    public long unwoven() {
+        return unwoven.applyAsLong(input++);
+    }
+
+    @Benchmark
+    public long woven(RecordingState recording) {
+        return woven.applyAsLong(input++);
+    }
+
+    private static class WovenClassLoader extends ClassLoader {
+        WovenClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.unlogged;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.unlogged.logging.IErrorLogger;
+import io.unlogged.logging.RecordingCostEventLogger;
+
+/**
+ * Keeps the recording overhead under a budget by scaling the sampling divisor of Runtime.probeCounter.
+ * <p>
+ * Once a second the time spent recording, measured by the RecordingCostEventLogger, is compared with the
+ * CPU time of the process over the same second. Above the budget the divisor scale is raised at once in
+ * proportion to the excess, below half the budget it is halved, so the scale follows traffic spikes up
+ * quickly and comes back down gradually. Every method keeps the ratio between its own divisors, from
+ * Unlogged or UnloggedMethod, and the scale.
+ */
+public class AdaptiveSamplingController implements Runnable {
+
+    public static final long MAX_DIVISOR_SCALE = 1L << 16;
+    public static final long CONTROL_INTERVAL_MILLIS = 1000;
+
+    private final RecordingCostEventLogger costLogger;
+    private final double overheadBudget;
+    private final IErrorLogger errorLogger;
+    private final com.sun.management.OperatingSystemMXBean processCpu;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "unlogged-sampling-controller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long lastCpuNanos;
+    private volatile double overhead = 0;
+
+    /**
+     * @param overheadBudget fraction of the process CPU time which recording may use, 0.02 for 2%
+     */
+    public AdaptiveSamplingController(RecordingCostEventLogger costLogger, double overheadBudget,
+                                      IErrorLogger errorLogger) {
+        this.costLogger = costLogger;
+        this.overheadBudget = overheadBudget;
+        this.errorLogger = errorLogger;
+        this.processCpu = getProcessCpu();
+        costLogger.sampleRecordingNanos();
+        lastCpuNanos = getCpuNanos(System.nanoTime());
+    }
+
+    private static com.sun.management.OperatingSystemMXBean getProcessCpu() {
+        try {
+            OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+            if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+                com.sun.management.OperatingSystemMXBean processCpu =
+                        (com.sun.management.OperatingSystemMXBean) operatingSystem;
+                if (processCpu.getProcessCpuTime() >= 0) {
+                    return processCpu;
+                }
+            }
+        } catch (Throwable e) {
+            // not available on this vm
+        }
+        return null;
+    }
+
+    /**
+     * @return CPU time of the process, or the wall time of all processors when the vm does not report it
+     */
+    private long getCpuNanos(long wallNanos) {
+        if (processCpu != null) {
+            return processCpu.getProcessCpuTime();
+        }
+        return wallNanos * java.lang.Runtime.getRuntime().availableProcessors();
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this, CONTROL_INTERVAL_MILLIS, CONTROL_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long wallNanos = System.nanoTime();
+            long recordingNanos = costLogger.sampleRecordingNanos();
+            long cpuNanos = getCpuNanos(wallNanos);
+            long cpuDelta = cpuNanos - lastCpuNanos;
+            lastCpuNanos = cpuNanos;
+            if (cpuDelta <= 0) {
+                return;
+            }
+            overhead = (double) recordingNanos / cpuDelta;
+            adjust(overhead);
+        } catch (Throwable e) {
+            errorLogger.log(e);
+        }
+    }
+
+    void adjust(double overhead) {
+        long scale = Runtime.getSamplingDivisorScale();
+        long newScale = scale;
+        if (overhead > overheadBudget) {
+            newScale = Math.min(MAX_DIVISOR_SCALE,
+                    Math.max(scale + 1, (long) Math.ceil(scale * overhead / overheadBudget)));
+        } else if (overhead < overheadBudget / 2 && scale > 1) {
+            newScale = Math.max(1, scale / 2);
+        }
+        if (newScale != scale) {
+            Runtime.setSamplingDivisorScale(newScale);
+            errorLogger.log("[unlogged] recording overhead [" + String.format("%.2f", overhead * 100)
+                    + "%] budget [" + String.format("%.2f", overheadBudget * 100)
+                    + "%], sampling divisor scale [" + scale + "] -> [" + newScale + "]");
+        }
+    }
+
+    /**
+     * @return share of the process CPU time spent recording over the last control interval
+     */
+    public double getOverhead() {
+        return overhead;
+    }
+}
@@ -19,16 +19,31 @@ import fi.iki.elonen.NanoHTTPD;
 import io.unlogged.Runtime;
 import io.unlogged.command.AgentCommandServer;
 import io.unlogged.command.ServerMetadata;
+import io.unlogged.logging.EventRecordFormat;
 import io.unlogged.logging.IErrorLogger;
 import io.unlogged.logging.IEventLogger;
+import io.unlogged.logging.LogWriterMode;
 import io.unlogged.logging.Logging;
 import io.unlogged.logging.ObjectMapperFactory;
+import io.unlogged.logging.ProbeEnableSet;
+import io.unlogged.logging.RecordingCostEventLogger;
 import io.unlogged.logging.SimpleFileLogger;
 import io.unlogged.logging.impl.DetailedEventStreamAggregatedLogger;
+import io.unlogged.logging.perthread.ArchivedIndexWriter;
+import io.unlogged.logging.perthread.BackpressureAggregatedLogger;
+import io.unlogged.logging.perthread.LogFileCompressor;
+import io.unlogged.logging.perthread.MeteredAggregatedLogger;
 import io.unlogged.logging.perthread.PerThreadBinaryFileAggregatedLogger;
+import io.unlogged.logging.perthread.PerThreadMappedSegmentAggregatedLogger;
+import io.unlogged.logging.perthread.PerThreadRingBufferAggregatedLogger;
 import io.unlogged.logging.perthread.RawFileCollector;
+import io.unlogged.logging.perthread.RecordingMetrics;
+import io.unlogged.logging.perthread.RecordingPressure;
+import io.unlogged.logging.perthread.ShardedAggregatedLogger;
+import io.unlogged.logging.util.AggregatedFileLogger;
 import io.unlogged.logging.util.FileNameGenerator;
 import io.unlogged.logging.util.NetworkClient;
+import io.unlogged.logging.util.ValueBlobs;
 import io.unlogged.util.ByteTools;
 import io.unlogged.util.StreamUtil;
 import io.unlogged.weaver.WeaveConfig;
@@ -51,6 +66,12 @@ public class Runtime {
     private long lastProbesLoadTime;
 
     private static HashMap<String, Long> frequencyMap = new HashMap<>();
+    /**
+     * Multiplies the divisor of every probed method, raised by the AdaptiveSamplingController while
+     * recording costs more than the overhead budget.
+     */
+    private static volatile long samplingDivisorScale = 1;
+    private AdaptiveSamplingController samplingController;
 
     /**
      * Process command line arguments and prepare an output directory
@@ -133,10 +154,12 @@ public class Runtime {
 
             firstLogLine.append(serverMetadata + "\n");
             errorLogger.log(firstLogLine.toString());
-			UnloggedMode unloggedMode = weaveParameters.getUnloggedMode();
 
             System.out.println("[unlogged]" + " session Id: [" + config.getSessionId() + "] " + serverMetadata);
 
+            Logging.setMultiNewArrayElementLimit(weaveParameters.getMultiArrayElementLimit());
+
+            RecordingMetrics recordingMetrics = null;
             switch (weaveParameters.getMode()) {
 
 
@@ -151,14 +174,14 @@ public class Runtime {
 
                     FileNameGenerator fileNameGenerator1 = new FileNameGenerator(outputDir, "index-", ".zip");
                     RawFileCollector fileCollector =
-                            new RawFileCollector(weaveParameters.getFilesPerIndex(), fileNameGenerator1,
-                                    networkClient, errorLogger, outputDir);
+                            createRawFileCollector(weaveParameters, fileNameGenerator1, networkClient, outputDir);
 
                     FileNameGenerator fileNameGenerator = new FileNameGenerator(outputDir, "log-", ".selog");
-                    PerThreadBinaryFileAggregatedLogger perThreadBinaryFileAggregatedLogger
-                            = new PerThreadBinaryFileAggregatedLogger(fileNameGenerator, errorLogger, fileCollector, unloggedMode);
+                    AggregatedFileLogger perThreadBinaryFileAggregatedLogger = createAggregatedFileLogger(
+                            weaveParameters, fileNameGenerator, fileCollector);
 
                     logger = Logging.initialiseAggregatedLogger(perThreadBinaryFileAggregatedLogger, outputDir);
+                    recordingMetrics = fileCollector.getRecordingMetrics();
                     break;
 
                 case TESTING:
@@ -171,24 +194,41 @@ public class Runtime {
                             new FileNameGenerator(outputDir, "index-", ".zip");
 
                     RawFileCollector fileCollector1 =
-                            new RawFileCollector(weaveParameters.getFilesPerIndex(), archiveFileNameGenerator,
-                                    networkClient1, errorLogger, outputDir);
+                            createRawFileCollector(weaveParameters, archiveFileNameGenerator, networkClient1,
+                                    outputDir);
 
                     FileNameGenerator logFileNameGenerator =
                             new FileNameGenerator(outputDir, "log-", ".selog");
 
-                    PerThreadBinaryFileAggregatedLogger perThreadBinaryFileAggregatedLogger1
-                            = new PerThreadBinaryFileAggregatedLogger(logFileNameGenerator, errorLogger,
-                            fileCollector1, unloggedMode);
+                    AggregatedFileLogger perThreadBinaryFileAggregatedLogger1 = createAggregatedFileLogger(
+                            weaveParameters, logFileNameGenerator, fileCollector1);
 
+                    fileCollector1.setArchiveMetadata(ArchivedIndexWriter.META_SERIALIZATION,
+                            weaveParameters.getSerializationMode().name());
+                    fileCollector1.setArchiveMetadata(ArchivedIndexWriter.META_VALUE_BLOBS,
+                            String.valueOf(weaveParameters.isValueBlobs()));
                     logger = Logging.initialiseDetailedAggregatedLogger(perThreadBinaryFileAggregatedLogger1,
-                            outputDir);
+                            outputDir, weaveParameters.getSerializationMode());
 
                     DetailedEventStreamAggregatedLogger detailedLogger = (DetailedEventStreamAggregatedLogger) logger;
+                    recordingMetrics = fileCollector1.getRecordingMetrics();
+                    detailedLogger.setRecordingMetrics(recordingMetrics);
+                    if (weaveParameters.isValueBlobs()) {
+                        detailedLogger.setValueBlobs(new ValueBlobs(perThreadBinaryFileAggregatedLogger1));
+                    }
                     break;
 
             }
 
+            if (weaveParameters.getOverheadBudgetPercent() > 0 && recordingMetrics != null) {
+                RecordingCostEventLogger costLogger = Logging.measureRecordingCost(recordingMetrics);
+                if (costLogger != null) {
+                    logger = costLogger;
+                    samplingController = new AdaptiveSamplingController(costLogger,
+                            weaveParameters.getOverheadBudgetPercent() / 100, errorLogger);
+                    samplingController.start();
+                }
+            }
 
             httpServer.setAgentCommandExecutor(new AgentCommandExecutorImpl(
                     ObjectMapperFactory.createObjectMapperReactive(), logger));
@@ -205,6 +245,61 @@ public class Runtime {
         }
     }
 
+    private RawFileCollector createRawFileCollector(WeaveParameters weaveParameters,
+                                                    FileNameGenerator archiveFileNameGenerator,
+                                                    NetworkClient networkClient, File outputDir) throws IOException {
+        int compressionWorkerCount = weaveParameters.isCompressLogs() ? LogFileCompressor.DEFAULT_WORKER_COUNT : 0;
+        RecordingPressure recordingPressure = new RecordingPressure(weaveParameters.getBackpressurePolicy(),
+                weaveParameters.getMemoryBudgetMb() * 1024L * 1024L,
+                RawFileCollector.getDefaultFileBacklogLimit(weaveParameters.getFilesPerIndex()));
+        httpServer.setRecordingPressure(recordingPressure);
+        RawFileCollector fileCollector = new RawFileCollector(weaveParameters.getFilesPerIndex(),
+                archiveFileNameGenerator, networkClient, errorLogger, outputDir, compressionWorkerCount,
+                recordingPressure);
+        httpServer.setRecordingMetrics(fileCollector.getRecordingMetrics());
+        fileCollector.getRecordingMetrics().registerMBean(errorLogger);
+        return fileCollector;
+    }
+
+    /**
+     * Create the writer for per thread event log files selected by the "writer" weave parameter.
+     */
+    private AggregatedFileLogger createAggregatedFileLogger(
+            WeaveParameters weaveParameters, FileNameGenerator logFileNameGenerator, RawFileCollector fileCollector) {
+        UnloggedMode unloggedMode = weaveParameters.getUnloggedMode();
+        if (weaveParameters.getEventRecordFormat() == EventRecordFormat.COMPACT
+                && weaveParameters.getLogWriterMode() != LogWriterMode.STREAM) {
+            errorLogger.log("[unlogged] recordformat=v2 is only written by writer=stream, using v1 records");
+        }
+        AggregatedFileLogger aggregatedFileLogger;
+        switch (weaveParameters.getLogWriterMode()) {
+            case RING_BUFFER:
+                aggregatedFileLogger = new PerThreadRingBufferAggregatedLogger(logFileNameGenerator, errorLogger,
+                        fileCollector, unloggedMode);
+                break;
+            case MEMORY_MAPPED:
+                aggregatedFileLogger = new PerThreadMappedSegmentAggregatedLogger(logFileNameGenerator, errorLogger,
+                        fileCollector, unloggedMode);
+                break;
+            case SHARDED:
+                aggregatedFileLogger = new ShardedAggregatedLogger(logFileNameGenerator, errorLogger, fileCollector,
+                        unloggedMode);
+                break;
+            case STREAM:
+            default:
+                aggregatedFileLogger = new PerThreadBinaryFileAggregatedLogger(logFileNameGenerator, errorLogger,
+                        fileCollector, unloggedMode, weaveParameters.getEventRecordFormat());
+                break;
+        }
+        if (weaveParameters.isMetrics()) {
+            aggregatedFileLogger = new MeteredAggregatedLogger(aggregatedFileLogger,
+                    fileCollector.getRecordingMetrics());
+        }
+        aggregatedFileLogger = new BackpressureAggregatedLogger(aggregatedFileLogger,
+                fileCollector.getRecordingPressure());
+        return aggregatedFileLogger;
+    }
+
     public static Runtime getInstance(String args) {
         if (instance != null) {
             return instance;
@@ -298,12 +393,17 @@ public class Runtime {
             }
             ClassInfo classInfo = new ClassInfo();
 
+            ByteArrayInputStream in = new ByteArrayInputStream(decodedClassWeaveInfo);
             try {
-                ByteArrayInputStream in = new ByteArrayInputStream(decodedClassWeaveInfo);
                 classInfo.readFromDataStream(in);
             } catch (IOException e) {
                 return;
             }
+            try {
+                ProbeEnableSet.registerClass(classInfo.getClassName(), in);
+            } catch (IOException e) {
+                // probes of this class can still be switched by probe id
+            }
 //            System.out.println("Register class ["+ classInfo.getClassId() +"][" + classInfo.getClassName() + "] => " + probesToRecord.size() +
 //                    " probes to record");
             instance.logger.recordWeaveInfo(decodedClassWeaveInfo, classInfo, probesToRecord);
@@ -361,7 +461,7 @@ public class Runtime {
     public static boolean probeCounter(String methodName, long divisor) {
         long counter = frequencyMap.get(methodName) + 1L;
         frequencyMap.put(methodName, counter);
-        return frequencyLogging(counter, divisor);
+        return frequencyLogging(counter, divisor * samplingDivisorScale);
     }
 
     public static boolean probeCounter(long methodCounter, long divisor, Object... arguments) {
@@ -373,6 +473,14 @@ public class Runtime {
         return frequencyLogging(methodCounter, divisor);
     }
 
+    public static long getSamplingDivisorScale() {
+        return samplingDivisorScale;
+    }
+
+    public static void setSamplingDivisorScale(long scale) {
+        samplingDivisorScale = Math.max(1, scale);
+    }
+
 	/**
 	 * Thread Depth calculation method 
 	 */
@@ -388,6 +496,9 @@ public class Runtime {
      * Close data streams if necessary
      */
     public void close() {
+        if (samplingController != null) {
+            samplingController.stop();
+        }
         if (logger != null) {
             logger.close();
         }
@@ -1,5 +1,5 @@
 package io.unlogged.command;
 
 public enum AgentCommand {
-    EXECUTE, INJECT_MOCKS, REMOVE_MOCKS, REGISTER_CLASS;
+    EXECUTE, INJECT_MOCKS, REMOVE_MOCKS, REGISTER_CLASS, ENABLE_PROBES, DISABLE_PROBES;
 }
@@ -5,9 +5,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.iki.elonen.NanoHTTPD;
 import io.unlogged.Runtime;
 import io.unlogged.logging.ObjectMapperFactory;
+import io.unlogged.logging.ProbeEnableSet;
+import io.unlogged.logging.perthread.RecordingMetrics;
+import io.unlogged.logging.perthread.RecordingPressure;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class AgentCommandServer extends NanoHTTPD {
@@ -16,6 +20,8 @@ public class AgentCommandServer extends NanoHTTPD {
     ObjectMapper objectMapper = ObjectMapperFactory.createObjectMapperReactive();
     private AgentCommandExecutor agentCommandExecutor;
     private String pingResponseBody;
+    private RecordingPressure recordingPressure;
+    private RecordingMetrics recordingMetrics;
 
     public AgentCommandServer(int port, ServerMetadata serverMetadata) {
         super(port);
@@ -60,6 +66,26 @@ public class AgentCommandServer extends NanoHTTPD {
         if (requestPath.equals("/ping")) {
             return newFixedLengthResponse(Response.Status.OK, "application/json", pingResponseBody);
         }
+        if (requestPath.equals("/pipeline")) {
+            try {
+                return newFixedLengthResponse(Response.Status.OK, "application/json",
+                        objectMapper.writeValueAsString(recordingPressure));
+            } catch (JsonProcessingException e) {
+                return newFixedLengthResponse("{\"message\": \"" + e.getMessage() + "\"}");
+            }
+        }
+        if (requestPath.equals("/metrics")) {
+            if (recordingMetrics == null) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
+                        "{\"message\": \"recording metrics are not available in this mode\"}");
+            }
+            try {
+                return newFixedLengthResponse(Response.Status.OK, "application/json",
+                        objectMapper.writeValueAsString(recordingMetrics));
+            } catch (JsonProcessingException e) {
+                return newFixedLengthResponse("{\"message\": \"" + e.getMessage() + "\"}");
+            }
+        }
         if (requestPath.equals("/index.html")) {
             return newChunkedResponse(Response.Status.OK, "application/json",
                     this.getClass().getClassLoader().getResourceAsStream("index.html"));
@@ -87,6 +113,12 @@ public class AgentCommandServer extends NanoHTTPD {
                 case REMOVE_MOCKS:
                     commandResponse = this.agentCommandExecutor.removeMocks(agentCommandRequest);
                     break;
+                case ENABLE_PROBES:
+                    commandResponse = setProbesEnabled(agentCommandRequest, true);
+                    break;
+                case DISABLE_PROBES:
+                    commandResponse = setProbesEnabled(agentCommandRequest, false);
+                    break;
                 default:
                     System.err.println(
                             "Unknown request [" + requestMethod + "] " + requestPath + " - " + agentCommandRequest);
@@ -118,7 +150,58 @@ public class AgentCommandServer extends NanoHTTPD {
 
     }
 
+    /**
+     * Switch probes on or off, by className (and methodName) when given, else by the probe id range
+     * in methodParameters: [fromProbeId, toProbeId) or a single probe id.
+     */
+    private AgentCommandResponse setProbesEnabled(AgentCommandRequest agentCommandRequest, boolean enabled) {
+        int changed;
+        if (agentCommandRequest.getClassName() != null) {
+            changed = ProbeEnableSet.setEnabled(agentCommandRequest.getClassName(),
+                    agentCommandRequest.getMethodName(), enabled);
+        } else {
+            List<String> probeRange = agentCommandRequest.getMethodParameters();
+            if (probeRange == null || probeRange.isEmpty()) {
+                AgentCommandResponse commandResponse = new AgentCommandResponse();
+                commandResponse.setMessage("className or probe id range in methodParameters is required");
+                commandResponse.setResponseType(ResponseType.FAILED);
+                return commandResponse;
+            }
+            try {
+                int fromProbeId = Integer.parseInt(probeRange.get(0));
+                int toProbeId = probeRange.size() > 1 ? Integer.parseInt(probeRange.get(1))
+                        : (int) Math.min(Integer.MAX_VALUE, fromProbeId + 1L);
+                changed = ProbeEnableSet.setEnabled(fromProbeId, toProbeId, enabled);
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included
+                AgentCommandResponse commandResponse = new AgentCommandResponse();
+                commandResponse.setMessage("invalid probe id range " + probeRange + ": " + e.getMessage());
+                commandResponse.setResponseType(ResponseType.FAILED);
+                return commandResponse;
+            }
+        }
+        AgentCommandResponse commandResponse = new AgentCommandResponse();
+        commandResponse.setMessage((enabled ? "enabled " : "disabled ") + changed + " probes, "
+                + ProbeEnableSet.getDisabledCount() + " probes disabled");
+        commandResponse.setResponseType(ResponseType.NORMAL);
+        return commandResponse;
+    }
+
     public void setAgentCommandExecutor(AgentCommandExecutor agentCommandExecutor) {
         this.agentCommandExecutor = agentCommandExecutor;
     }
+
+    /**
+     * @param recordingPressure backlog and drop counters of the recording pipeline, served on /pipeline
+     */
+    public void setRecordingPressure(RecordingPressure recordingPressure) {
+        this.recordingPressure = recordingPressure;
+    }
+
+    /**
+     * @param recordingMetrics throughput, serialization, queue, archive and upload metrics, served on /metrics
+     */
+    public void setRecordingMetrics(RecordingMetrics recordingMetrics) {
+        this.recordingMetrics = recordingMetrics;
+    }
 }
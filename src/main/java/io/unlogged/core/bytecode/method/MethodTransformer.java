@@ -968,32 +968,33 @@ public class MethodTransformer extends LocalVariablesSorter {
 
     /**
      * Insert logging code for ARRAY LOAD instruction.
+     * The array, index and loaded value are recorded by a single call after the load.
      */
     private void generateRecordArrayLoad(int opcode) {
         Descriptor elementDesc = OpcodesUtil.getDescForArrayLoad(opcode);
+        String valueDesc = elementDesc.getString();
 
         // Create dataId used in Logging class
         int dataId = nextDataId(EventType.ARRAY_LOAD, Descriptor.Object, "");
         nextDataId(EventType.ARRAY_LOAD_INDEX, Descriptor.Integer, "");
-        int resultId = nextDataId(EventType.ARRAY_LOAD_RESULT, elementDesc, "");
+        // the result is recorded with the load now, the id is still reserved to keep the probe layout
+        nextDataId(EventType.ARRAY_LOAD_RESULT, elementDesc, "");
 
         super.visitInsn(Opcodes.DUP2); // stack: [array, index, array, index]
-        super.visitLdcInsn(dataId); // [array, index, array, index, id]
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, LOGGER_CLASS, "recordArrayLoad", "(Ljava/lang/Object;II)V", false);
 
         generateLocationUpdate(dataId);
 
-        // the original instruction [array, index] -> [value]
+        // the original instruction [array, index, array, index] -> [array, index, value]
         super.visitInsn(opcode);
-
+        // [array, index, value] -> [value, array, index, value], the value keeps its element type
         if (elementDesc == Descriptor.Long || elementDesc == Descriptor.Double) {
-            super.visitInsn(Opcodes.DUP2);
+            super.visitInsn(Opcodes.DUP2_X2);
         } else {
-            super.visitInsn(Opcodes.DUP);
+            super.visitInsn(Opcodes.DUP_X2);
         }
-        super.visitLdcInsn(resultId);
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, LOGGER_CLASS, "recordEvent", "(" + elementDesc.getString() + "I)V",
-                false);
+        super.visitLdcInsn(dataId);
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, LOGGER_CLASS, "recordArrayLoad",
+                "(Ljava/lang/Object;I" + valueDesc + "I)V", false); // -> [value]
 
         generateLocationUpdate(0);
     }
@@ -0,0 +1,22 @@
+package io.unlogged.logging;
+
+/**
+ * What the agent does with new method calls while archiving falls behind the recording. Passed to the agent
+ * as "backpressure=drop", "backpressure=sample" or "backpressure=pause". A call is skipped as a whole, from
+ * its entry to its exit. Whatever the policy, index entries which do not fit into the memory budget and log
+ * files which do not fit into the archive queue are dropped and counted.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Skip new calls while the backlog is at its limit, until it has drained to three quarters of it.
+     */
+    DROP_NEWEST,
+    /**
+     * Record one of every RecordingPressure.SAMPLE_RATE calls while under pressure.
+     */
+    SAMPLE,
+    /**
+     * Stop recording new calls while under pressure, until the backlog has drained to half the limits.
+     */
+    PAUSE
+}
@@ -70,6 +70,21 @@ public class DiscardEventLogger implements IEventLogger {
 
     }
 
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index, long value) {
+
+    }
+
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index, Object value) {
+
+    }
+
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index) {
+
+    }
+
     @Override
     public void recordWeaveInfo(byte[] byteArray, ClassInfo classIdEntry, List<Integer> probeIdsToRecord) {
 
@@ -0,0 +1,17 @@
+package io.unlogged.logging;
+
+/**
+ * Layout of the event records in the .selog files. Passed to the agent as "recordformat=v1" or "recordformat=v2".
+ * EventRecordReader reads files in either format.
+ */
+public enum EventRecordFormat {
+    /**
+     * Record type 7, a fixed 33 byte header followed by the serialized value.
+     */
+    FIXED,
+    /**
+     * Record type 8, event id and timestamp as deltas from the previous record of the file, probe id,
+     * value and length as varints, followed by the serialized value. Only written by the stream writer.
+     */
+    COMPACT
+}
@@ -102,6 +102,35 @@ public interface IEventLogger {
      */
     void recordEvent(int dataId, float value);
 
+    /**
+     * Record an array load or store as a single event.
+     *
+     * @param dataId specifies the ARRAY_LOAD or ARRAY_STORE event.
+     * @param array  the array object.
+     * @param index  the array index.
+     * @param value  the element value, as the long representation used by recordEvent for its type.
+     */
+    void recordArrayEvent(int dataId, Object array, int index, long value);
+
+    /**
+     * Record an array load or store of an object array as a single event.
+     *
+     * @param dataId specifies the ARRAY_LOAD or ARRAY_STORE event.
+     * @param array  the array object.
+     * @param index  the array index.
+     * @param value  the element.
+     */
+    void recordArrayEvent(int dataId, Object array, int index, Object value);
+
+    /**
+     * Record an array load whose value is recorded by a separate event.
+     *
+     * @param dataId specifies the ARRAY_LOAD event.
+     * @param array  the array object.
+     * @param index  the array index.
+     */
+    void recordArrayEvent(int dataId, Object array, int index);
+
     void recordWeaveInfo(byte[] byteArray, ClassInfo classIdEntry, List<Integer> probeIdsToRecord);
 
     void setRecordingPaused(boolean b);
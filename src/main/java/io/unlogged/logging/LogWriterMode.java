@@ -0,0 +1,27 @@
+package io.unlogged.logging;
+
+/**
+ * Selects the AggregatedFileLogger implementation which writes the per thread .selog files.
+ * Passed to the agent as "writer=stream", "writer=ring", "writer=mmap"
+ * or "writer=sharded".
+ */
+public enum LogWriterMode {
+    /**
+     * Each application thread writes its events into its own buffered file stream.
+     */
+    STREAM,
+    /**
+     * Each application thread writes its events into a preallocated ring buffer, a background
+     * drainer thread moves the buffered events to the .selog files.
+     */
+    RING_BUFFER,
+    /**
+     * Each application thread stores its events straight into a memory mapped segment of its current
+     * .selog file.
+     */
+    MEMORY_MAPPED,
+    /**
+     * All threads share a fixed number of shard files, for applications with many short lived threads.
+     */
+    SHARDED
+}
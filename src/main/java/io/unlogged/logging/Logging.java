@@ -2,6 +2,7 @@ package io.unlogged.logging;
 
 import io.unlogged.logging.impl.DetailedEventStreamAggregatedLogger;
 import io.unlogged.logging.impl.EventStreamAggregatedLogger;
+import io.unlogged.logging.perthread.RecordingMetrics;
 import io.unlogged.logging.util.AggregatedFileLogger;
 import io.unlogged.logging.util.ObjectIdAggregatedStream;
 import io.unlogged.logging.util.TypeIdAggregatedStreamMap;
@@ -10,7 +11,11 @@ import reactor.core.publisher.Mono;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
 
 
 /**
@@ -19,14 +24,233 @@ import java.util.LinkedList;
  * Array-related recording methods (recordArrayLoad, recordArrayStore,
  * recordMultiNewArray, and recordMultiNewArrayContents) are provided
  * to simplify the weaver's code.
+ * <p>
+ * Events are dispatched to the IEventLogger through one MutableCallSite per value type instead of a
+ * virtual call on a mutable field. The call sites are bound to the current logger, so the JIT can inline
+ * the logger into every probe, and they are linked to empty targets while the DiscardEventLogger is
+ * installed so probes compile to nothing. Installing another logger relinks the call sites and the
+ * compiled probes are invalidated. While some probes are switched off through ProbeEnableSet, the call
+ * sites first check the probe id against it.
  */
 public class Logging {
 
+    /**
+     * IEventLogger methods called from the probes, in the order of CALL_SITES.
+     */
+    private static final String[] METHOD_NAMES = {
+            "recordEvent", "recordEvent", "recordEvent", "recordEvent", "recordEvent",
+            "recordEvent", "recordEvent", "recordEvent", "recordEvent",
+            "recordArrayEvent", "recordArrayEvent", "recordArrayEvent"
+    };
+    private static final MethodType[] CALL_SITE_TYPES = {
+            MethodType.methodType(Object.class, int.class, Object.class),
+            MethodType.methodType(void.class, int.class, int.class),
+            MethodType.methodType(void.class, int.class, long.class),
+            MethodType.methodType(void.class, int.class, byte.class),
+            MethodType.methodType(void.class, int.class, short.class),
+            MethodType.methodType(void.class, int.class, char.class),
+            MethodType.methodType(void.class, int.class, boolean.class),
+            MethodType.methodType(void.class, int.class, double.class),
+            MethodType.methodType(void.class, int.class, float.class),
+            MethodType.methodType(void.class, int.class, Object.class, int.class),
+            MethodType.methodType(void.class, int.class, Object.class, int.class, long.class),
+            MethodType.methodType(void.class, int.class, Object.class, int.class, Object.class)
+    };
+    private static final MethodHandle[] RECORD_EVENT_HANDLES = new MethodHandle[CALL_SITE_TYPES.length];
+    private static final MethodHandle[] DISCARD_HANDLES = new MethodHandle[CALL_SITE_TYPES.length];
+    private static final MethodHandle[] GUARD_HANDLES = new MethodHandle[CALL_SITE_TYPES.length];
+    private static final MutableCallSite[] CALL_SITES = new MutableCallSite[CALL_SITE_TYPES.length];
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle noOp = lookup.findStatic(Logging.class, "noOp", MethodType.methodType(void.class));
+            MethodHandle isEnabled = lookup.findStatic(ProbeEnableSet.class, "isEnabled",
+                    MethodType.methodType(boolean.class, int.class));
+            for (int i = 0; i < CALL_SITE_TYPES.length; i++) {
+                MethodType type = CALL_SITE_TYPES[i];
+                RECORD_EVENT_HANDLES[i] = lookup.findVirtual(IEventLogger.class, METHOD_NAMES[i], type);
+                // the discard logger returns the object it was given and ignores the rest
+                DISCARD_HANDLES[i] = type.returnType() == Object.class
+                        ? MethodHandles.dropArguments(MethodHandles.identity(Object.class), 0, int.class)
+                        : MethodHandles.dropArguments(noOp, 0, type.parameterList());
+                // probe id is the first argument
+                GUARD_HANDLES[i] = MethodHandles.dropArguments(isEnabled, 1,
+                        type.parameterList().subList(1, type.parameterCount()));
+                CALL_SITES[i] = new MutableCallSite(type);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final MethodHandle RECORD_OBJECT = CALL_SITES[0].dynamicInvoker();
+    private static final MethodHandle RECORD_INT = CALL_SITES[1].dynamicInvoker();
+    private static final MethodHandle RECORD_LONG = CALL_SITES[2].dynamicInvoker();
+    private static final MethodHandle RECORD_BYTE = CALL_SITES[3].dynamicInvoker();
+    private static final MethodHandle RECORD_SHORT = CALL_SITES[4].dynamicInvoker();
+    private static final MethodHandle RECORD_CHAR = CALL_SITES[5].dynamicInvoker();
+    private static final MethodHandle RECORD_BOOLEAN = CALL_SITES[6].dynamicInvoker();
+    private static final MethodHandle RECORD_DOUBLE = CALL_SITES[7].dynamicInvoker();
+    private static final MethodHandle RECORD_FLOAT = CALL_SITES[8].dynamicInvoker();
+    private static final MethodHandle RECORD_ARRAY_INDEX = CALL_SITES[9].dynamicInvoker();
+    private static final MethodHandle RECORD_ARRAY_VALUE = CALL_SITES[10].dynamicInvoker();
+    private static final MethodHandle RECORD_ARRAY_OBJECT = CALL_SITES[11].dynamicInvoker();
+
+    public static final int DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT = 1024;
+    private static final int MULTI_NEW_ARRAY_SAMPLE_STRIDE = 64;
+    // arrays have at most 255 dimensions
+    private static final int MAX_ARRAY_DIMENSIONS = 255;
+    private static volatile int multiNewArrayElementLimit = DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT;
+    private static volatile boolean discarding = true;
+    private static final ThreadLocal<MultiNewArrayWalk> multiNewArrayWalk =
+            ThreadLocal.withInitial(MultiNewArrayWalk::new);
+
     /**
      * The instance to record events.
-     * A system must call one of initialize methods OR directly set an instance to this field.
+     * A system must call one of initialize methods OR setInstance, which also relinks the call sites.
      */
-    static IEventLogger INSTANCE = new DiscardEventLogger();
+    static IEventLogger INSTANCE = setInstance(new DiscardEventLogger());
+
+    /**
+     * Install the logger which receives events from the probes.
+     */
+    static synchronized <T extends IEventLogger> T setInstance(T logger) {
+        linkCallSites(logger);
+        INSTANCE = logger;
+        return logger;
+    }
+
+    /**
+     * Called by ProbeEnableSet when the first probe is switched off or the last one back on.
+     */
+    static synchronized void relinkCallSites() {
+        linkCallSites(INSTANCE);
+    }
+
+    private static void linkCallSites(IEventLogger logger) {
+        // subclasses of the discard logger (used by the test runner) still need to be called
+        boolean discard = logger.getClass() == DiscardEventLogger.class;
+        boolean guarded = ProbeEnableSet.hasDisabledProbes();
+        for (int i = 0; i < CALL_SITES.length; i++) {
+            MethodHandle target = discard ? DISCARD_HANDLES[i] : RECORD_EVENT_HANDLES[i].bindTo(logger);
+            if (guarded && !discard) {
+                target = MethodHandles.guardWithTest(GUARD_HANDLES[i], target, DISCARD_HANDLES[i]);
+            }
+            CALL_SITES[i].setTarget(target);
+        }
+        MutableCallSite.syncAll(CALL_SITES);
+        discarding = discard;
+    }
+
+    private static void noOp() {
+    }
+
+    private static Object dispatch(int dataId, Object value) {
+        try {
+            return (Object) RECORD_OBJECT.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, int value) {
+        try {
+            RECORD_INT.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, long value) {
+        try {
+            RECORD_LONG.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, byte value) {
+        try {
+            RECORD_BYTE.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, short value) {
+        try {
+            RECORD_SHORT.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, char value) {
+        try {
+            RECORD_CHAR.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, boolean value) {
+        try {
+            RECORD_BOOLEAN.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, double value) {
+        try {
+            RECORD_DOUBLE.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatch(int dataId, float value) {
+        try {
+            RECORD_FLOAT.invokeExact(dataId, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatchArray(int dataId, Object array, int index) {
+        try {
+            RECORD_ARRAY_INDEX.invokeExact(dataId, array, index);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatchArray(int dataId, Object array, int index, long value) {
+        try {
+            RECORD_ARRAY_VALUE.invokeExact(dataId, array, index, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static void dispatchArray(int dataId, Object array, int index, Object value) {
+        try {
+            RECORD_ARRAY_OBJECT.invokeExact(dataId, array, index, value);
+        } catch (Throwable throwable) {
+            throw unchecked(throwable);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            return (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        return new UndeclaredThrowableException(throwable);
+    }
 
 
     public static EventStreamAggregatedLogger initialiseAggregatedLogger(
@@ -36,20 +260,24 @@ public class Logging {
         ObjectIdAggregatedStream objectIdMap = new ObjectIdAggregatedStream(aggregatedLogger, typeToId, outputDir);
 
         EventStreamAggregatedLogger instance = new EventStreamAggregatedLogger(objectIdMap, aggregatedLogger);
-        INSTANCE = instance;
-        return instance;
+        return setInstance(instance);
     }
 
     public static DetailedEventStreamAggregatedLogger initialiseDetailedAggregatedLogger(
             AggregatedFileLogger aggregatedLogger, File outputDir
+    ) throws IOException {
+        return initialiseDetailedAggregatedLogger(aggregatedLogger, outputDir, SerializationMode.JACKSON);
+    }
+
+    public static DetailedEventStreamAggregatedLogger initialiseDetailedAggregatedLogger(
+            AggregatedFileLogger aggregatedLogger, File outputDir, SerializationMode serializationMode
     ) throws IOException {
         TypeIdAggregatedStreamMap typeToId = new TypeIdAggregatedStreamMap(aggregatedLogger);
         ObjectIdAggregatedStream objectIdMap = new ObjectIdAggregatedStream(aggregatedLogger, typeToId, outputDir);
 
         DetailedEventStreamAggregatedLogger instance = new DetailedEventStreamAggregatedLogger(objectIdMap,
-                aggregatedLogger);
-        INSTANCE = instance;
-        return instance;
+                aggregatedLogger, serializationMode);
+        return setInstance(instance);
     }
 
     /**
@@ -60,7 +288,7 @@ public class Logging {
      */
     public static void recordEvent(Object value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -71,12 +299,12 @@ public class Logging {
      */
     public static Mono<?> recordEvent(Mono<?> value, int dataId) {
         // previousDataId = dataId;
-        return (Mono<?>) INSTANCE.recordEvent(dataId, value);
+        return (Mono<?>) dispatch(dataId, value);
     }
 
     public static Flux<?> recordEvent(Flux<?> value, int dataId) {
         // previousDataId = dataId;
-        return (Flux<?>) INSTANCE.recordEvent(dataId, value);
+        return (Flux<?>) dispatch(dataId, value);
     }
 
     /**
@@ -88,7 +316,7 @@ public class Logging {
      */
     public static void recordEvent(Throwable value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -99,7 +327,7 @@ public class Logging {
      */
     public static void recordEvent(boolean value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -110,78 +338,78 @@ public class Logging {
      */
     public static void recordEvent(byte value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     public static void recordEvent(Integer value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (int) value);
+            dispatch(dataId, (int) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Long value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (long) value);
+            dispatch(dataId, (long) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Short value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (short) value);
+            dispatch(dataId, (short) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Byte value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (byte) value);
+            dispatch(dataId, (byte) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Float value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (float) value);
+            dispatch(dataId, (float) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Double value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (double) value);
+            dispatch(dataId, (double) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Character value, int dataId) {
         // previousDataId = dataId;
         if (value != null) {
-            INSTANCE.recordEvent(dataId, (char) value);
+            dispatch(dataId, (char) value);
         } else {
-            INSTANCE.recordEvent(dataId, value);
+            dispatch(dataId, value);
         }
     }
 
     public static void recordEvent(Boolean value, int dataId) {
         // previousDataId = dataId;
         if (value == null || !value) {
-            INSTANCE.recordEvent(dataId, 0);
+            dispatch(dataId, 0);
         } else {
-            INSTANCE.recordEvent(dataId, 1);
+            dispatch(dataId, 1);
         }
     }
 
@@ -193,7 +421,7 @@ public class Logging {
      */
     public static void recordEvent(char value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -204,7 +432,7 @@ public class Logging {
      */
     public static void recordEvent(short value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -215,7 +443,7 @@ public class Logging {
      */
     public static void recordEvent(int value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -226,7 +454,7 @@ public class Logging {
      */
     public static void recordEvent(long value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -237,7 +465,7 @@ public class Logging {
      */
     public static void recordEvent(float value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -248,7 +476,7 @@ public class Logging {
      */
     public static void recordEvent(double value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, value);
+        dispatch(dataId, value);
     }
 
     /**
@@ -262,11 +490,12 @@ public class Logging {
 //            System.out.println("lol");
 //        }
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, 0);
+        dispatch(dataId, 0);
     }
 
     /**
-     * A method to record an ArrayLoad event.
+     * A method to record an ArrayLoad event, for classes woven before loads were recorded with their
+     * value. The loaded value is recorded by a separate event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -274,13 +503,116 @@ public class Logging {
      */
     public static void recordArrayLoad(Object array, int index, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
+        dispatchArray(dataId, array, index);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, byte value, int dataId) {
+        dispatchArray(dataId, array, index, (long) value);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, char value, int dataId) {
+        dispatchArray(dataId, array, index, (long) value);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, double value, int dataId) {
+        dispatchArray(dataId, array, index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, float value, int dataId) {
+        dispatchArray(dataId, array, index, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, int value, int dataId) {
+        dispatchArray(dataId, array, index, (long) value);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, long value, int dataId) {
+        dispatchArray(dataId, array, index, value);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, short value, int dataId) {
+        dispatchArray(dataId, array, index, (long) value);
+    }
+
+    /**
+     * A method to record an ArrayLoad event, called after the load.
+     * The array, the index and the loaded value are recorded as a single event.
+     *
+     * @param array  specifies an array object.
+     * @param index  specifies an array index.
+     * @param value  specifies the value read from the array.
+     * @param dataId specifies an event.
+     */
+    public static void recordArrayLoad(Object array, int index, Object value, int dataId) {
+        dispatchArray(dataId, array, index, value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -289,14 +621,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, byte value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, (long) value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -305,14 +635,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, char value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, (long) value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -321,14 +649,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, double value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, Double.doubleToRawLongBits(value));
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -337,14 +663,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, float value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, Float.floatToRawIntBits(value));
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -353,14 +677,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, int value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, (long) value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -369,14 +691,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, long value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -385,14 +705,12 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, short value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, (long) value);
     }
 
     /**
      * A method to record an ArrayStore event.
-     * This method is prepared to reduce the number of instructions for logging.
+     * The array, the index and the stored value are recorded as a single event.
      *
      * @param array  specifies an array object.
      * @param index  specifies an array index.
@@ -401,9 +719,7 @@ public class Logging {
      */
     public static void recordArrayStore(Object array, int index, Object value, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
-        INSTANCE.recordEvent(dataId + 1, index);
-        INSTANCE.recordEvent(dataId + 2, value);
+        dispatchArray(dataId, array, index, value);
     }
 
     /**
@@ -415,34 +731,136 @@ public class Logging {
      */
     public static void recordMultiNewArray(Object array, int dataId) {
         // previousDataId = dataId;
-        INSTANCE.recordEvent(dataId, array);
+        dispatch(dataId, array);
         recordMultiNewArrayContents((Object[]) array, dataId);
     }
 
     /**
      * This method scans the contents of an array and records their IDs.
+     * Every sub-array is recorded with dataId + 1 and every array element with dataId + 2, until
+     * multiNewArrayElementLimit elements are recorded. After that only one of every
+     * MULTI_NEW_ARRAY_SAMPLE_STRIDE elements is visited. Each array is recorded as a group, its dataId + 1
+     * event followed by the events of its elements, so a reader can attach every element to the array
+     * recorded before it. The nested arrays are walked after their group, depth first over per-thread
+     * stacks, so the walk does not allocate.
      */
     private static void recordMultiNewArrayContents(Object[] array, int dataId) {
-        LinkedList<Object[]> arrays = new LinkedList<Object[]>();
-        arrays.addFirst(array);
-        while (!arrays.isEmpty()) {
-            Object[] asArray = arrays.removeFirst();
-            INSTANCE.recordEvent(dataId + 1, asArray);
-            for (int index = 0; index < asArray.length; ++index) {
-                Object element = asArray[index];
-                Class<?> elementType = element.getClass();
-                if (element != null && elementType.isArray()) {
-                    INSTANCE.recordEvent(dataId + 2, element);
-                    if (elementType.getComponentType().isArray()) {
-                        arrays.addLast((Object[]) element);
-                    }
+        if (discarding) {
+            return;
+        }
+        MultiNewArrayWalk walk = multiNewArrayWalk.get();
+        if (walk.active) {
+            // a logger allocating arrays in woven code, the contents are skipped
+            return;
+        }
+        walk.active = true;
+        Object[][] arrays = walk.arrays;
+        int[] positions = walk.positions;
+        int[] denseEnds = walk.denseEnds;
+        int limit = multiNewArrayElementLimit;
+        int depth = 0;
+        try {
+            arrays[0] = array;
+            positions[0] = 0;
+            int recorded = recordArrayGroup(array, dataId, limit, 0, denseEnds, 0);
+            while (depth >= 0) {
+                Object[] current = arrays[depth];
+                int index = positions[depth];
+                if (index >= current.length) {
+                    arrays[depth] = null;
+                    depth--;
+                    continue;
                 }
+                // the same elements as recordArrayGroup visited
+                positions[depth] = index + (index < denseEnds[depth] ? 1 : MULTI_NEW_ARRAY_SAMPLE_STRIDE);
+                Object element = current[index];
+                if (element != null && depth + 1 < arrays.length && element.getClass().isArray()
+                        && element.getClass().getComponentType().isArray()) {
+                    depth++;
+                    arrays[depth] = (Object[]) element;
+                    positions[depth] = 0;
+                    recorded = recordArrayGroup((Object[]) element, dataId, limit, recorded, denseEnds, depth);
+                }
+            }
+        } finally {
+            for (; depth >= 0; depth--) {
+                arrays[depth] = null;
             }
+            walk.active = false;
         }
     }
 
+    /**
+     * Record an array and the array elements in it, sampled once the limit is reached. Stores the index
+     * from which the elements were sampled in denseEnds[depth].
+     *
+     * @return number of elements recorded so far in the walk
+     */
+    private static int recordArrayGroup(Object[] array, int dataId, int limit, int recorded, int[] denseEnds,
+                                        int depth) {
+        dispatch(dataId + 1, array);
+        denseEnds[depth] = Integer.MAX_VALUE;
+        int index = 0;
+        while (index < array.length) {
+            int step = 1;
+            if (recorded >= limit) {
+                step = MULTI_NEW_ARRAY_SAMPLE_STRIDE;
+                if (denseEnds[depth] == Integer.MAX_VALUE) {
+                    denseEnds[depth] = index;
+                }
+            }
+            Object element = array[index];
+            // elements are null when not all dimensions were given
+            if (element != null && element.getClass().isArray()) {
+                dispatch(dataId + 2, element);
+                recorded++;
+            }
+            index += step;
+        }
+        return recorded;
+    }
+
+    /**
+     * @param limit number of elements recorded for a multi-dimensional array allocation before the rest
+     *              is sampled, 0 samples from the first element
+     * @throws IllegalArgumentException when the limit is negative
+     */
+    public static void setMultiNewArrayElementLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative multi-dimensional array element limit: " + limit);
+        }
+        multiNewArrayElementLimit = limit;
+    }
+
     public static IEventLogger initialiseDiscardLogger() {
-        INSTANCE = new DiscardEventLogger();
-        return INSTANCE;
+        return setInstance(new DiscardEventLogger());
+    }
+
+    /**
+     * Wrap the installed logger in a RecordingCostEventLogger to measure the time spent recording. Nothing
+     * is measured while events are discarded.
+     *
+     * @param recordingMetrics keeps the per thread counters the recording time is measured on
+     * @return the installed cost logger, null while the DiscardEventLogger is installed
+     */
+    public static synchronized RecordingCostEventLogger measureRecordingCost(RecordingMetrics recordingMetrics) {
+        if (discarding) {
+            return null;
+        }
+        if (INSTANCE instanceof RecordingCostEventLogger) {
+            return (RecordingCostEventLogger) INSTANCE;
+        }
+        return setInstance(new RecordingCostEventLogger(INSTANCE, recordingMetrics));
+    }
+
+    /**
+     * Stacks of the arrays being scanned by recordMultiNewArrayContents, the next index in each and the
+     * index from which its elements are sampled.
+     */
+    private static final class MultiNewArrayWalk {
+        private final Object[][] arrays = new Object[MAX_ARRAY_DIMENSIONS][];
+        private final int[] positions = new int[MAX_ARRAY_DIMENSIONS];
+        private final int[] denseEnds = new int[MAX_ARRAY_DIMENSIONS];
+        private boolean active;
     }
 }
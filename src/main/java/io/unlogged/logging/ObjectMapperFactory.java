@@ -16,6 +16,7 @@ import java.util.Objects;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -31,6 +32,7 @@ import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
 import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -378,9 +380,17 @@ public class ObjectMapperFactory {
     }
 
     public static ObjectMapper createObjectMapperReactive() {
+        return createObjectMapperReactive(SerializationMode.JACKSON);
+    }
+
+    /**
+     * @param serializationMode JACKSON for JSON, SMILE for Smile with the same configuration
+     */
+    public static ObjectMapper createObjectMapperReactive(SerializationMode serializationMode) {
+        JsonFactory streamFactory = serializationMode == SerializationMode.SMILE ? new SmileFactory() : null;
         String jacksonVersion = ObjectMapper.class.getPackage().getImplementationVersion();
         if (jacksonVersion != null && (jacksonVersion.startsWith("2.9") || jacksonVersion.startsWith("2.8"))) {
-            ObjectMapper objectMapper1 = new ObjectMapper();
+            ObjectMapper objectMapper1 = new ObjectMapper(streamFactory);
 
             try {
                 JsonMappingException jme = new JsonMappingException(new DummyClosable(), "load class");
@@ -447,7 +457,8 @@ public class ObjectMapperFactory {
             JsonMappingException jme = new JsonMappingException(new DummyClosable(),
                     "load class");
             jme.prependPath(new JsonMappingException.Reference("from dummy"));
-            JsonMapper.Builder jacksonBuilder = JsonMapper.builder();
+            JsonMapper.Builder jacksonBuilder = streamFactory == null ? JsonMapper.builder()
+                    : JsonMapper.builder(streamFactory);
 
             for (DeserializationFeature value : DeserializationFeature.values()) {
                 if (JACKSON_PROPERTY_NAMES_SET_FALSE.contains(value.name())) {
@@ -0,0 +1,245 @@
+package io.unlogged.logging;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.insidious.common.weaver.EventType;
+
+/**
+ * Probes which are switched off at runtime, by probe id, class or method, through the agent server.
+ * <p>
+ * Disabled probes are kept as a bitset indexed by probe id, probes beyond the end of the set are enabled.
+ * The set is replaced as a whole on every change, so isEnabled is a volatile read and a bit test without
+ * any locking. Logging only checks the set while at least one probe is disabled.
+ * <p>
+ * The entry and exit probes of a method are always switched together, BackpressureAggregatedLogger pairs
+ * every METHOD_ENTRY it sees with the next METHOD_NORMAL_EXIT or METHOD_EXCEPTIONAL_EXIT at the same depth.
+ * A probe id range which holds some of them is widened to all of them.
+ */
+public final class ProbeEnableSet {
+
+    private static volatile long[] disabledProbes = new long[0];
+    private static volatile int disabledCount = 0;
+    /**
+     * Highest probe id of the registered classes, ranges are clamped to it.
+     */
+    private static volatile int maxRegisteredProbeId = -1;
+    /**
+     * class name (dot separated) -> method name -> probe ids, filled as woven classes are registered
+     */
+    private static final Map<String, Map<String, List<Integer>>> probesByClass = new ConcurrentHashMap<>();
+    /**
+     * entry or exit probe id -> entry and exit probe ids of its method
+     */
+    private static final Map<Integer, int[]> methodFrameProbes = new ConcurrentHashMap<>();
+
+    private ProbeEnableSet() {
+    }
+
+    public static boolean isEnabled(int probeId) {
+        long[] disabled = disabledProbes;
+        int word = probeId >>> 6;
+        return word >= disabled.length || (disabled[word] & (1L << probeId)) == 0;
+    }
+
+    static boolean hasDisabledProbes() {
+        return disabledCount > 0;
+    }
+
+    public static int getDisabledCount() {
+        return disabledCount;
+    }
+
+    /**
+     * Switch the probes with ids from fromProbeId (inclusive) to toProbeId (exclusive) on or off. The range
+     * is clamped to the highest registered probe id, no probe beyond it can fire. The entry and exit probes
+     * of the methods with an entry or exit probe in the range are switched as well.
+     *
+     * @return number of probes which changed state
+     * @throws IllegalArgumentException when fromProbeId is negative or toProbeId is less than fromProbeId
+     */
+    public static synchronized int setEnabled(int fromProbeId, int toProbeId, boolean enabled) {
+        if (fromProbeId < 0 || toProbeId < fromProbeId) {
+            throw new IllegalArgumentException("invalid probe id range [" + fromProbeId + ", " + toProbeId + ")");
+        }
+        long[] current = disabledProbes;
+        // probes beyond the set are enabled already
+        long rangeLimit = enabled ? (long) current.length << 6 : maxRegisteredProbeId + 1L;
+        int endProbeId = (int) Math.min(toProbeId, rangeLimit);
+        if (fromProbeId >= endProbeId) {
+            return 0;
+        }
+        int lastWord = (endProbeId - 1) >>> 6;
+        long[] updated = Arrays.copyOf(current, Math.max(current.length, lastWord + 1));
+        int changed = 0;
+        for (int word = fromProbeId >>> 6; word <= lastWord; word++) {
+            long mask = -1L;
+            if (word == fromProbeId >>> 6) {
+                mask &= -1L << fromProbeId;
+            }
+            if (word == lastWord) {
+                mask &= -1L >>> (63 - ((endProbeId - 1) & 63));
+            }
+            long before = updated[word];
+            updated[word] = enabled ? before & ~mask : before | mask;
+            changed += Long.bitCount(before ^ updated[word]);
+        }
+        if (!methodFrameProbes.isEmpty()) {
+            for (int probeId = fromProbeId; probeId < endProbeId; probeId++) {
+                int[] frameProbes = methodFrameProbes.get(probeId);
+                if (frameProbes == null) {
+                    continue;
+                }
+                for (int frameProbeId : frameProbes) {
+                    if (frameProbeId >= fromProbeId && frameProbeId < endProbeId) {
+                        continue;
+                    }
+                    if (frameProbeId >>> 6 >= updated.length) {
+                        updated = Arrays.copyOf(updated, (frameProbeId >>> 6) + 1);
+                    }
+                    changed += switchProbe(updated, frameProbeId, enabled);
+                }
+            }
+        }
+        return publish(updated, changed, enabled);
+    }
+
+    /**
+     * @return 1 when the probe changed state
+     */
+    private static int switchProbe(long[] updated, int probeId, boolean enabled) {
+        int word = probeId >>> 6;
+        long bit = 1L << probeId;
+        if (((updated[word] & bit) == 0) == enabled) {
+            return 0;
+        }
+        updated[word] ^= bit;
+        return 1;
+    }
+
+    /**
+     * Switch the probes of a class, or of the methods with the given name in the class, on or off.
+     *
+     * @param className  class name, dot or slash separated
+     * @param methodName null for all methods of the class
+     * @return number of probes which changed state
+     */
+    public static int setEnabled(String className, String methodName, boolean enabled) {
+        Map<String, List<Integer>> classProbes = probesByClass.get(className.replace('/', '.'));
+        if (classProbes == null) {
+            return 0;
+        }
+        List<Integer> probeIds = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> methodProbes : classProbes.entrySet()) {
+            if (methodName == null || methodName.equals(methodProbes.getKey())) {
+                probeIds.addAll(methodProbes.getValue());
+            }
+        }
+        return setEnabled(probeIds, enabled);
+    }
+
+    private static synchronized int setEnabled(List<Integer> probeIds, boolean enabled) {
+        int maxProbeId = -1;
+        for (Integer probeId : probeIds) {
+            maxProbeId = Math.max(maxProbeId, probeId);
+        }
+        long[] current = disabledProbes;
+        long[] updated = new long[Math.max(current.length, (maxProbeId >>> 6) + 1)];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        int changed = 0;
+        for (Integer probeId : probeIds) {
+            changed += switchProbe(updated, probeId, enabled);
+        }
+        return publish(updated, changed, enabled);
+    }
+
+    private static int publish(long[] updated, int changed, boolean enabled) {
+        if (changed == 0) {
+            return 0;
+        }
+        boolean hadDisabledProbes = hasDisabledProbes();
+        disabledProbes = updated;
+        disabledCount += enabled ? -changed : changed;
+        if (hadDisabledProbes != hasDisabledProbes()) {
+            Logging.relinkCallSites();
+        }
+        return changed;
+    }
+
+    private static boolean isFrameProbe(int eventType) {
+        return eventType == EventType.METHOD_ENTRY.ordinal()
+                || eventType == EventType.METHOD_NORMAL_EXIT.ordinal()
+                || eventType == EventType.METHOD_EXCEPTIONAL_EXIT.ordinal();
+    }
+
+    private static synchronized void updateMaxRegisteredProbeId(int probeId) {
+        if (probeId > maxRegisteredProbeId) {
+            maxRegisteredProbeId = probeId;
+        }
+    }
+
+    /**
+     * Record which probes belong to which method of a woven class. Reads the probe and method entries
+     * which follow the ClassInfo in the class weave info written by Weaver.finishClassProcess.
+     *
+     * @param className class name of the ClassInfo
+     * @param in        class weave info, positioned right after the ClassInfo
+     */
+    public static void registerClass(String className, InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int probeCount = dataIn.readInt();
+        Map<Integer, List<Integer>> probesByMethodId = new HashMap<>();
+        Map<Integer, List<Integer>> frameProbesByMethodId = new HashMap<>();
+        int maxProbeId = -1;
+        for (int i = 0; i < probeCount; i++) {
+            dataIn.readInt(); // class id
+            int methodId = dataIn.readInt();
+            int probeId = dataIn.readInt();
+            // line, instruction index
+            dataIn.skipBytes(8);
+            int eventType = dataIn.readInt();
+            dataIn.readInt(); // value descriptor
+            dataIn.skipBytes(dataIn.readInt()); // attributes
+            probesByMethodId.computeIfAbsent(methodId, k -> new ArrayList<>()).add(probeId);
+            if (isFrameProbe(eventType)) {
+                frameProbesByMethodId.computeIfAbsent(methodId, k -> new ArrayList<>()).add(probeId);
+            }
+            maxProbeId = Math.max(maxProbeId, probeId);
+        }
+        for (List<Integer> frameProbeList : frameProbesByMethodId.values()) {
+            int[] frameProbes = new int[frameProbeList.size()];
+            for (int i = 0; i < frameProbes.length; i++) {
+                frameProbes[i] = frameProbeList.get(i);
+            }
+            for (int frameProbeId : frameProbes) {
+                methodFrameProbes.put(frameProbeId, frameProbes);
+            }
+        }
+        updateMaxRegisteredProbeId(maxProbeId);
+        int methodCount = dataIn.readInt();
+        Map<String, List<Integer>> classProbes = new HashMap<>();
+        for (int i = 0; i < methodCount; i++) {
+            dataIn.readInt(); // class id
+            int methodId = dataIn.readInt();
+            byte[] methodName = new byte[dataIn.readInt()];
+            dataIn.readFully(methodName);
+            dataIn.skipBytes(dataIn.readInt()); // method descriptor
+            dataIn.readInt(); // access
+            dataIn.skipBytes(dataIn.readInt()); // source file name
+            dataIn.skipBytes(dataIn.readInt()); // method hash
+            List<Integer> methodProbes = probesByMethodId.get(methodId);
+            if (methodProbes != null) {
+                classProbes.computeIfAbsent(new String(methodName), k -> new ArrayList<>()).addAll(methodProbes);
+            }
+        }
+        probesByClass.put(className.replace('/', '.'), Collections.unmodifiableMap(classProbes));
+    }
+}
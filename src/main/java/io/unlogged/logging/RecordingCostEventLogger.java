@@ -0,0 +1,205 @@
+package io.unlogged.logging;
+
+import java.util.List;
+
+import com.insidious.common.weaver.ClassInfo;
+import io.unlogged.logging.perthread.RecordingMetrics;
+import io.unlogged.logging.perthread.ThreadRecordingCounters;
+
+/**
+ * Measures the time application threads spend inside the event logger, for the AdaptiveSamplingController.
+ * <p>
+ * Every call is counted on the ThreadRecordingCounters of the calling thread in RecordingMetrics, which
+ * times one of every ThreadRecordingCounters.RECORDING_SAMPLE_INTERVAL calls with System.nanoTime. The
+ * recording time of a thread is estimated as its call count times the average time of its timed calls.
+ * Calls made while the same thread is already inside the logger are part of the outer call and are not
+ * measured again.
+ */
+public class RecordingCostEventLogger implements IEventLogger {
+
+    private final IEventLogger delegate;
+    private final RecordingMetrics recordingMetrics;
+
+    public RecordingCostEventLogger(IEventLogger delegate, RecordingMetrics recordingMetrics) {
+        this.delegate = delegate;
+        this.recordingMetrics = recordingMetrics;
+    }
+
+    public IEventLogger getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return estimated nanoseconds spent recording events by all threads since the previous call
+     */
+    public long sampleRecordingNanos() {
+        return recordingMetrics.sampleRecordingNanos();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public Object getObjectByClassName(String name) {
+        return delegate.getObjectByClassName(name);
+    }
+
+    @Override
+    public Object recordEvent(int dataId, Object value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            return delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, int value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, long value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, byte value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, short value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, char value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void registerClass(Integer id, Class<?> type) {
+        delegate.registerClass(id, type);
+    }
+
+    @Override
+    public void recordEvent(int dataId, boolean value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, double value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordEvent(int dataId, float value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordEvent(dataId, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index, long value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordArrayEvent(dataId, array, index, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index, Object value) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordArrayEvent(dataId, array, index, value);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordArrayEvent(int dataId, Object array, int index) {
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+        long start = counters.beginRecording();
+        try {
+            delegate.recordArrayEvent(dataId, array, index);
+        } finally {
+            counters.endRecording(start);
+        }
+    }
+
+    @Override
+    public void recordWeaveInfo(byte[] byteArray, ClassInfo classIdEntry, List<Integer> probeIdsToRecord) {
+        delegate.recordWeaveInfo(byteArray, classIdEntry, probeIdsToRecord);
+    }
+
+    @Override
+    public void setRecordingPaused(boolean b) {
+        delegate.setRecordingPaused(b);
+    }
+
+    @Override
+    public ClassLoader getTargetClassLoader() {
+        return delegate.getTargetClassLoader();
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        delegate.modifyThreadDepth(delta);
+    }
+}
@@ -1,5 +1,19 @@
 package io.unlogged.logging;
 
+/**
+ * Encoding of the serialized values, selected by the "serialization" weave parameter and stored in the
+ * archive metadata. Only JACKSON and SMILE are implemented.
+ */
 public enum SerializationMode {
-    ELSA, KRYO, OOS, JACKSON, FST
+    ELSA, KRYO, OOS,
+    /**
+     * JSON text
+     */
+    JACKSON,
+    FST,
+    /**
+     * Jackson Smile, binary JSON, written with the same ObjectMapper configuration as JACKSON. Each value
+     * starts with the Smile header, so readers can tell it from JSON.
+     */
+    SMILE
 }
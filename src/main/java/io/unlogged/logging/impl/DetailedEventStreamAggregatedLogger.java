@@ -4,11 +4,9 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -17,6 +15,7 @@ import java.util.stream.Stream;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
 import com.googlecode.concurrenttrees.radixinverted.ConcurrentInvertedRadixTree;
 import com.googlecode.concurrenttrees.radixinverted.InvertedRadixTree;
@@ -25,8 +24,14 @@ import com.insidious.common.weaver.ClassInfo;
 import io.unlogged.logging.IEventLogger;
 import io.unlogged.logging.ObjectMapperFactory;
 import io.unlogged.logging.SerializationMode;
+import io.unlogged.logging.perthread.RecordingMetrics;
 import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.LiveInstanceRegistry;
+import io.unlogged.logging.util.ArrayEventPayload;
+import io.unlogged.logging.util.AtomicProbeSet;
+import io.unlogged.logging.util.BoundedLongSet;
 import io.unlogged.logging.util.ObjectIdAggregatedStream;
+import io.unlogged.logging.util.ValueBlobs;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -55,16 +60,34 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
     private final Boolean DEBUG = Boolean.parseBoolean(System.getProperty("UNLOGGED_DEBUG"));
     private final ThreadLocal<Boolean> isRecording = ThreadLocal.withInitial(() -> false);
     final private boolean serializeValues = true;
-    private final Set<Integer> probesToRecord = new HashSet<>();
-    private final Set<Long> valueToSkip = new HashSet<>();
-    private final SerializationMode SERIALIZATION_MODE = SerializationMode.JACKSON;
-    private final Map<String, WeakReference<Object>> objectMap = new HashMap<>();
-    private final ThreadLocal<ObjectMapper> objectMapper = ThreadLocal.withInitial(
-            ObjectMapperFactory::createObjectMapperReactive);
+    /**
+     * Object ids of values which failed to serialize, kept in a fixed number of slots
+     */
+    private static final int VALUES_TO_SKIP_CAPACITY = 16 * 1024;
+    private final AtomicProbeSet probesToRecord = new AtomicProbeSet();
+    private final BoundedLongSet valueToSkip = new BoundedLongSet(VALUES_TO_SKIP_CAPACITY);
+    private final SerializationMode SERIALIZATION_MODE;
+    private final LiveInstanceRegistry liveInstances = new LiveInstanceRegistry();
+    private final ThreadLocal<ObjectMapper> objectMapper;
     private final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
     private final Map<Integer, Integer> firstProbeId = new HashMap<>();
     InvertedRadixTree<Boolean> invertedRadixTree = new ConcurrentInvertedRadixTree<>(new DefaultCharArrayNodeFactory());
-    private ClassLoader targetClassLoader;
+    private volatile ClassLoader targetClassLoader;
+    private RecordingMetrics recordingMetrics;
+    private ValueBlobs valueBlobs;
+    /**
+     * How values of each class are registered and serialized, decided on the first value of the class.
+     */
+    private final ClassValue<ClassPolicy> classPolicies = new ClassValue<ClassPolicy>() {
+        @Override
+        protected ClassPolicy computeValue(Class<?> type) {
+            return computePolicy(type);
+        }
+    };
+    /**
+     * Per instance, since its writer belongs to the serialization mode of the logger
+     */
+    private final ClassPolicy nullValuePolicy = new ClassPolicy(Object.class, null, false, ValueHandler.JACKSON);
 
     /**
      * Create an instance of logging object.
@@ -76,10 +99,23 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //            String includedPackage,
             ObjectIdAggregatedStream objectIdMap,
             AggregatedFileLogger aggregatedLogger) {
+        this(objectIdMap, aggregatedLogger, SerializationMode.JACKSON);
+    }
+
+    /**
+     * @param serializationMode JACKSON or SMILE, encoding of the serialized values
+     */
+    public DetailedEventStreamAggregatedLogger(
+            ObjectIdAggregatedStream objectIdMap,
+            AggregatedFileLogger aggregatedLogger,
+            SerializationMode serializationMode) {
 
 //        this.includedPackage = includedPackage;
         this.aggregatedLogger = aggregatedLogger;
         this.objectIdMap = objectIdMap;
+        this.SERIALIZATION_MODE = serializationMode;
+        this.objectMapper = ThreadLocal.withInitial(
+                () -> ObjectMapperFactory.createObjectMapperReactive(serializationMode));
         try {
             Class.forName("reactor.core.publisher.Mono");
             isReactive = true;
@@ -133,6 +169,66 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
         invertedRadixTree.put("com.hubspot", true);
     }
 
+    private ClassPolicy computePolicy(Class<?> type) {
+        String className = null;
+        try {
+            className = type.getCanonicalName();
+        } catch (Throwable e) {
+            // malformed names of some generated classes
+        }
+        if (className == null) {
+            className = type.getName();
+        }
+
+        String instanceName = null;
+        boolean proxy = false;
+        if (!className.contains("Lambda") && !className.contains("$Unlogged")) {
+            if (className.contains("_$")) {
+                instanceName = className.substring(0, className.indexOf("_$"));
+            } else if (className.contains("$")) {
+                instanceName = className.substring(0, className.indexOf('$'));
+            } else {
+                instanceName = className;
+            }
+            proxy = className.contains("$EnhancerBySpringCGLIB") || className.contains("$SpringCGLIB");
+        }
+
+        String packageMatchName = instanceName != null ? instanceName : className;
+        return new ClassPolicy(type, instanceName, proxy, getValueHandler(type, packageMatchName));
+    }
+
+    private ValueHandler getValueHandler(Class<?> type, String className) {
+        if (type == Class.class) {
+            return ValueHandler.CLASS_NAME;
+        }
+        if (invertedRadixTree.getKeysPrefixing(className).iterator().hasNext()
+                || className.contains("java.lang.reflect")
+                || className.contains("reactor.core.scheduler")
+                || className.contains("com.mongodb")
+                || (className.startsWith("org.glassfish")
+                && !className.equals("org.glassfish.jersey.message.internal.OutboundJaxrsResponse"))
+                || (className.startsWith("org.springframework")
+                && (!className.startsWith("org.springframework.http")
+                && !className.startsWith("org.springframework.data.domain")))
+                || Iterator.class.isAssignableFrom(type)
+                || Stream.class.isAssignableFrom(type)) {
+            return ValueHandler.SKIP;
+        }
+        if (isReactive && Mono.class.isAssignableFrom(type)) {
+            return ValueHandler.MONO;
+        }
+        if (isReactive && Flux.class.isAssignableFrom(type)) {
+            return ValueHandler.FLUX;
+        }
+        if (Future.class.isAssignableFrom(type)) {
+            return ValueHandler.FUTURE;
+        }
+        if (type == byte[].class) {
+            return ValueHandler.BYTES;
+        }
+        return ValueHandler.JACKSON;
+    }
+
     /**
      * Close all file streams used by the object.
      */
@@ -147,13 +243,8 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
     }
 
     public Object getObjectByClassName(String className) {
-        if (!objectMap.containsKey(className)) {
-            return null;
-        }
-        WeakReference<Object> objectWeakReference = objectMap.get(className);
-        Object objectInstance = objectWeakReference.get();
+        Object objectInstance = liveInstances.get(className);
         if (objectInstance == null) {
-            objectMap.remove(className);
             return null;
         }
         if (targetClassLoader == null) {
@@ -170,40 +261,22 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
         if (isRecording.get()) {
             return value;
         }
-        String className;
         Class<?> valueClass = value == null ? Object.class : value.getClass();
-        if (value != null) {
-            className = valueClass.getCanonicalName();
-            if (className == null) {
-                className = valueClass.getName();
-            }
-        } else {
-            className = "";
-        }
-        if (!className.contains("Lambda") && !className.contains("$Unlogged")) {
-//            System.err.println("Object instance: " + className);
-            String originalClassName = className;
-            if (className.contains("_$")) {
-                className = className.substring(0, className.indexOf("_$"));
-            } else if (className.contains("$")) {
-                className = className.substring(0, className.indexOf('$'));
-            }
-            if (!objectMap.containsKey(className)) {
-                objectMap.put(className, new WeakReference<>(value));
-            } else if (originalClassName.contains("$EnhancerBySpringCGLIB")) {
-                objectMap.put(className, new WeakReference<>(value));
-            } else if (originalClassName.contains("$SpringCGLIB")) {
-                objectMap.put(className, new WeakReference<>(value));
-            }
-            if (targetClassLoader == null && value != null) {
-                targetClassLoader = valueClass.getClassLoader();
+        ClassPolicy policy = value == null ? nullValuePolicy : classPolicies.get(valueClass);
+        if (policy.instanceName != null) {
+            WeakReference<Object> registration = policy.registration;
+            if (registration == null || registration.get() == null) {
+                policy.registration = liveInstances.register(policy.instanceName, value, policy.proxy);
+                if (targetClassLoader == null) {
+                    targetClassLoader = valueClass.getClassLoader();
+                }
             }
         }
 
 
         long objectId = objectIdMap.getId(value);
 
-        if (serializeValues && probesToRecord.size() > 0 && probesToRecord.contains(dataId) && !valueToSkip.contains(
+        if (serializeValues && !probesToRecord.isEmpty() && probesToRecord.contains(dataId) && !valueToSkip.contains(
                 objectId)) {
 
             if (DEBUG && value != null) {
@@ -213,6 +286,8 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 
             // write data into OutputStream
             byte[] bytes = new byte[0];
+            long serializationStart = System.nanoTime();
+            boolean serializationFailed = false;
             try {
                 isRecording.set(true);
 
@@ -224,36 +299,25 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                if (value != null) {
 //                    System.out.println("[" + dataId + "] Serialize class: " + value.getClass().getName());
 //                }
-                if (value instanceof Class) {
+                if (policy.handler == ValueHandler.CLASS_NAME) {
                     bytes = ((Class<?>) value).getCanonicalName().getBytes(StandardCharsets.UTF_8);
-                } else if (
-                        invertedRadixTree.getKeysPrefixing(className).iterator().hasNext()
-                                || className.contains("java.lang.reflect")
-                                || className.contains("reactor.core.scheduler")
-                                || className.contains("com.mongodb")
-                                || (className.startsWith("org.glassfish")
-                                && !className.equals("org.glassfish.jersey.message.internal.OutboundJaxrsResponse"))
-                                || (className.startsWith("org.springframework")
-                                && (!className.startsWith("org.springframework.http")
-                                && !className.startsWith("org.springframework.data.domain")))
-                                || value instanceof Iterator
-                                || value instanceof Stream
-                ) {
+                } else if (policy.handler == ValueHandler.SKIP) {
 //                    System.err.println("Removing probe["+ className +"]: " + dataId);
                     probesToRecord.remove(dataId);
-                } else if (SERIALIZATION_MODE == SerializationMode.JACKSON) {
+                } else if (SERIALIZATION_MODE == SerializationMode.JACKSON
+                        || SERIALIZATION_MODE == SerializationMode.SMILE) {
 
 //                    if (className.startsWith("reactor.core")) {
 //                    }
 //                    objectMapper.writeValue(outputStream, value);
 //                    outputStream.flush();
 //                    bytes = outputStream.toByteArray();
-                    if (isReactive && value instanceof Mono) {
+                    if (policy.handler == ValueHandler.MONO) {
                         final long newValueId = System.nanoTime();
                         Mono<?> value1 = (Mono<?>) value;
                         buffer.clear();
                         buffer.putLong(newValueId);
-                        aggregatedLogger.writeEvent(dataId, objectId, buffer.array());
+                        writeValueEvent(dataId, objectId, buffer.array());
                         final Integer firstProbeIdFinal = firstProbeId.get(dataId);
 //                        System.err.println("SubscribeToMono ["+dataId+"] [" + objectId + "] => " + newValueId + " => " + firstProbeIdFinal);
 
@@ -264,14 +328,14 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                                System.err.println(
 //                                        "Async doOnError[" + objectId + "]: " + firstProbeIdFinal + " == " + new String(
 //                                                bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     } catch (JsonProcessingException e) {
                                         //
                                         byte[] bytesAllocatedNew = result.toString().getBytes(StandardCharsets.UTF_8);
 //                                System.err.println("AsyncReal doOnErrorReal[" + objectId + "]: " + firstProbeIdFinal +
 //                                        " " +
 //                                        "== " + new String(bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     }
 
                                 })
@@ -281,23 +345,23 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                                        System.err.println(
 //                                                "Async doOnSuccess[" + objectId + "]: " + firstProbeIdFinal + " == " + new String(
 //                                                        bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     } catch (JsonProcessingException e) {
                                         //
                                         byte[] bytesAllocatedNew = result.toString().getBytes(StandardCharsets.UTF_8);
 //                                        System.err.println("Async doOnSuccessReal[" + objectId + "]: " + firstProbeIdFinal +
 //                                                " == " + new String(bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     }
 
                                 });
 //                        return value1;
-                    } else if (isReactive && value instanceof Flux) {
+                    } else if (policy.handler == ValueHandler.FLUX) {
                         final long newValueId = System.nanoTime();
                         Flux<?> fluxValue = (Flux<?>) value;
                         buffer.clear();
                         buffer.putLong(newValueId);
-                        aggregatedLogger.writeEvent(dataId, objectId, buffer.array());
+                        writeValueEvent(dataId, objectId, buffer.array());
                         final Integer firstProbeIdFinal = firstProbeId.get(dataId);
 //                        System.err.println(
 //                                "SubscribeToFlux [" + dataId + "] [" + objectId + "] => " + newValueId + " => " + firstProbeIdFinal);
@@ -309,7 +373,7 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                                        System.err.println(
 //                                                "Async doOnError[" + objectId + "][" + dataId + "]: " + firstProbeIdFinal + " == "
 //                                                        + new String(bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     } catch (JsonProcessingException e) {
                                         //
                                         byte[] bytesAllocatedNew = result.toString().getBytes(StandardCharsets.UTF_8);
@@ -317,7 +381,7 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                                                "AsyncReal doOnErrorReal[" + objectId + "]: " + firstProbeIdFinal +
 //                                                        " " +
 //                                                        "== " + new String(bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     }
 
                                 })
@@ -329,19 +393,19 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 //                                                        + firstProbeIdFinal +
 //                                                        " == " + new String(
 //                                                        bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     } catch (JsonProcessingException e) {
                                         //
                                         byte[] bytesAllocatedNew = result.toString().getBytes(StandardCharsets.UTF_8);
 //                                        System.err.println(
 //                                                "Async doOnSuccessReal[" + objectId + "]: " + firstProbeIdFinal +
 //                                                        " == " + new String(bytesAllocatedNew) + " => " + newValueId);
-                                        aggregatedLogger.writeEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
+                                        writeValueEvent(firstProbeIdFinal, newValueId, bytesAllocatedNew);
                                     }
 
                                 });
 //                        return fluxValue;
-                    } else if (value instanceof Future) {
+                    } else if (policy.handler == ValueHandler.FUTURE) {
                         Future<?> futureValue = (Future<?>) value;
                         try {
                             Object value1 = futureValue.get(100, TimeUnit.MILLISECONDS);
@@ -349,10 +413,10 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
                         } catch (TimeoutException te) {
                             bytes = objectMapper.get().writeValueAsBytes("{\"message\": \"failed to read future\"}");
                         }
-                    } else if (value instanceof byte[]) {
+                    } else if (policy.handler == ValueHandler.BYTES) {
                         bytes = (byte[]) value;
                     } else {
-                        bytes = objectMapper.get().writeValueAsBytes(value);
+                        bytes = policy.getWriter(objectMapper.get()).writeValueAsBytes(value);
                     }
                     if (DEBUG) {
                         System.err.println(
@@ -396,6 +460,7 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
 
 
             } catch (Throwable e) {
+                serializationFailed = true;
                 if (e instanceof JsonMappingException) {
                     bytes = (FAILED_TO_RECORD_MESSAGE + e.getMessage() + "\"}").getBytes();
                 }
@@ -422,7 +487,14 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
             } finally {
                 isRecording.set(false);
             }
-            aggregatedLogger.writeEvent(dataId, objectId, bytes);
+            if (recordingMetrics != null) {
+                if (serializationFailed) {
+                    recordingMetrics.recordSerializationFailure();
+                } else {
+                    recordingMetrics.recordSerialization(System.nanoTime() - serializationStart);
+                }
+            }
+            writeValueEvent(dataId, objectId, bytes);
 //            outputStream.reset();
         } else {
 //            System.err.println("No serialization for: " + dataId);
@@ -431,6 +503,16 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
         return value;
     }
 
+    /**
+     * Write the serialized value of an object event, tagged for the value blob store when it is enabled.
+     */
+    private void writeValueEvent(int dataId, long objectId, byte[] bytes) {
+        if (valueBlobs != null) {
+            bytes = valueBlobs.toEventPayload(bytes);
+        }
+        aggregatedLogger.writeEvent(dataId, objectId, bytes);
+    }
+
     /**
      * Record an event and an integer value.
      * To simplify the file writing process, the value is translated into a long value.
@@ -537,6 +619,57 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
         aggregatedLogger.writeEvent(dataId, longValue);
     }
 
+    /**
+     * Record an array access as one event, see ArrayEventPayload. When the array is to be serialized the
+     * array, index and value are recorded as separate events on the probes following dataId.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index, long value) {
+        if (isRecording.get()) {
+            return;
+        }
+        if (serializeValues && probesToRecord.contains(dataId)) {
+            recordEvent(dataId, array);
+            aggregatedLogger.writeEvent(dataId + 1, index);
+            aggregatedLogger.writeEvent(dataId + 2, value);
+            return;
+        }
+        aggregatedLogger.writeEvent(dataId, objectIdMap.getId(array), ArrayEventPayload.encode(index, value));
+    }
+
+    /**
+     * Record an array access as one event, the element is translated into an object ID. When the array
+     * or the element is to be serialized they are recorded as separate events.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index, Object value) {
+        if (isRecording.get()) {
+            return;
+        }
+        if (serializeValues && (probesToRecord.contains(dataId) || probesToRecord.contains(dataId + 2))) {
+            recordEvent(dataId, array);
+            aggregatedLogger.writeEvent(dataId + 1, index);
+            recordEvent(dataId + 2, value);
+            return;
+        }
+        long arrayId = objectIdMap.getId(array);
+        long valueId = objectIdMap.getId(value);
+        aggregatedLogger.writeEvent(dataId, arrayId, ArrayEventPayload.encode(index, valueId));
+    }
+
+    /**
+     * Record an array access without its value as one event.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index) {
+        if (isRecording.get()) {
+            return;
+        }
+        if (serializeValues && probesToRecord.contains(dataId)) {
+            recordEvent(dataId, array);
+            aggregatedLogger.writeEvent(dataId + 1, index);
+            return;
+        }
+        aggregatedLogger.writeEvent(dataId, objectIdMap.getId(array), ArrayEventPayload.encode(index));
+    }
+
     @Override
     public void recordWeaveInfo(byte[] byteArray, ClassInfo classIdEntry, List<Integer> probeIdsToRecord) {
         if (probeIdsToRecord.size() > 0) {
@@ -565,8 +698,74 @@ public class DetailedEventStreamAggregatedLogger implements IEventLogger {
     public void registerClass(Integer id, Class<?> type) {
     }
 
+    /**
+     * @param recordingMetrics receives the time taken to serialize each value and the failures
+     */
+    public void setRecordingMetrics(RecordingMetrics recordingMetrics) {
+        this.recordingMetrics = recordingMetrics;
+    }
+
+    /**
+     * @param valueBlobs store for serialized values, null to write every value in its event
+     */
+    public void setValueBlobs(ValueBlobs valueBlobs) {
+        this.valueBlobs = valueBlobs;
+    }
+
 	@Override
 	public void modifyThreadDepth(long delta) {
 		aggregatedLogger.modifyThreadDepth(delta);
 	}
+
+    private enum ValueHandler {
+        /**
+         * Classes which are not serialized, their probe is no longer serialized once it sees one
+         */
+        SKIP,
+        CLASS_NAME,
+        MONO,
+        FLUX,
+        FUTURE,
+        BYTES,
+        JACKSON
+    }
+
+    private static final class ClassPolicy {
+        private final Class<?> type;
+        /**
+         * Name under which the latest instance is kept for getObjectByClassName, null for lambdas and
+         * Unlogged classes
+         */
+        private final String instanceName;
+        /**
+         * Spring CGLIB proxies replace the instance registered for their class
+         */
+        private final boolean proxy;
+        private final ValueHandler handler;
+        private volatile ObjectWriter writer;
+        /**
+         * Instance kept in the live instance registry under instanceName, registered again once collected
+         */
+        private volatile WeakReference<Object> registration;
+
+        ClassPolicy(Class<?> type, String instanceName, boolean proxy, ValueHandler handler) {
+            this.type = type;
+            this.instanceName = instanceName;
+            this.proxy = proxy;
+            this.handler = handler;
+        }
+
+        /**
+         * The writer is created on the first serialization, when recording is paused on the thread, since
+         * resolving the serializer can run code of the class.
+         */
+        ObjectWriter getWriter(ObjectMapper objectMapper) {
+            ObjectWriter writer = this.writer;
+            if (writer == null) {
+                writer = objectMapper.writerFor(type);
+                this.writer = writer;
+            }
+            return writer;
+        }
+    }
 }
@@ -7,6 +7,7 @@ import com.insidious.common.weaver.ClassInfo;
 
 import io.unlogged.logging.IEventLogger;
 import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.ArrayEventPayload;
 import io.unlogged.logging.util.ObjectIdAggregatedStream;
 
 /**
@@ -240,6 +241,29 @@ public class EventStreamAggregatedLogger implements IEventLogger {
         aggregatedLogger.writeEvent(dataId, longValue);
     }
 
+    /**
+     * Record an array access as one event, see ArrayEventPayload.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index, long value) {
+        aggregatedLogger.writeEvent(dataId, objectIdMap.getId(array), ArrayEventPayload.encode(index, value));
+    }
+
+    /**
+     * Record an array access as one event, the element is translated into an object ID.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index, Object value) {
+        long arrayId = objectIdMap.getId(array);
+        long valueId = objectIdMap.getId(value);
+        aggregatedLogger.writeEvent(dataId, arrayId, ArrayEventPayload.encode(index, valueId));
+    }
+
+    /**
+     * Record an array access without its value as one event.
+     */
+    public void recordArrayEvent(int dataId, Object array, int index) {
+        aggregatedLogger.writeEvent(dataId, objectIdMap.getId(array), ArrayEventPayload.encode(index));
+    }
+
     @Override
     public void recordWeaveInfo(byte[] byteArray, ClassInfo classIdEntry, List<Integer> probeIdsToRecord) {
         aggregatedLogger.writeWeaveInfo(byteArray);
@@ -11,6 +11,7 @@ import com.insidious.common.cqengine.TypeInfoDocument;
 import io.unlogged.logging.IErrorLogger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -19,6 +20,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -29,6 +31,27 @@ public class ArchivedIndexWriter implements IndexOutputStream {
     public static final String INDEX_STRING_DAT_FILE = "index.string.dat";
     public static final String INDEX_OBJECT_DAT_FILE = "index.object.dat";
     public static final String INDEX_EVENTS_DAT_FILE = "index.events.dat";
+    public static final String INDEX_EXCEPTION_DAT_FILE = "index.exception.dat";
+    public static final String INDEX_FRAME_DAT_FILE = "index.frame.dat";
+    public static final String INDEX_BLOB_DAT_FILE = "index.blob.dat";
+    /**
+     * java.util.Properties text describing how the values in the archive are encoded
+     */
+    public static final String INDEX_META_DAT_FILE = "index.meta.dat";
+    /**
+     * SerializationMode name of the serialized values, JACKSON when missing
+     */
+    public static final String META_SERIALIZATION = "serialization";
+    /**
+     * "true" when serialized values are payloads of the value blob store
+     */
+    public static final String META_VALUE_BLOBS = "valueBlobs";
+    /**
+     * "gzip" when log files are compressed by LogFileCompressor, the entries ending in
+     * LogFileCompressor.COMPRESSED_FILE_SUFFIX are then gzip streams of a .selog file. Other log entries are
+     * stored as they were written.
+     */
+    public static final String META_LOG_ENCODING = "logEncoding";
 
     private final IErrorLogger errorLogger;
     private final Lock indexWriterLock = new ReentrantLock();
@@ -37,6 +60,7 @@ public class ArchivedIndexWriter implements IndexOutputStream {
     //    final private BloomFilter<Long> aggregatedValueSet;
 //    final private BloomFilter<Integer> aggregatedProbeIdSet;
     private final String classWeavePath;
+    private final Properties archiveMetadata;
     private BlockingQueue<StringInfoDocument> stringsToIndex;
     private BlockingQueue<TypeInfoDocument> typesToIndex;
     private BlockingQueue<ObjectInfoDocument> objectsToIndex;
@@ -47,11 +71,26 @@ public class ArchivedIndexWriter implements IndexOutputStream {
     private DiskPersistence<StringInfoDocument, Long> stringInfoDocumentStringDiskPersistence;
     private DiskPersistence<TypeInfoDocument, Integer> typeInfoDocumentStringDiskPersistence;
     private List<UploadFile> fileListToUpload = new LinkedList<>();
+    private final List<byte[]> exceptionRecords = new ArrayList<>();
+    private final Map<Integer, byte[]> exceptionFrames = new LinkedHashMap<>();
+    private DataOutputStream blobOutputStream;
+    private final Set<ByteBuffer> blobHashes = new HashSet<>();
+    private boolean completed = false;
     private ZipOutputStream archivedIndexOutputStream;
+    private byte[] storedFileBuffer = new byte[0];
 
     public ArchivedIndexWriter(File archiveFile, String classWeaveFileStream, IErrorLogger errorLogger) throws IOException {
+        this(archiveFile, classWeaveFileStream, new Properties(), errorLogger);
+    }
+
+    /**
+     * @param archiveMetadata stored as INDEX_META_DAT_FILE when the archive is completed
+     */
+    public ArchivedIndexWriter(File archiveFile, String classWeaveFileStream, Properties archiveMetadata,
+                               IErrorLogger errorLogger) throws IOException {
         this.errorLogger = errorLogger;
         this.classWeavePath = classWeaveFileStream;
+        this.archiveMetadata = archiveMetadata;
         outputDir = archiveFile.getParent() + "/";
         this.currentArchiveFile = archiveFile;
 
@@ -150,6 +189,92 @@ public class ArchivedIndexWriter implements IndexOutputStream {
 //        errorLogger.log("Took [" + (end - start) / 1000 + "] seconds to index [" + itemCount + "] items");
     }
 
+    /**
+     * The frames used by the exceptions are copied from stackFrames, so that the archive holds each of
+     * them once.
+     */
+    void addExceptions(List<ExceptionRecord> exceptions, Map<Integer, byte[]> stackFrames) {
+        if (exceptions.isEmpty()) {
+            return;
+        }
+        indexWriterLock.lock();
+        try {
+            for (ExceptionRecord exception : exceptions) {
+                exceptionRecords.add(exception.getRecord());
+                for (int frameId : exception.getFrameIds()) {
+                    if (frameId < 0 || exceptionFrames.containsKey(frameId)) {
+                        continue;
+                    }
+                    byte[] frameRecord = stackFrames.get(frameId);
+                    if (frameRecord != null) {
+                        exceptionFrames.put(frameId, frameRecord);
+                    }
+                }
+            }
+        } finally {
+            indexWriterLock.unlock();
+        }
+    }
+
+    /**
+     * Values are appended to a file next to the archive as they arrive, each as its hash, a length and
+     * its bytes, and the file is copied into the archive when it is completed. A value already in the
+     * archive is skipped.
+     *
+     * @return false when the values were not written, because the archive is already completed or the
+     * file could not be written
+     */
+    boolean addBlobs(List<ValueBlob> valueBlobs) {
+        if (valueBlobs.isEmpty()) {
+            return true;
+        }
+        indexWriterLock.lock();
+        try {
+            if (completed) {
+                errorLogger.log("[" + currentArchiveFile.getName() + "] [" + valueBlobs.size()
+                        + "] values added after the archive was completed");
+                return false;
+            }
+            if (blobOutputStream == null) {
+                blobOutputStream = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(getBlobFile())));
+            }
+            for (ValueBlob valueBlob : valueBlobs) {
+                if (!blobHashes.add(ByteBuffer.wrap(valueBlob.getHash()))) {
+                    continue;
+                }
+                blobOutputStream.write(valueBlob.getHash());
+                blobOutputStream.writeInt(valueBlob.getValue().length);
+                blobOutputStream.write(valueBlob.getValue());
+            }
+            return true;
+        } catch (IOException e) {
+            errorLogger.log(e);
+            return false;
+        } finally {
+            indexWriterLock.unlock();
+        }
+    }
+
+    private File getBlobFile() {
+        return new File(outputDir + currentArchiveFile.getName().split(".zip")[0] + "-" + INDEX_BLOB_DAT_FILE);
+    }
+
+    /**
+     * Entry of a record count followed by each record as a length and its bytes.
+     */
+    private void writeRecordsEntry(String entryName, Collection<byte[]> records) throws IOException {
+        archivedIndexOutputStream.putNextEntry(new ZipEntry(entryName));
+        DataOutputStream outputStream = new DataOutputStream(archivedIndexOutputStream);
+        outputStream.writeInt(records.size());
+        for (byte[] record : records) {
+            outputStream.writeInt(record.length);
+            outputStream.write(record);
+        }
+        outputStream.flush();
+        archivedIndexOutputStream.closeEntry();
+    }
+
     @Override
     public int fileCount() {
         return fileListToUpload.size();
@@ -165,6 +290,7 @@ public class ArchivedIndexWriter implements IndexOutputStream {
         indexWriterLock.lock();
 
         long start = System.currentTimeMillis();
+        completed = true;
 //        errorLogger.log("lock acquired to finish archive: " + currentArchiveFile.getName());
 
         try {
@@ -198,6 +324,7 @@ public class ArchivedIndexWriter implements IndexOutputStream {
                 for (UploadFile fileToUpload : fileIndexBytesCopy) {
                     outputStream.writeInt(fileToUpload.path.length());
                     outputStream.writeBytes(fileToUpload.path);
+                    // ShardedAggregatedLogger.SHARED_FILE_THREAD_ID for a file with events of several threads
                     outputStream.writeLong(fileToUpload.threadId);
 
 
@@ -283,6 +410,23 @@ public class ArchivedIndexWriter implements IndexOutputStream {
                 objectIndexFilePath.toFile().delete();
                 archivedIndexOutputStream.closeEntry();
 
+                writeRecordsEntry(INDEX_EXCEPTION_DAT_FILE, exceptionRecords);
+                writeRecordsEntry(INDEX_FRAME_DAT_FILE, exceptionFrames.values());
+
+                archivedIndexOutputStream.putNextEntry(new ZipEntry(INDEX_BLOB_DAT_FILE));
+                if (blobOutputStream != null) {
+                    blobOutputStream.close();
+                    blobOutputStream = null;
+                    Path blobFilePath = getBlobFile().toPath();
+                    Files.copy(blobFilePath, archivedIndexOutputStream);
+                    blobFilePath.toFile().delete();
+                }
+                archivedIndexOutputStream.closeEntry();
+
+                archivedIndexOutputStream.putNextEntry(new ZipEntry(INDEX_META_DAT_FILE));
+                archiveMetadata.store(archivedIndexOutputStream, null);
+                archivedIndexOutputStream.closeEntry();
+
             } catch (IOException e) {
                 errorLogger.log(e);
             } finally {
@@ -319,10 +463,15 @@ public class ArchivedIndexWriter implements IndexOutputStream {
         String fileName = currentTimestamp + "@" + fileToUpload.getName();
 
         ZipEntry eventsFileZipEntry = new ZipEntry(fileName);
-        archivedIndexOutputStream.putNextEntry(eventsFileZipEntry);
-        FileInputStream fis = new FileInputStream(fileToUpload);
-        copy(fis, archivedIndexOutputStream);
-        fis.close();
+        if (fileName.endsWith(LogFileCompressor.COMPRESSED_FILE_SUFFIX)) {
+            // already compressed by LogFileCompressor, store it as it is instead of deflating it again
+            storeWithoutCompression(eventsFileZipEntry, fileToUpload);
+        } else {
+            archivedIndexOutputStream.putNextEntry(eventsFileZipEntry);
+            FileInputStream fis = new FileInputStream(fileToUpload);
+            copy(fis, archivedIndexOutputStream);
+            fis.close();
+        }
         archivedIndexOutputStream.flush();
         archivedIndexOutputStream.closeEntry();
         long end = System.currentTimeMillis();
@@ -331,6 +480,33 @@ public class ArchivedIndexWriter implements IndexOutputStream {
 //                "took - " + (end - currentTimestamp) / 1000 + " ms");
     }
 
+    /**
+     * A stored entry needs its CRC before the data, the file is read once into a buffer which is reused
+     * for the next file.
+     */
+    private void storeWithoutCompression(ZipEntry zipEntry, File file) throws IOException {
+        int length;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int fileLength = (int) fis.getChannel().size();
+            if (storedFileBuffer.length < fileLength) {
+                storedFileBuffer = new byte[fileLength];
+            }
+            length = 0;
+            int read;
+            while (length < fileLength && (read = fis.read(storedFileBuffer, length, fileLength - length)) > 0) {
+                length += read;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(storedFileBuffer, 0, length);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(length);
+        zipEntry.setCompressedSize(length);
+        zipEntry.setCrc(crc.getValue());
+        archivedIndexOutputStream.putNextEntry(zipEntry);
+        archivedIndexOutputStream.write(storedFileBuffer, 0, length);
+    }
+
     void copy(InputStream source, OutputStream target) throws IOException {
         byte[] buf = new byte[8192];
         int length;
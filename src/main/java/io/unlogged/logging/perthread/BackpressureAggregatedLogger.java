@@ -0,0 +1,145 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import io.unlogged.logging.util.AggregatedFileLogger;
+
+/**
+ * Skips method calls while the RecordingPressure does not admit them. Type, object and weave records always
+ * go through, they are needed to read the events which are recorded.
+ * <p>
+ * The decision is taken at the entry of a call and holds for every event up to its exit, nested calls
+ * included, so the entry and exit events of a call are either both recorded or both skipped. Each thread
+ * tracks its call depth from the entry and exit probes found in the weave info.
+ */
+public class BackpressureAggregatedLogger implements AggregatedFileLogger {
+
+    private final AggregatedFileLogger delegate;
+    private final RecordingPressure recordingPressure;
+    private final MethodFrameProbes methodFrameProbes = new MethodFrameProbes();
+    private final ThreadLocal<FrameDepth> frameDepth = ThreadLocal.withInitial(FrameDepth::new);
+
+    public BackpressureAggregatedLogger(AggregatedFileLogger delegate, RecordingPressure recordingPressure) {
+        this.delegate = delegate;
+        this.recordingPressure = recordingPressure;
+    }
+
+    private boolean admit(int probeId) {
+        FrameDepth frames = frameDepth.get();
+        boolean admitted;
+        switch (methodFrameProbes.getKind(probeId)) {
+            case MethodFrameProbes.METHOD_ENTRY:
+                frames.depth++;
+                if (frames.skippedFrameDepth == 0 && !recordingPressure.admitFrame()) {
+                    frames.skippedFrameDepth = frames.depth;
+                }
+                admitted = frames.skippedFrameDepth == 0;
+                break;
+            case MethodFrameProbes.METHOD_EXIT:
+                admitted = frames.skippedFrameDepth == 0;
+                if (frames.depth == frames.skippedFrameDepth) {
+                    frames.skippedFrameDepth = 0;
+                }
+                if (frames.depth > 0) {
+                    frames.depth--;
+                }
+                break;
+            default:
+                admitted = frames.skippedFrameDepth == 0
+                        && (frames.depth > 0 || recordingPressure.admitFrame());
+        }
+        if (!admitted) {
+            recordingPressure.recordDroppedEvent();
+        }
+        return admitted;
+    }
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        delegate.writeNewObjectType(id, typeId);
+    }
+
+    @Override
+    public void writeEvent(int id, long value) {
+        if (admit(id)) {
+            delegate.writeEvent(id, value);
+        }
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        delegate.writeNewTypeRecord(typeId, typeName, toString);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return delegate.writeNewStackFrame(frameId, frameRecord);
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        delegate.writeNewException(objectId, exceptionRecord, frameIds);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        if (frameDepth.get().skippedFrameDepth != 0) {
+            // the event of the value is skipped with its call, it must not hold the value in the collector
+            return false;
+        }
+        return delegate.writeNewBlob(blobHash, value);
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        try {
+            methodFrameProbes.registerClass(byteArray);
+        } catch (IOException e) {
+            // the probes of this class are admitted one event at a time
+            delegate.errorLog(e);
+        }
+        delegate.writeWeaveInfo(byteArray);
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        delegate.shutdown();
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+        if (admit(dataId)) {
+            delegate.writeEvent(dataId, objectId, toByteArray);
+        }
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+        if (admit(dataId)) {
+            delegate.writeEvent(dataId, objectId, outputStream);
+        }
+    }
+
+    @Override
+    public void errorLog(String message) {
+        delegate.errorLog(message);
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+        delegate.errorLog(throwable);
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        delegate.modifyThreadDepth(delta);
+    }
+
+    private static class FrameDepth {
+        // calls entered and not exited yet
+        private int depth;
+        // depth of the outermost call which is skipped, 0 when the current call is recorded
+        private int skippedFrameDepth;
+    }
+}
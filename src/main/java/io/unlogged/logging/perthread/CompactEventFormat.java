@@ -0,0 +1,53 @@
+package io.unlogged.logging.perthread;
+
+/**
+ * Encoding of the compact (v2) event record, type 8:
+ * <pre>
+ * [8][eventId delta: uvarint][timestamp delta: zigzag varint][probeId: uvarint][value: zigzag varint]
+ * [length: uvarint][serialized value: length bytes]
+ * </pre>
+ * Deltas are taken from the previous record in the same file, the first record of a file is encoded as a
+ * delta from zero. Varints are 7 bits per byte, least significant group first, with the high bit set on
+ * every byte except the last.
+ */
+final class CompactEventFormat {
+
+    static final byte RECORD_TYPE = 8;
+    /**
+     * Largest possible header, type byte, three 64 bit varints and two 32 bit varints.
+     */
+    static final int MAX_HEADER_SIZE = 1 + 10 + 10 + 5 + 10 + 5;
+
+    private CompactEventFormat() {
+    }
+
+    /**
+     * @return number of header bytes written into the buffer
+     */
+    static int encodeHeader(byte[] buffer, long eventIdDelta, long timestampDelta, int probeId, long valueId,
+                            int length) {
+        buffer[0] = RECORD_TYPE;
+        int position = putVarLong(buffer, 1, eventIdDelta);
+        position = putVarLong(buffer, position, zigZag(timestampDelta));
+        position = putVarLong(buffer, position, probeId & 0xFFFFFFFFL);
+        position = putVarLong(buffer, position, zigZag(valueId));
+        return putVarLong(buffer, position, length & 0xFFFFFFFFL);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
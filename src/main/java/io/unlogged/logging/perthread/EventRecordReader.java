@@ -0,0 +1,130 @@
+package io.unlogged.logging.perthread;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.unlogged.logging.util.EventIdUtil;
+
+/**
+ * Reads the event records of a single .selog file, in the fixed (type 7) or the compact (type 8) format.
+ * A writer uses one format per file, compact records are decoded against the previous record of the file.
+ * A zero type byte ends the records, it is the unwritten tail of a MappedEventSegment which was not closed.
+ */
+public class EventRecordReader implements Closeable {
+
+    private final DataInputStream in;
+    private long previousEventId = 0;
+    private long previousTimestamp = 0;
+
+    public EventRecordReader(InputStream inputStream) {
+        this.in = new DataInputStream(new BufferedInputStream(inputStream));
+    }
+
+    /**
+     * @return the next record, or null at the end of the file or at a zero type byte
+     * @throws IOException when the file is truncated in the middle of a record or has an unknown record type
+     */
+    public EventRecord read() throws IOException {
+        int recordType = in.read();
+        if (recordType == -1 || recordType == 0) {
+            return null;
+        }
+        long eventId;
+        long timestamp;
+        int probeId;
+        long valueId;
+        int length;
+        if (recordType == 7) {
+            eventId = in.readLong();
+            timestamp = in.readLong();
+            probeId = in.readInt();
+            valueId = in.readLong();
+            length = in.readInt();
+        } else if (recordType == CompactEventFormat.RECORD_TYPE) {
+            eventId = previousEventId + readVarLong();
+            timestamp = previousTimestamp + CompactEventFormat.unZigZag(readVarLong());
+            probeId = (int) readVarLong();
+            valueId = CompactEventFormat.unZigZag(readVarLong());
+            length = (int) readVarLong();
+        } else {
+            throw new IOException("unknown event record type: " + recordType);
+        }
+        if (length < 0) {
+            throw new IOException("invalid serialized value length: " + length);
+        }
+        byte[] serializedValue = new byte[length];
+        in.readFully(serializedValue);
+
+        previousEventId = eventId;
+        previousTimestamp = timestamp;
+        return new EventRecord(eventId, timestamp, probeId, valueId, serializedValue);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static class EventRecord {
+        private final long eventId;
+        private final long timestamp;
+        private final int probeId;
+        private final long valueId;
+        private final byte[] serializedValue;
+
+        public EventRecord(long eventId, long timestamp, int probeId, long valueId, byte[] serializedValue) {
+            this.eventId = eventId;
+            this.timestamp = timestamp;
+            this.probeId = probeId;
+            this.valueId = valueId;
+            this.serializedValue = serializedValue;
+        }
+
+        public long getEventId() {
+            return eventId;
+        }
+
+        /**
+         * @return id of the thread which recorded the event, also for files which hold events of several
+         * threads
+         */
+        public int getThreadId() {
+            return EventIdUtil.getThreadSlot(eventId);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getProbeId() {
+            return probeId;
+        }
+
+        public long getValueId() {
+            return valueId;
+        }
+
+        public byte[] getSerializedValue() {
+            return serializedValue;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.unlogged.logging.perthread;
+
+/**
+ * Exception record waiting to be written into an archive, with the IDs of the stack frames it refers to.
+ */
+class ExceptionRecord {
+    private final long objectId;
+    private final byte[] record;
+    private final int[] frameIds;
+
+    ExceptionRecord(long objectId, byte[] record, int[] frameIds) {
+        this.objectId = objectId;
+        this.record = record;
+        this.frameIds = frameIds;
+    }
+
+    long getObjectId() {
+        return objectId;
+    }
+
+    byte[] getRecord() {
+        return record;
+    }
+
+    int[] getFrameIds() {
+        return frameIds;
+    }
+}
@@ -3,19 +3,18 @@ package io.unlogged.logging.perthread;
 
 import io.unlogged.logging.IErrorLogger;
 
-import java.io.OutputStream;
 import java.util.Map;
 import java.util.function.Function;
 
 class FileEventCountThresholdChecker implements Runnable {
 
-    private final Map<Integer, OutputStream> threadFileMap;
+    private final Map<Integer, ?> threadFileMap;
     private final ThreadEventCountProvider threadEventCountProvider;
     private final Function<Integer, Void> onExpiryRunner;
     private final IErrorLogger errorLogger;
 
     public FileEventCountThresholdChecker(
-            Map<Integer, OutputStream> threadFileMap,
+            Map<Integer, ?> threadFileMap,
             ThreadEventCountProvider threadEventCountProvider,
             Function<Integer, Void> onExpiryRunner,
             IErrorLogger errorLogger) {
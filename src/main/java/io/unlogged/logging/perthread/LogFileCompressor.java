@@ -0,0 +1,191 @@
+package io.unlogged.logging.perthread;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.insidious.common.UploadFile;
+
+import io.unlogged.logging.IErrorLogger;
+
+/**
+ * Compresses completed .selog files on a worker pool as soon as the writers hand them over, so the
+ * archive thread only has to store the compressed bytes.
+ * <p>
+ * A file is compressed in blocks of BLOCK_SIZE bytes, every block is written as a separate gzip member
+ * with the fastest deflate level. The result is a regular .selog.gz file which any gzip reader decodes
+ * back to the original file, and a reader can start decompressing at any member boundary.
+ * <p>
+ * No completed file is lost here: a worker waits for room in the collector queue, a file which does not
+ * fit into the queue of this compressor, or which fails to compress, is passed on uncompressed.
+ */
+public class LogFileCompressor {
+
+    public static final int BLOCK_SIZE = 1024 * 256;
+    public static final int DEFAULT_WORKER_COUNT = 2;
+    public static final String COMPRESSED_FILE_SUFFIX = ".gz";
+    private static final byte[] GZIP_MEMBER_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final BlockingQueue<UploadFile> rawFileQueue = new RawFileQueue(1024 * 128);
+    private final BlockingQueue<UploadFile> compressedFileQueue;
+    private final IErrorLogger errorLogger;
+    private final ExecutorService workerPool;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param compressedFileQueue queue of the RawFileCollector which receives the compressed files
+     * @param workerCount         number of files compressed in parallel
+     * @param errorLogger         to report failed compressions, the raw file is archived in that case
+     */
+    public LogFileCompressor(BlockingQueue<UploadFile> compressedFileQueue, int workerCount, IErrorLogger errorLogger) {
+        this.compressedFileQueue = compressedFileQueue;
+        this.errorLogger = errorLogger;
+        this.workerPool = Executors.newFixedThreadPool(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workerPool.submit(this::compressFiles);
+        }
+    }
+
+    /**
+     * @return the queue writers put completed .selog files in
+     */
+    public BlockingQueue<UploadFile> getRawFileQueue() {
+        return rawFileQueue;
+    }
+
+    private void compressFiles() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] deflated = new byte[BLOCK_SIZE];
+        try {
+            while (!shutdown) {
+                UploadFile rawFile = rawFileQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (rawFile == null) {
+                    continue;
+                }
+                UploadFile compressedFile;
+                try {
+                    compressedFile = compress(rawFile, deflater, block, deflated);
+                } catch (RuntimeException e) {
+                    errorLogger.log("failed to compress " + rawFile.path + ", archiving it uncompressed");
+                    errorLogger.log(e);
+                    new File(rawFile.path + COMPRESSED_FILE_SUFFIX).delete();
+                    compressedFile = rawFile;
+                }
+                handOver(compressedFile);
+            }
+        } catch (InterruptedException e) {
+            errorLogger.log("log file compressor interrupted: " + e.getMessage());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wait for room in the collector queue. When interrupted by shutdown the file is offered instead, the
+     * collector accounts for the file if its queue is still full.
+     */
+    private void handOver(UploadFile file) throws InterruptedException {
+        try {
+            compressedFileQueue.put(file);
+        } catch (InterruptedException e) {
+            compressedFileQueue.offer(file);
+            throw e;
+        }
+    }
+
+    private UploadFile compress(UploadFile rawFile, Deflater deflater, byte[] block, byte[] deflated) {
+        File source = new File(rawFile.path);
+        File target = new File(rawFile.path + COMPRESSED_FILE_SUFFIX);
+        try (InputStream in = Files.newInputStream(source.toPath());
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target.toPath()))) {
+            compressBlocks(in, out, deflater, block, deflated);
+        } catch (IOException e) {
+            errorLogger.log(e);
+            target.delete();
+            return rawFile;
+        }
+        source.delete();
+        return new UploadFile(target.getPath(), rawFile.threadId, null, null);
+    }
+
+    /**
+     * Write the stream as a sequence of gzip members of up to one block of input each.
+     */
+    static void compressBlocks(InputStream in, OutputStream out, Deflater deflater, byte[] block,
+                               byte[] deflated) throws IOException {
+        CRC32 crc = new CRC32();
+        // an empty file still gets one member, gzip readers reject an empty stream
+        int blockLength = readBlock(in, block);
+        do {
+            crc.reset();
+            crc.update(block, 0, blockLength);
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+
+            out.write(GZIP_MEMBER_HEADER);
+            while (!deflater.finished()) {
+                int deflatedLength = deflater.deflate(deflated);
+                out.write(deflated, 0, deflatedLength);
+            }
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, blockLength);
+        } while ((blockLength = readBlock(in, block)) > 0);
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0;
+        int read;
+        while (total < block.length && (read = in.read(block, total, block.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Stop the workers and pass the files which were not compressed yet on as they are.
+     */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        workerPool.shutdown();
+        if (!workerPool.awaitTermination(5, TimeUnit.SECONDS)) {
+            workerPool.shutdownNow();
+        }
+        rawFileQueue.drainTo(compressedFileQueue);
+    }
+
+    /**
+     * Passes a file which does not fit on to the collector uncompressed instead of dropping it.
+     */
+    private class RawFileQueue extends ArrayBlockingQueue<UploadFile> {
+        RawFileQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(UploadFile uploadFile) {
+            if (super.offer(uploadFile)) {
+                return true;
+            }
+            return compressedFileQueue.offer(uploadFile);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One .selog file of a thread, written through a memory mapping instead of a file stream.
+ * <p>
+ * The file is mapped at its full size when opened and records are stored straight into the mapping. When
+ * the segment is closed the mapping is released and the file is truncated to the used length. The type
+ * byte of a record is stored after the rest of the record, so the first zero type byte in a segment marks
+ * the end of the complete records. A segment which was never closed, because the process died, keeps
+ * its full mapped size and is cut back to the complete records by findUsedLength.
+ * <p>
+ * Only one thread may use a segment at a time, the owner while writing or the rotation task while
+ * closing, PerThreadMappedSegmentAggregatedLogger hands it over through ThreadLogState. Nothing may touch
+ * the segment after close, its memory is unmapped.
+ */
+final class MappedEventSegment {
+
+    private final int threadId;
+    private final WeakReference<Thread> ownerThread;
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private boolean closed = false;
+    private final SegmentOutputStream segmentOutputStream = new SegmentOutputStream();
+    private volatile boolean rotationRequested = false;
+
+    private MappedEventSegment(int threadId, Thread ownerThread, File file, FileChannel channel,
+                               MappedByteBuffer buffer) {
+        this.threadId = threadId;
+        this.ownerThread = new WeakReference<>(ownerThread);
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Create the file and map it.
+     *
+     * @param threadId    id of the thread which is going to write into the segment
+     * @param ownerThread the thread which is going to write into the segment
+     * @param file        new .selog file
+     * @param size        size of the mapping in bytes
+     * @return a segment ready for writing
+     * @throws IOException when the file cannot be created or mapped
+     */
+    static MappedEventSegment open(int threadId, Thread ownerThread, File file, int size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new MappedEventSegment(threadId, ownerThread, file, channel, buffer);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getThreadId() {
+        return threadId;
+    }
+
+    String getPath() {
+        return file.getPath();
+    }
+
+    boolean hasRoom(int recordLength) {
+        return buffer.remaining() >= recordLength;
+    }
+
+    boolean isOwnerAlive() {
+        Thread thread = ownerThread.get();
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Ask the owner thread to start a new segment before its next event.
+     */
+    void requestRotation() {
+        rotationRequested = true;
+    }
+
+    boolean isRotationRequested() {
+        return rotationRequested;
+    }
+
+    void writeEvent(long eventId, long timestamp, int probeId, long valueId) {
+        int position = buffer.position();
+        putHeader(position, eventId, timestamp, probeId, valueId, 0);
+        commit(position);
+    }
+
+    void writeEvent(long eventId, long timestamp, int probeId, long valueId, byte[] serializedValue) {
+        int position = buffer.position();
+        putHeader(position, eventId, timestamp, probeId, valueId, serializedValue.length);
+        buffer.put(serializedValue);
+        commit(position);
+    }
+
+    void writeEvent(long eventId, long timestamp, int probeId, long valueId,
+                    ByteArrayOutputStream serializedValue) throws IOException {
+        int position = buffer.position();
+        putHeader(position, eventId, timestamp, probeId, valueId, serializedValue.size());
+        serializedValue.writeTo(segmentOutputStream);
+        commit(position);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release the mapping, then truncate the file to the written records and close the channel. A file
+     * which is still mapped cannot be truncated on Windows. When the JVM offers no way to unmap, the
+     * mapping is left to the garbage collector and the truncation is tried anyway.
+     *
+     * @return length of the file after truncation
+     * @throws IOException when the file cannot be truncated
+     */
+    int close() throws IOException {
+        if (closed) {
+            return buffer.position();
+        }
+        closed = true;
+        int usedLength = buffer.position();
+        try {
+            BufferUnmapper.unmap(buffer);
+            channel.truncate(usedLength);
+        } finally {
+            channel.close();
+        }
+        return usedLength;
+    }
+
+    /**
+     * Finds the end of the complete records in the contents of a segment which was not closed. A record
+     * counts when its type byte is set and its serialized value lies within the segment.
+     *
+     * @param segment contents of the segment, from position 0 to its limit
+     * @return length of the complete records
+     */
+    static long findUsedLength(ByteBuffer segment) {
+        int position = 0;
+        int limit = segment.limit();
+        while (position + PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE <= limit) {
+            if (segment.get(position) != 7) {
+                break;
+            }
+            int length = segment.getInt(position + 29);
+            if (length < 0 || length > limit - position - PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE) {
+                break;
+            }
+            position += PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Leaves the type byte at zero and moves past the header.
+     */
+    private void putHeader(int position, long eventId, long timestamp, int probeId, long valueId, int length) {
+        buffer.putLong(position + 1, eventId);
+        buffer.putLong(position + 9, timestamp);
+        buffer.putInt(position + 17, probeId);
+        buffer.putLong(position + 21, valueId);
+        // the length of the serialized value is at byte 29 as an integer
+        buffer.putInt(position + 29, length);
+        buffer.position(position + PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE);
+    }
+
+    private void commit(int recordStart) {
+        buffer.put(recordStart, (byte) 7);
+    }
+
+    /**
+     * Lets ByteArrayOutputStream.writeTo copy its contents straight into the mapping.
+     */
+    private final class SegmentOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int length) {
+            buffer.put(source, offset, length);
+        }
+    }
+}
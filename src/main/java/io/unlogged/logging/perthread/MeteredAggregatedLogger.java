@@ -0,0 +1,93 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import io.unlogged.logging.util.AggregatedFileLogger;
+
+/**
+ * Counts the events handed to the writer in RecordingMetrics, per thread and per probe.
+ */
+public class MeteredAggregatedLogger implements AggregatedFileLogger {
+
+    // sizes of the type 4 and type 7 records in the fixed layout
+    private static final int EVENT_RECORD_SIZE = 29;
+    private static final int VALUE_EVENT_HEADER_SIZE = 33;
+
+    private final AggregatedFileLogger delegate;
+    private final RecordingMetrics recordingMetrics;
+
+    public MeteredAggregatedLogger(AggregatedFileLogger delegate, RecordingMetrics recordingMetrics) {
+        this.delegate = delegate;
+        this.recordingMetrics = recordingMetrics;
+    }
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        delegate.writeNewObjectType(id, typeId);
+    }
+
+    @Override
+    public void writeEvent(int id, long value) {
+        delegate.writeEvent(id, value);
+        recordingMetrics.countEvent(id, EVENT_RECORD_SIZE);
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        delegate.writeNewTypeRecord(typeId, typeName, toString);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return delegate.writeNewStackFrame(frameId, frameRecord);
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        delegate.writeNewException(objectId, exceptionRecord, frameIds);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        return delegate.writeNewBlob(blobHash, value);
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        delegate.writeWeaveInfo(byteArray);
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        delegate.shutdown();
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+        delegate.writeEvent(dataId, objectId, toByteArray);
+        recordingMetrics.countEvent(dataId, VALUE_EVENT_HEADER_SIZE + toByteArray.length);
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+        int size = outputStream.size();
+        delegate.writeEvent(dataId, objectId, outputStream);
+        recordingMetrics.countEvent(dataId, VALUE_EVENT_HEADER_SIZE + size);
+    }
+
+    @Override
+    public void errorLog(String message) {
+        delegate.errorLog(message);
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+        delegate.errorLog(throwable);
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        delegate.modifyThreadDepth(delta);
+    }
+}
@@ -0,0 +1,72 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.insidious.common.weaver.ClassInfo;
+import com.insidious.common.weaver.EventType;
+
+/**
+ * Which probes open and close a method call, read from the class weave info as classes are registered.
+ * <p>
+ * Kinds are kept in a byte array indexed by probe id which only grows. A class is registered before any of
+ * its probes fire, the array is republished through a volatile write after every registration.
+ */
+class MethodFrameProbes {
+
+    static final byte OTHER = 0;
+    static final byte METHOD_ENTRY = 1;
+    static final byte METHOD_EXIT = 2;
+
+    private volatile byte[] probeKinds = new byte[1024];
+
+    byte getKind(int probeId) {
+        byte[] kinds = probeKinds;
+        return probeId < kinds.length ? kinds[probeId] : OTHER;
+    }
+
+    /**
+     * @param weaveInfo class weave info written by Weaver.finishClassProcess, the ClassInfo followed by
+     *                  its probes
+     */
+    synchronized void registerClass(byte[] weaveInfo) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(weaveInfo);
+        new ClassInfo().readFromDataStream(in);
+        DataInputStream dataIn = new DataInputStream(in);
+        int probeCount = dataIn.readInt();
+        byte[] kinds = probeKinds;
+        for (int i = 0; i < probeCount; i++) {
+            dataIn.readInt(); // class id
+            dataIn.readInt(); // method id
+            int probeId = dataIn.readInt();
+            dataIn.readInt(); // line
+            dataIn.readInt(); // instruction index
+            int eventType = dataIn.readInt();
+            dataIn.readInt(); // value descriptor
+            dataIn.skipBytes(dataIn.readInt()); // attributes
+            byte kind = toKind(eventType);
+            if (kind == OTHER || probeId < 0) {
+                continue;
+            }
+            if (probeId >= kinds.length) {
+                byte[] grown = new byte[Math.max(kinds.length * 2, probeId + 1)];
+                System.arraycopy(kinds, 0, grown, 0, kinds.length);
+                kinds = grown;
+            }
+            kinds[probeId] = kind;
+        }
+        probeKinds = kinds;
+    }
+
+    private static byte toKind(int eventType) {
+        if (eventType == EventType.METHOD_ENTRY.ordinal()) {
+            return METHOD_ENTRY;
+        }
+        if (eventType == EventType.METHOD_NORMAL_EXIT.ordinal()
+                || eventType == EventType.METHOD_EXCEPTIONAL_EXIT.ordinal()) {
+            return METHOD_EXIT;
+        }
+        return OTHER;
+    }
+}
@@ -17,11 +17,11 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 import com.insidious.common.UploadFile;
 
 import io.unlogged.UnloggedMode;
+import io.unlogged.logging.EventRecordFormat;
 import io.unlogged.logging.IErrorLogger;
 import io.unlogged.logging.util.AggregatedFileLogger;
 import io.unlogged.logging.util.FileNameGenerator;
@@ -42,6 +42,10 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
      */
     public static final int MAX_EVENTS_PER_FILE = 100 * 1000;
     public static final int WRITE_BYTE_BUFFER_SIZE = 1024 * 10 * 16;
+    /**
+     * A file which has events is handed over for archiving once it is this old.
+     */
+    private static final long FILE_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(731);
     /**
      * This object records the number of threads observed by SELogger.
      */
@@ -49,16 +53,16 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 //    private static final int TASK_QUEUE_CAPACITY = 1024 * 1024 * 32;
 //    public final ArrayList<Byte> data = new ArrayList<>(1024 * 1024 * 4);
     /**
-     * Assign an integer to this thread.
+     * Assign an integer and an event sequence to this thread.
      */
-    private final ThreadLocal<Integer> threadId = ThreadLocal.withInitial(nextThreadId::getAndIncrement);
+    private final ThreadLocal<ThreadLogState> threadState = ThreadLocal.withInitial(this::createThreadState);
 
     private final BlockingQueue<UploadFile> fileList;
 
-    private final Map<Integer, OutputStream> threadFileMap = new ConcurrentHashMap<>();
-
-    private final Map<Integer, String> currentFileMap = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> count = new ConcurrentHashMap<>();
+    /**
+     * Per thread files and event counters, the rotation task closes the files of idle threads through these.
+     */
+    private final Map<Integer, ThreadLogState> threadStateMap = new ConcurrentHashMap<>();
     private final String hostname;
     private final FileNameGenerator fileNameGenerator;
     private final IErrorLogger errorLogger;
@@ -68,6 +72,8 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
         bytes[29] = 0;
         return bytes;
     });
+    private final ThreadLocal<byte[]> threadLocalCompactBuffer =
+            ThreadLocal.withInitial(() -> new byte[CompactEventFormat.MAX_HEADER_SIZE]);
 //    private final ThreadLocal<byte[]> threadLocalByteBuffer2 = ThreadLocal.withInitial(() -> {
 //        byte[] bytes = new byte[29];
 //        bytes[0] = 4;
@@ -76,12 +82,10 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
     //    private final Map<Integer, BloomFilter<Long>> valueIdFilterSet = new HashMap<>();
 //    private final Map<Integer, BloomFilter<Integer>> probeIdFilterSet = new HashMap<>();
 //    private final OffLoadTaskPayload[] TaskQueueArray = new OffLoadTaskPayload[TASK_QUEUE_CAPACITY];
-    private final AtomicLong eventId = new AtomicLong(0);
     ScheduledExecutorService threadPoolExecutor5Seconds = Executors.newScheduledThreadPool(2);
     ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(4);
     private long currentTimestamp = System.currentTimeMillis();
     private RawFileCollector fileCollector = null;
-    private FileEventCountThresholdChecker logFileTimeAgeChecker = null;
     // set to true when we are unable to upload files to the server
     // this is reset every 10 mins to check if server is online again
     // files are deleted from the disk while this is true
@@ -90,12 +94,12 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
     // when skipUploads is set to true due to 10 consecutive upload failures
     // a future is set reset skipUploads to false after 10 mins gap to check if server is back again
     private ScheduledFuture<?> skipResetFuture;
-    private boolean shutdown;
+    private volatile boolean shutdown;
     private DataOutputStream fileIndex;
     private int offloadTaskQueueReadIndex;
-    private ThreadLocal<ByteArrayOutputStream> baos = ThreadLocal.withInitial(ByteArrayOutputStream::new);
 	private long threadDepth = 0;
 	private UnloggedMode unloggedMode;
+    private final EventRecordFormat eventRecordFormat;
 
     /**
      * Create an instance of stream.
@@ -109,6 +113,24 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 			IErrorLogger logger,
             RawFileCollector fileCollector,
 			UnloggedMode unloggedMode) {
+        this(fileNameGenerator, logger, fileCollector, unloggedMode, EventRecordFormat.FIXED);
+    }
+
+    /**
+     * Create an instance of stream.
+     *
+     * @param fileNameGenerator file generator for output data
+     * @param logger            is to report errors that occur in this class.
+     * @param fileCollector     collects the dataEvent log files, creates indexes,
+     * @param eventRecordFormat layout of the event records in the files
+     */
+    public PerThreadBinaryFileAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            UnloggedMode unloggedMode,
+            EventRecordFormat eventRecordFormat) {
+        this.eventRecordFormat = eventRecordFormat;
 //        this.sessionId = sessionId;
         this.hostname = NetworkClient.getHostname();
         this.errorLogger = logger;
@@ -124,111 +146,117 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
         threadPoolExecutor.submit(fileCollector);
 //        threadPoolExecutor5Seconds.scheduleWithFixedDelay(fileCollector, 0, 1000, TimeUnit.SECONDS);
 
-        logFileTimeAgeChecker = new FileEventCountThresholdChecker(
-                threadFileMap, this,
-                (theThreadId) -> {
-                    try {
-                        currentTimestamp = System.currentTimeMillis();
-                        prepareNextFile(theThreadId);
-                    } catch (IOException e) {
-                        errorLogger.log(e);
-                    }
-                    return null;
-                }, errorLogger);
+        // threads which are writing rotate their own files, this only picks up the files of idle threads
         threadPoolExecutor5Seconds.
-                scheduleAtFixedRate(logFileTimeAgeChecker, 0, 731, TimeUnit.MILLISECONDS);
+                scheduleAtFixedRate(this::rotateIdleThreadFiles, 0, 731, TimeUnit.MILLISECONDS);
         // 731 because it
     }
 
 
-    private OutputStream getStreamForThread(int threadId) {
-        if (threadFileMap.containsKey(threadId)) {
-            return threadFileMap.get(threadId);
-        }
-        try {
-            prepareNextFile(threadId);
-        } catch (IOException e) {
-            errorLogger.log(e);
-        }
-        return threadFileMap.get(threadId);
+    private ThreadLogState createThreadState() {
+        ThreadLogState newThreadState = new ThreadLogState(nextThreadId.getAndIncrement());
+        threadStateMap.put(newThreadState.getThreadId(), newThreadState);
+        return newThreadState;
     }
 
-    private synchronized void prepareNextFile(int currentThreadId) throws IOException {
-
-//        errorLogger.log("prepare next file [" + currentThreadId + "]");
-
-        if (count.containsKey(currentThreadId) && threadFileMap.get(currentThreadId) != null) {
-            int eventCount = count.get(currentThreadId);
-            if (eventCount < 1) {
-                return;
-            }
+    /**
+     * Called by the owner thread before writing a record, waits only while the rotation task is closing
+     * the file of this thread. Rotates the current file when it is old enough, opens a new one if needed.
+     * Has to be paired with ThreadLogState.endWrite.
+     *
+     * @return the stream to write the record to
+     */
+    private OutputStream beginWrite(ThreadLogState currentThreadState, long timestamp) throws IOException {
+        currentThreadState.beginWrite();
+        if (currentThreadState.out != null && timestamp - currentThreadState.fileDeadline >= 0
+                && currentThreadState.getEventsInCurrentFile() > 0) {
+            closeCurrentFile(currentThreadState);
         }
+        if (currentThreadState.out == null) {
+            openNextFile(currentThreadState, timestamp);
+        }
+        return currentThreadState.out;
+    }
 
-        String currentFile = currentFileMap.get(currentThreadId);
-        OutputStream currentOutputStream = threadFileMap.get(currentThreadId);
-
+    /**
+     * Called by the side which holds the writer state of the thread, owner or rotation task.
+     */
+    private void openNextFile(ThreadLogState currentThreadState, long timestamp) throws IOException {
+        int currentThreadId = currentThreadState.getThreadId();
         File nextFile = fileNameGenerator.getNextFile(String.valueOf(currentThreadId));
-        currentFileMap.put(currentThreadId, nextFile.getPath());
-
-        BufferedOutputStream outNew = new BufferedOutputStream(Files.newOutputStream(nextFile.toPath()),
+        currentThreadState.currentFile = nextFile.getPath();
+        currentThreadState.out = new BufferedOutputStream(Files.newOutputStream(nextFile.toPath()),
                 WRITE_BYTE_BUFFER_SIZE);
-        threadFileMap.put(currentThreadId, outNew);
-
-        if (currentOutputStream != null) {
-//            errorLogger.log("flush existing file for thread [" + currentThreadId + "] -> " + currentFile);
-            try {
-                currentOutputStream.close();
-            } catch (ClosedChannelException cce) {
-                errorLogger.log("[unlogged] channel already closed - flush existing " +
-                        "file for " + "thread [" + currentThreadId + "] -> " + currentFile);
-            }
-
-
-//            BloomFilter<Long> valueIdBloomFilter = valueIdFilterSet.get(currentThreadId);
-//            BloomFilter<Integer> probeIdBloomFilter = probeIdFilterSet.get(currentThreadId);
-
-//            count.put(currentThreadId, new AtomicInteger(0));
-//            valueIdFilterSet.put(currentThreadId,
-//                    BloomFilterUtil.newBloomFilterForValues(BloomFilterUtil.BLOOM_FILTER_BIT_SIZE));
-//            probeIdFilterSet.put(currentThreadId,
-//                    BloomFilterUtil.newBloomFilterForProbes(BloomFilterUtil.BLOOM_FILTER_BIT_SIZE));
-
-            UploadFile newLogFile = new UploadFile(currentFile, currentThreadId, null,
-                    null);
-//            errorLogger.log("new log file complete: " + newLogFile.getPath());
-            fileList.offer(newLogFile);
-
+        currentThreadState.fileDeadline = timestamp + FILE_MAX_AGE_NANOS;
+        currentThreadState.markFileStart();
+    }
 
+    /**
+     * Called by the side which holds the writer state of the thread, owner or rotation task.
+     */
+    private void closeCurrentFile(ThreadLogState currentThreadState) throws IOException {
+        OutputStream currentOutputStream = currentThreadState.out;
+        currentThreadState.out = null;
+        try {
+            currentOutputStream.close();
+        } catch (ClosedChannelException cce) {
+            errorLogger.log("[unlogged] channel already closed - flush existing " +
+                    "file for " + "thread [" + currentThreadState.getThreadId() + "] -> "
+                    + currentThreadState.currentFile);
         }
+        UploadFile newLogFile = new UploadFile(currentThreadState.currentFile, currentThreadState.getThreadId(),
+                null, null);
+        fileList.offer(newLogFile);
+    }
 
-        if (shutdown) {
-            outNew.close();
-            return;
+    /**
+     * Scheduled every 731 ms. Closes the files which have events and are past their deadline, of threads
+     * which are not writing right now. A thread which is writing checks its deadline itself, so it is
+     * skipped instead of waited for. Threads which have finished are dropped once their file is closed.
+     */
+    private void rotateIdleThreadFiles() {
+        long now = System.nanoTime();
+        for (ThreadLogState currentThreadState : threadStateMap.values()) {
+            if (!currentThreadState.tryBeginRotation()) {
+                continue;
+            }
+            boolean ownerAlive = currentThreadState.isOwnerAlive();
+            try {
+                if (currentThreadState.out != null && currentThreadState.getEventsInCurrentFile() > 0
+                        && (!ownerAlive || now - currentThreadState.fileDeadline >= 0)) {
+                    closeCurrentFile(currentThreadState);
+                }
+            } catch (IOException e) {
+                errorLogger.log(e);
+            } finally {
+                currentThreadState.endRotation();
+            }
+            if (!ownerAlive && currentThreadState.out == null) {
+                threadStateMap.remove(currentThreadState.getThreadId());
+            }
         }
-
-        count.put(currentThreadId, 0);
-//        valueIdFilterSet.put(currentThreadId,
-//                BloomFilterUtil.newBloomFilterForValues(BloomFilterUtil.BLOOM_FILTER_BIT_SIZE));
-//        probeIdFilterSet.put(currentThreadId,
-//                BloomFilterUtil.newBloomFilterForProbes(BloomFilterUtil.BLOOM_FILTER_BIT_SIZE));
     }
 
     /**
      * Close the stream.
      */
     public void close() {
-        for (Map.Entry<Integer, OutputStream> threadStreamEntrySet : threadFileMap.entrySet()) {
-            OutputStream out = threadStreamEntrySet.getValue();
-            int streamTheadId = threadStreamEntrySet.getKey();
-            System.out.print("[unlogged] close file for thread [" + streamTheadId + "]\n");
+        for (ThreadLogState currentThreadState : threadStateMap.values()) {
+            // the owner thread holds the state for the length of a single write at most
+            while (!currentThreadState.tryBeginRotation()) {
+                Thread.yield();
+            }
             try {
-                out.close();
+                if (currentThreadState.out != null) {
+                    System.out.print("[unlogged] close file for thread [" + currentThreadState.getThreadId() + "]\n");
+                    closeCurrentFile(currentThreadState);
+                }
             } catch (IOException e) {
                 errorLogger.log(e);
+            } finally {
+                currentThreadState.endRotation();
             }
         }
-
-
     }
 
     public void writeNewObjectType(long id, long typeId) {
@@ -286,83 +314,133 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 			return;
 		}
 
+        if (shutdown) {
+            return;
+        }
 		long timestamp = System.nanoTime();
-        int currentThreadId = threadId.get();
+        ThreadLogState currentThreadState = threadState.get();
         try {
 
-            byte[] buffer = threadLocalByteBuffer.get();
-            buffer[0] = 7;
-
-
-            long currentEventId = getNextEventId();
-            buffer[1] = (byte) (currentEventId >>> 56);
-            buffer[2] = (byte) (currentEventId >>> 48);
-            buffer[3] = (byte) (currentEventId >>> 40);
-            buffer[4] = (byte) (currentEventId >>> 32);
-            buffer[5] = (byte) (currentEventId >>> 24);
-            buffer[6] = (byte) (currentEventId >>> 16);
-            buffer[7] = (byte) (currentEventId >>> 8);
-            buffer[8] = (byte) (currentEventId >>> 0);
-
-
-            buffer[9] = (byte) (timestamp >>> 56);
-            buffer[10] = (byte) (timestamp >>> 48);
-            buffer[11] = (byte) (timestamp >>> 40);
-            buffer[12] = (byte) (timestamp >>> 32);
-            buffer[13] = (byte) (timestamp >>> 24);
-            buffer[14] = (byte) (timestamp >>> 16);
-            buffer[15] = (byte) (timestamp >>> 8);
-            buffer[16] = (byte) (timestamp >>> 0);
-
-
-            buffer[17] = (byte) (probeId >>> 24);
-            buffer[18] = (byte) (probeId >>> 16);
-            buffer[19] = (byte) (probeId >>> 8);
-            buffer[20] = (byte) (probeId >>> 0);
-
-
-            buffer[21] = (byte) (valueId >>> 56);
-            buffer[22] = (byte) (valueId >>> 48);
-            buffer[23] = (byte) (valueId >>> 40);
-            buffer[24] = (byte) (valueId >>> 32);
-            buffer[25] = (byte) (valueId >>> 24);
-            buffer[26] = (byte) (valueId >>> 16);
-            buffer[27] = (byte) (valueId >>> 8);
-            buffer[28] = (byte) (valueId >>> 0);
-
-            // the length of the serialized value is at byte 29 as an integer
-            buffer[29] = (byte) (0);
-            buffer[30] = (byte) (0);
-            buffer[31] = (byte) (0);
-            buffer[32] = (byte) (0);
-
-
-            getStreamForThread(currentThreadId).write(buffer);
+            writeEventHeader(beginWrite(currentThreadState, timestamp), currentThreadState, timestamp, probeId,
+                    valueId, 0);
 
 //            fileCollector.addValueId(valueId);
 //            valueIdFilterSet.get(currentThreadId).add(valueId);
 //            probeIdFilterSet.get(currentThreadId).add(probeId);
 //            fileCollector.addProbeId(probeId);
-            if (getThreadEventCountAddAndGet(currentThreadId, 1) >= MAX_EVENTS_PER_FILE) {
-                prepareNextFile(currentThreadId);
+            if (currentThreadState.incrementEventCount() >= MAX_EVENTS_PER_FILE) {
+                closeCurrentFile(currentThreadState);
             }
 
 
         } catch (Exception e) {
             errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
         }
 //            System.err.println("Write new event - 4," + id + "," + value + " = " + this.bytesWritten);
 
     }
 
-    public synchronized long getNextEventId() {
-        return eventId.getAndIncrement();
+    /**
+     * Write the record header in the configured format, the serialized value of the given length has to
+     * be written right after it.
+     */
+    private void writeEventHeader(OutputStream out, ThreadLogState currentThreadState, long timestamp,
+                                  int probeId, long valueId, int length) throws IOException {
+        if (eventRecordFormat == EventRecordFormat.COMPACT) {
+            byte[] buffer = threadLocalCompactBuffer.get();
+            int headerLength = currentThreadState.encodeCompactHeader(buffer, out, timestamp, probeId, valueId,
+                    length);
+            out.write(buffer, 0, headerLength);
+            return;
+        }
+        byte[] buffer = threadLocalByteBuffer.get();
+        fillEventHeader(buffer, currentThreadState.nextEventId(), timestamp, probeId, valueId, length);
+        out.write(buffer);
+    }
+
+    /**
+     * Encode the 33 byte header of a type 7 event record, the serialized value of the given length
+     * follows the header in the file.
+     */
+    static void fillEventHeader(byte[] buffer, long eventId, long timestamp, int probeId, long valueId,
+                                int length) {
+        buffer[0] = 7;
+
+        buffer[1] = (byte) (eventId >>> 56);
+        buffer[2] = (byte) (eventId >>> 48);
+        buffer[3] = (byte) (eventId >>> 40);
+        buffer[4] = (byte) (eventId >>> 32);
+        buffer[5] = (byte) (eventId >>> 24);
+        buffer[6] = (byte) (eventId >>> 16);
+        buffer[7] = (byte) (eventId >>> 8);
+        buffer[8] = (byte) (eventId >>> 0);
+
+        buffer[9] = (byte) (timestamp >>> 56);
+        buffer[10] = (byte) (timestamp >>> 48);
+        buffer[11] = (byte) (timestamp >>> 40);
+        buffer[12] = (byte) (timestamp >>> 32);
+        buffer[13] = (byte) (timestamp >>> 24);
+        buffer[14] = (byte) (timestamp >>> 16);
+        buffer[15] = (byte) (timestamp >>> 8);
+        buffer[16] = (byte) (timestamp >>> 0);
+
+        buffer[17] = (byte) (probeId >>> 24);
+        buffer[18] = (byte) (probeId >>> 16);
+        buffer[19] = (byte) (probeId >>> 8);
+        buffer[20] = (byte) (probeId >>> 0);
+
+        buffer[21] = (byte) (valueId >>> 56);
+        buffer[22] = (byte) (valueId >>> 48);
+        buffer[23] = (byte) (valueId >>> 40);
+        buffer[24] = (byte) (valueId >>> 32);
+        buffer[25] = (byte) (valueId >>> 24);
+        buffer[26] = (byte) (valueId >>> 16);
+        buffer[27] = (byte) (valueId >>> 8);
+        buffer[28] = (byte) (valueId >>> 0);
+
+        // the length of the serialized value is at byte 29 as an integer
+        buffer[29] = (byte) (length >>> 24);
+        buffer[30] = (byte) (length >>> 16);
+        buffer[31] = (byte) (length >>> 8);
+        buffer[32] = (byte) (length >>> 0);
+    }
+
+    /**
+     * @return next event id of the calling thread, see EventIdUtil for how ids from different threads
+     * are ordered
+     */
+    public long getNextEventId() {
+        return threadState.get().nextEventId();
     }
 
     public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
         fileCollector.indexTypeEntry(typeId, typeName, toString);
     }
 
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return fileCollector.indexStackFrame(frameId, frameRecord);
+    }
+
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        if (skipUploads) {
+            return;
+        }
+        fileCollector.indexExceptionEntry(objectId, exceptionRecord, frameIds);
+    }
+
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        if (skipUploads) {
+            return false;
+        }
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // the event is not going to be written, it must not hold the value in the collector
+            return false;
+        }
+        return fileCollector.indexBlob(blobHash, value);
+    }
+
     public void writeWeaveInfo(byte[] byteArray) {
         fileCollector.addClassWeaveInfo(byteArray);
     }
@@ -372,9 +450,10 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
         skipUploads = true;
         shutdown = true;
 
-        logFileTimeAgeChecker.shutdown();
-        fileCollector.shutdown();
         threadPoolExecutor5Seconds.shutdown();
+        threadPoolExecutor5Seconds.awaitTermination(1, TimeUnit.SECONDS);
+        close();
+        fileCollector.shutdown();
         threadPoolExecutor.shutdown();
     }
 
@@ -394,33 +473,27 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 			return;
 		}
 
+        if (shutdown) {
+            return;
+        }
 		long timestamp = System.nanoTime();
-		int currentThreadId = threadId.get();
+        ThreadLogState currentThreadState = threadState.get();
 
         try {
 
-            ByteArrayOutputStream boasTh = baos.get();
-            boasTh.reset();
-            DataOutputStream dos = new DataOutputStream(boasTh);
-
-
-            dos.write(7);
-            dos.writeLong(getNextEventId());
-            dos.writeLong(timestamp);
-            dos.writeInt(probeId);
-            dos.writeLong(valueId);
-            dos.writeInt(toByteArray.length);
-            dos.write(toByteArray);
-
-
-            getStreamForThread(currentThreadId).write(boasTh.toByteArray());
-            if (getThreadEventCountAddAndGet(currentThreadId, 1) >= MAX_EVENTS_PER_FILE) {
-                prepareNextFile(currentThreadId);
+            // header and payload go straight into the buffered stream of the thread
+            OutputStream out = beginWrite(currentThreadState, timestamp);
+            writeEventHeader(out, currentThreadState, timestamp, probeId, valueId, toByteArray.length);
+            out.write(toByteArray);
+            if (currentThreadState.incrementEventCount() >= MAX_EVENTS_PER_FILE) {
+                closeCurrentFile(currentThreadState);
             }
 
 
         } catch (IOException e) {
             errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
         }
     }
 
@@ -432,28 +505,20 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 			return;
 		}
 
+        if (shutdown) {
+            return;
+        }
         long timestamp = System.nanoTime();
-		int currentThreadId = threadId.get();
+        ThreadLogState currentThreadState = threadState.get();
         try {
 
-            ByteArrayOutputStream baosTh = baos.get();
-            baosTh.reset();
-            DataOutputStream dos = new DataOutputStream(baosTh);
-
-
-            dos.write(7);
-            dos.writeLong(getNextEventId());
-            dos.writeLong(timestamp);
-            dos.writeInt(probeId);
-            dos.writeLong(valueId);
-            dos.writeInt(outputStream.size());
-            outputStream.writeTo(dos);
-            outputStream.flush();
+            OutputStream out = beginWrite(currentThreadState, timestamp);
+            writeEventHeader(out, currentThreadState, timestamp, probeId, valueId, outputStream.size());
+            outputStream.writeTo(out);
 
-
-            getStreamForThread(currentThreadId).write(baosTh.toByteArray());
-
-            getThreadEventCountAddAndGet(currentThreadId, 1);
+            if (currentThreadState.incrementEventCount() >= MAX_EVENTS_PER_FILE) {
+                closeCurrentFile(currentThreadState);
+            }
 //            valueIdFilterSet.get(currentThreadId).add(valueId);
 //            probeIdFilterSet.get(currentThreadId).add(probeId);
 //            fileCollector.addValueId(valueId);
@@ -462,6 +527,8 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 
         } catch (IOException e) {
             errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
         }
     }
 
@@ -477,26 +544,15 @@ public class PerThreadBinaryFileAggregatedLogger implements AggregatedFileLogger
 
     @Override
     public int getThreadEventCount(int currentThreadId) {
-        if (!count.containsKey(currentThreadId)) {
-            count.put(currentThreadId, 0);
+        ThreadLogState currentThreadState = threadStateMap.get(currentThreadId);
+        if (currentThreadState == null) {
+            return 0;
         }
-        return count.get(currentThreadId);
+        return currentThreadState.getEventsInCurrentFile();
     }
 
 	@Override
 	public void modifyThreadDepth(long delta) {
 		this.threadDepth += delta;
 	}
-
-    public int getThreadEventCountAddAndGet(int currentThreadId, int incVal) {
-        if (!count.containsKey(currentThreadId)) {
-            count.put(currentThreadId, incVal);
-            return incVal;
-        }
-
-        int countOldVal = count.get(currentThreadId);
-        int value = countOldVal + incVal;
-        count.put(currentThreadId, value);
-        return value;
-    }
 }
@@ -0,0 +1,423 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.insidious.common.UploadFile;
+
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.IErrorLogger;
+import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.FileNameGenerator;
+
+/**
+ * Writes the same per thread .selog files as PerThreadBinaryFileAggregatedLogger, through a
+ * MappedEventSegment per thread instead of a BufferedOutputStream. Events are stored straight into the
+ * mapped file by the application thread, there is no intermediate buffer to copy and no flush call.
+ * <p>
+ * A segment is sized for MAX_EVENTS_PER_FILE records without serialized data. The owner thread swaps in a
+ * new segment when the current one is full or has MAX_EVENTS_PER_FILE events. The periodic
+ * FileEventCountThresholdChecker ships the segments of threads which are not writing right now, idle or
+ * ended, taking them over through the ThreadLogState handoff, and asks threads which are writing to
+ * rotate on their next event. A closed segment is unmapped, truncated to its used length and queued to
+ * the RawFileCollector.
+ * <p>
+ * Segments left in the output directory by a process which died are cut back to their complete records
+ * and queued before anything else, see recoverLeftoverSegments.
+ */
+public class PerThreadMappedSegmentAggregatedLogger implements AggregatedFileLogger, ThreadEventCountProvider {
+
+    public static final int SEGMENT_SIZE =
+            PerThreadBinaryFileAggregatedLogger.MAX_EVENTS_PER_FILE * PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE;
+    private static final AtomicInteger nextThreadId = new AtomicInteger(0);
+
+    private final ThreadLocal<ThreadLogState> threadState = ThreadLocal.withInitial(this::createThreadState);
+    private final Map<Integer, ThreadLogState> threadStateMap = new ConcurrentHashMap<>();
+    private final Map<Integer, MappedEventSegment> segmentMap = new ConcurrentHashMap<>();
+    private final BlockingQueue<UploadFile> fileList;
+    private final FileNameGenerator fileNameGenerator;
+    private final IErrorLogger errorLogger;
+    private final RawFileCollector fileCollector;
+    private final UnloggedMode unloggedMode;
+    private final FileEventCountThresholdChecker logFileTimeAgeChecker;
+    private final ScheduledExecutorService threadPoolExecutor5Seconds = Executors.newScheduledThreadPool(1);
+    private final ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(1);
+    private volatile boolean shutdown;
+    private long threadDepth = 0;
+
+    /**
+     * Create an instance of the memory mapped writer.
+     *
+     * @param fileNameGenerator file generator for output data
+     * @param logger            is to report errors that occur in this class.
+     * @param fileCollector     collects the dataEvent log files, creates indexes,
+     * @param unloggedMode      recording mode of the agent
+     */
+    public PerThreadMappedSegmentAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            UnloggedMode unloggedMode) {
+        this(fileNameGenerator, logger, fileCollector, fileCollector.getFileQueue(), unloggedMode);
+    }
+
+    /**
+     * @param fileList queue the closed segments are shipped to
+     */
+    PerThreadMappedSegmentAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            BlockingQueue<UploadFile> fileList,
+            UnloggedMode unloggedMode) {
+        this.errorLogger = logger;
+        this.fileNameGenerator = fileNameGenerator;
+        this.fileCollector = fileCollector;
+        this.fileList = fileList;
+        this.unloggedMode = unloggedMode;
+
+        recoverLeftoverSegments();
+        threadPoolExecutor.submit(fileCollector);
+
+        logFileTimeAgeChecker = new FileEventCountThresholdChecker(
+                segmentMap, this,
+                (theThreadId) -> {
+                    expireSegment(theThreadId);
+                    return null;
+                }, errorLogger);
+        threadPoolExecutor5Seconds.scheduleAtFixedRate(logFileTimeAgeChecker, 0, 731, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cut a segment which was never closed back to its complete records. The file keeps its full mapped
+     * size after a crash, the records after the first zero type byte were never written.
+     *
+     * @param segmentFile the .selog file of the segment
+     * @return length of the file after truncation
+     * @throws IOException when the file cannot be read or truncated
+     */
+    public static long recoverSegment(File segmentFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long usedLength = MappedEventSegment.findUsedLength(contents);
+            // a file which is still mapped cannot be truncated on Windows
+            BufferUnmapper.unmap(contents);
+            channel.truncate(usedLength);
+            return usedLength;
+        }
+    }
+
+    /**
+     * Recover the segments a previous process left in the output directory and queue them ahead of the
+     * segments of this process. They are moved into a directory of their own first, this process numbers
+     * its files from the start again and would otherwise create the same file names. Empty segments are
+     * deleted.
+     */
+    private void recoverLeftoverSegments() {
+        File outputDir = new File(fileNameGenerator.getOutputDir());
+        String prefix = fileNameGenerator.getPrefix();
+        String suffix = fileNameGenerator.getSuffix();
+        File[] leftoverFiles = outputDir.listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (leftoverFiles == null || leftoverFiles.length == 0) {
+            return;
+        }
+        Arrays.sort(leftoverFiles);
+        File recoveredDir = new File(outputDir, "recovered-" + System.currentTimeMillis());
+        if (!recoveredDir.mkdirs()) {
+            errorLogger.log("failed to create directory for recovered segments: " + recoveredDir);
+            return;
+        }
+        for (File leftoverFile : leftoverFiles) {
+            try {
+                File recoveredFile = new File(recoveredDir, leftoverFile.getName());
+                Files.move(leftoverFile.toPath(), recoveredFile.toPath());
+                if (recoverSegment(recoveredFile) == 0) {
+                    Files.delete(recoveredFile.toPath());
+                    continue;
+                }
+                errorLogger.log("recovered segment: " + recoveredFile);
+                fileList.offer(new UploadFile(recoveredFile.getPath(),
+                        threadIdOf(leftoverFile.getName(), prefix, suffix), null, null));
+            } catch (IOException e) {
+                errorLogger.log(e);
+            }
+        }
+    }
+
+    /**
+     * @return the thread id in a name made by FileNameGenerator.getNextFile(threadId), 0 when there is none
+     */
+    private static long threadIdOf(String fileName, String prefix, String suffix) {
+        String name = fileName.substring(prefix.length(), fileName.length() - suffix.length());
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('-') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private ThreadLogState createThreadState() {
+        ThreadLogState newThreadState = new ThreadLogState(nextThreadId.getAndIncrement());
+        threadStateMap.put(newThreadState.getThreadId(), newThreadState);
+        return newThreadState;
+    }
+
+    /**
+     * Called by the owner thread before writing a record, waits only while the rotation task is closing
+     * the segment of this thread. Swaps in a new segment when the record does not fit into the current one
+     * or when a rotation is due. Has to be paired with ThreadLogState.endWrite.
+     *
+     * @return the segment to write the record to, null after shutdown
+     */
+    private MappedEventSegment beginWrite(ThreadLogState currentThreadState, int recordLength)
+            throws IOException {
+        currentThreadState.beginWrite();
+        if (shutdown) {
+            // the segments were closed by shutdown, which holds the writer state of every thread to do so
+            return null;
+        }
+        int currentThreadId = currentThreadState.getThreadId();
+        MappedEventSegment segment = segmentMap.get(currentThreadId);
+        if (segment != null && segment.hasRoom(recordLength) && !segment.isRotationRequested()
+                && currentThreadState.getEventsInCurrentFile() < PerThreadBinaryFileAggregatedLogger.MAX_EVENTS_PER_FILE) {
+            return segment;
+        }
+        if (segment != null) {
+            segmentMap.remove(currentThreadId);
+            closeSegment(segment);
+        }
+        File nextFile = fileNameGenerator.getNextFile(String.valueOf(currentThreadId));
+        MappedEventSegment nextSegment = MappedEventSegment.open(currentThreadId, Thread.currentThread(),
+                nextFile, Math.max(SEGMENT_SIZE, recordLength));
+        segmentMap.put(currentThreadId, nextSegment);
+        currentThreadState.markFileStart();
+        return nextSegment;
+    }
+
+    private void closeSegment(MappedEventSegment segment) throws IOException {
+        segment.close();
+        fileList.offer(new UploadFile(segment.getPath(), segment.getThreadId(), null, null));
+    }
+
+    /**
+     * Called by FileEventCountThresholdChecker for threads with events in their current segment. The
+     * segment of a thread which is not writing right now is taken over and shipped, a thread which is
+     * writing is asked to rotate on its next event instead of being waited for.
+     */
+    void expireSegment(int theThreadId) {
+        ThreadLogState currentThreadState = threadStateMap.get(theThreadId);
+        if (currentThreadState == null) {
+            return;
+        }
+        if (!currentThreadState.tryBeginRotation()) {
+            MappedEventSegment segment = segmentMap.get(theThreadId);
+            if (segment != null) {
+                segment.requestRotation();
+            }
+            return;
+        }
+        boolean ownerAlive = currentThreadState.isOwnerAlive();
+        try {
+            closeSegmentOf(currentThreadState);
+        } finally {
+            currentThreadState.endRotation();
+        }
+        if (!ownerAlive) {
+            threadStateMap.remove(theThreadId);
+        }
+    }
+
+    /**
+     * Called by the side which holds the writer state of the thread.
+     */
+    private void closeSegmentOf(ThreadLogState currentThreadState) {
+        MappedEventSegment segment = segmentMap.remove(currentThreadState.getThreadId());
+        if (segment == null) {
+            return;
+        }
+        try {
+            closeSegment(segment);
+        } catch (IOException e) {
+            errorLogger.log(e);
+        }
+    }
+
+    /**
+     * Ship the segments of all threads and stop writing. Waits for each thread to finish the record it is
+     * writing, threads which write afterwards see the shutdown flag and drop their events.
+     */
+    public void close() {
+        shutdown = true;
+        for (ThreadLogState currentThreadState : threadStateMap.values()) {
+            // the owner thread holds the state for the length of a single write at most
+            while (!currentThreadState.tryBeginRotation()) {
+                Thread.yield();
+            }
+            try {
+                closeSegmentOf(currentThreadState);
+            } finally {
+                currentThreadState.endRotation();
+            }
+        }
+    }
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        fileCollector.indexObjectTypeEntry(id, (int) typeId);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        if (shutdown) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        ThreadLogState currentThreadState = threadState.get();
+        try {
+            MappedEventSegment segment = beginWrite(currentThreadState,
+                    PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE);
+            if (segment != null) {
+                segment.writeEvent(currentThreadState.nextEventId(), timestamp, probeId, valueId);
+                currentThreadState.incrementEventCount();
+            }
+        } catch (IOException e) {
+            errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
+        }
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, byte[] toByteArray) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        if (shutdown) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        ThreadLogState currentThreadState = threadState.get();
+        try {
+            MappedEventSegment segment = beginWrite(currentThreadState,
+                    PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + toByteArray.length);
+            if (segment != null) {
+                segment.writeEvent(currentThreadState.nextEventId(), timestamp, probeId, valueId, toByteArray);
+                currentThreadState.incrementEventCount();
+            }
+        } catch (IOException e) {
+            errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
+        }
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, ByteArrayOutputStream outputStream) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        if (shutdown) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        ThreadLogState currentThreadState = threadState.get();
+        try {
+            MappedEventSegment segment = beginWrite(currentThreadState,
+                    PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + outputStream.size());
+            if (segment != null) {
+                segment.writeEvent(currentThreadState.nextEventId(), timestamp, probeId, valueId, outputStream);
+                currentThreadState.incrementEventCount();
+            }
+        } catch (IOException e) {
+            errorLogger.log(e);
+        } finally {
+            currentThreadState.endWrite();
+        }
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        fileCollector.indexTypeEntry(typeId, typeName, toString);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return fileCollector.indexStackFrame(frameId, frameRecord);
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        fileCollector.indexExceptionEntry(objectId, exceptionRecord, frameIds);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // the event is not going to be written, it must not hold the value in the collector
+            return false;
+        }
+        return fileCollector.indexBlob(blobHash, value);
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        fileCollector.addClassWeaveInfo(byteArray);
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        System.err.println("[unlogged] shutdown mapped segment logger");
+        shutdown = true;
+        threadPoolExecutor5Seconds.shutdown();
+        threadPoolExecutor5Seconds.awaitTermination(1, TimeUnit.SECONDS);
+        close();
+        fileCollector.shutdown();
+        threadPoolExecutor.shutdown();
+    }
+
+    @Override
+    public void errorLog(String message) {
+        errorLogger.log(message);
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+        errorLogger.log(throwable);
+    }
+
+    @Override
+    public int getThreadEventCount(int currentThreadId) {
+        ThreadLogState currentThreadState = threadStateMap.get(currentThreadId);
+        if (currentThreadState == null) {
+            return 0;
+        }
+        return currentThreadState.getEventsInCurrentFile();
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        this.threadDepth += delta;
+    }
+}
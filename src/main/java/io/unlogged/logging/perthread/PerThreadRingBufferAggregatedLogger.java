@@ -0,0 +1,273 @@
+package io.unlogged.logging.perthread;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.insidious.common.UploadFile;
+
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.IErrorLogger;
+import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.FileNameGenerator;
+
+/**
+ * Writes the same per thread .selog files as PerThreadBinaryFileAggregatedLogger, but the application
+ * thread never touches a file.
+ * <p>
+ * Every application thread gets a preallocated ThreadEventRingBuffer and only encodes its events into
+ * it. A single drainer thread moves the published records into the .selog file of each thread, rotates
+ * the files after MAX_EVENTS_PER_FILE records or FILE_MAX_AGE_MILLIS, and hands completed files to the
+ * RawFileCollector. When a ring is full the event is dropped and counted instead of blocking the
+ * application thread, dropped counts are reported to the error log.
+ */
+public class PerThreadRingBufferAggregatedLogger implements AggregatedFileLogger {
+
+    /**
+     * Size of an event record without serialized data.
+     */
+    public static final int EVENT_RECORD_SIZE = 33;
+    /**
+     * Ring size per application thread, about 8K events without serialized values.
+     */
+    public static final int RING_BUFFER_SIZE = 1024 * 256;
+    public static final long MAX_BYTES_PER_FILE =
+            (long) PerThreadBinaryFileAggregatedLogger.MAX_EVENTS_PER_FILE * EVENT_RECORD_SIZE;
+    /**
+     * Files with events are closed and sent for archiving after this long, same as the age limit of
+     * file rotation in the stream writer.
+     */
+    public static final long FILE_MAX_AGE_MILLIS = 731;
+    private static final long DRAIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final AtomicInteger nextThreadId = new AtomicInteger(0);
+
+    private final Map<Integer, ThreadEventRingBuffer> ringBufferMap = new ConcurrentHashMap<>();
+    private final ThreadLocal<ThreadEventRingBuffer> threadRingBuffer =
+            ThreadLocal.withInitial(this::createRingBuffer);
+    private final BlockingQueue<UploadFile> fileList;
+    private final FileNameGenerator fileNameGenerator;
+    private final IErrorLogger errorLogger;
+    private final RawFileCollector fileCollector;
+    private final UnloggedMode unloggedMode;
+    private final ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(2);
+    private final Future<?> drainer;
+    private volatile boolean shutdown;
+    private long threadDepth = 0;
+
+    /**
+     * Create an instance of the ring buffer writer and start the drainer thread.
+     *
+     * @param fileNameGenerator file generator for output data
+     * @param logger            is to report errors that occur in this class.
+     * @param fileCollector     collects the dataEvent log files, creates indexes,
+     * @param unloggedMode      recording mode of the agent
+     */
+    public PerThreadRingBufferAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            UnloggedMode unloggedMode) {
+        this.errorLogger = logger;
+        this.fileNameGenerator = fileNameGenerator;
+        this.fileCollector = fileCollector;
+        this.fileList = fileCollector.getFileQueue();
+        this.unloggedMode = unloggedMode;
+
+        threadPoolExecutor.submit(fileCollector);
+        drainer = threadPoolExecutor.submit(new RingBufferDrainer());
+    }
+
+    private ThreadEventRingBuffer createRingBuffer() {
+        int newThreadId = nextThreadId.getAndIncrement();
+        ThreadEventRingBuffer ringBuffer =
+                new ThreadEventRingBuffer(newThreadId, Thread.currentThread(), RING_BUFFER_SIZE);
+        ringBufferMap.put(newThreadId, ringBuffer);
+        return ringBuffer;
+    }
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        fileCollector.indexObjectTypeEntry(id, (int) typeId);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        long timestamp = System.nanoTime();
+        threadRingBuffer.get().writeEvent(timestamp, probeId, valueId);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, byte[] toByteArray) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        long timestamp = System.nanoTime();
+        threadRingBuffer.get().writeEvent(timestamp, probeId, valueId, toByteArray);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, ByteArrayOutputStream outputStream) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        long timestamp = System.nanoTime();
+        try {
+            threadRingBuffer.get().writeEvent(timestamp, probeId, valueId, outputStream);
+        } catch (IOException e) {
+            errorLogger.log(e);
+        }
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        fileCollector.indexTypeEntry(typeId, typeName, toString);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return fileCollector.indexStackFrame(frameId, frameRecord);
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        fileCollector.indexExceptionEntry(objectId, exceptionRecord, frameIds);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // the event is not going to be written, it must not hold the value in the collector
+            return false;
+        }
+        return fileCollector.indexBlob(blobHash, value);
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        fileCollector.addClassWeaveInfo(byteArray);
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        System.err.println("[unlogged] shutdown ring buffer logger");
+        shutdown = true;
+        try {
+            // the rings have a single consumer, the final drain waits for the drainer to leave
+            drainer.get();
+        } catch (ExecutionException e) {
+            errorLogger.log(e.getCause());
+        }
+        // drainer has stopped, move whatever is left and close all the files
+        drainRingBuffers(true);
+        fileCollector.shutdown();
+        threadPoolExecutor.shutdown();
+    }
+
+    @Override
+    public void errorLog(String message) {
+        errorLogger.log(message);
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+        errorLogger.log(throwable);
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        this.threadDepth += delta;
+    }
+
+    /**
+     * Move published records from every ring into the thread's file. Runs on the drainer thread, or on
+     * the shutdown thread once the drainer has stopped.
+     *
+     * @param closeAll close every file after draining, used at shutdown
+     * @return number of bytes moved
+     */
+    private int drainRingBuffers(boolean closeAll) {
+        int drainedBytes = 0;
+        long now = System.currentTimeMillis();
+        for (ThreadEventRingBuffer ringBuffer : ringBufferMap.values()) {
+            try {
+                boolean ownerAlive = ringBuffer.isOwnerAlive();
+                if (ringBuffer.hasPendingData()) {
+                    if (ringBuffer.out == null) {
+                        openNextFile(ringBuffer, now);
+                    }
+                    int drained = ringBuffer.drainTo(ringBuffer.out);
+                    ringBuffer.bytesInFile += drained;
+                    drainedBytes += drained;
+                }
+
+                if (ringBuffer.out != null && (closeAll || !ownerAlive
+                        || ringBuffer.bytesInFile >= MAX_BYTES_PER_FILE
+                        || now - ringBuffer.fileOpenedAt >= FILE_MAX_AGE_MILLIS)) {
+                    closeCurrentFile(ringBuffer);
+                }
+
+                if (!ownerAlive && !ringBuffer.hasPendingData()) {
+                    ringBufferMap.remove(ringBuffer.getThreadId());
+                }
+            } catch (IOException e) {
+                errorLogger.log(e);
+            }
+        }
+        return drainedBytes;
+    }
+
+    private void openNextFile(ThreadEventRingBuffer ringBuffer, long now) throws IOException {
+        File nextFile = fileNameGenerator.getNextFile(String.valueOf(ringBuffer.getThreadId()));
+        ringBuffer.currentFile = nextFile.getPath();
+        ringBuffer.out = new BufferedOutputStream(Files.newOutputStream(nextFile.toPath()),
+                PerThreadBinaryFileAggregatedLogger.WRITE_BYTE_BUFFER_SIZE);
+        ringBuffer.bytesInFile = 0;
+        ringBuffer.fileOpenedAt = now;
+    }
+
+    private void closeCurrentFile(ThreadEventRingBuffer ringBuffer) throws IOException {
+        ringBuffer.out.close();
+        ringBuffer.out = null;
+        fileList.offer(new UploadFile(ringBuffer.currentFile, ringBuffer.getThreadId(), null, null));
+
+        long droppedEvents = ringBuffer.getDroppedEvents();
+        if (droppedEvents != ringBuffer.reportedDroppedEvents) {
+            errorLogger.log("[unlogged] ring buffer full for thread [" + ringBuffer.getThreadId() + "], dropped ["
+                    + (droppedEvents - ringBuffer.reportedDroppedEvents) + "] events");
+            ringBuffer.reportedDroppedEvents = droppedEvents;
+        }
+    }
+
+    private class RingBufferDrainer implements Runnable {
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    if (drainRingBuffers(false) == 0) {
+                        LockSupport.parkNanos(DRAIN_IDLE_PARK_NANOS);
+                    }
+                } catch (Throwable e) {
+                    errorLogger.log(e);
+                }
+            }
+        }
+    }
+}
@@ -4,25 +4,41 @@ import com.insidious.common.UploadFile;
 import com.insidious.common.cqengine.ObjectInfoDocument;
 import com.insidious.common.cqengine.StringInfoDocument;
 import com.insidious.common.cqengine.TypeInfoDocument;
+import io.unlogged.logging.BackpressurePolicy;
 import io.unlogged.logging.IErrorLogger;
 import io.unlogged.logging.util.FileNameGenerator;
 import io.unlogged.logging.util.NetworkClient;
+import io.unlogged.logging.util.ValueBlobs;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
 
 public class RawFileCollector implements Runnable {
     public static final int MAX_CONSECUTIVE_FAILURE_COUNT = 10;
     public static final int FAILURE_SLEEP_DELAY = 10;
+    /**
+     * Estimated memory the stack frames may take, apart from the memory budget of the queued entries
+     */
+    public static final long STACK_FRAME_MEMORY_LIMIT = 32L * 1024 * 1024;
     public static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(4);
     private final IErrorLogger errorLogger;
     private final BlockingQueue<UploadFile> fileList;
@@ -38,8 +54,26 @@ public class RawFileCollector implements Runnable {
     private final File outputDir;
     private final BlockingQueue<StringInfoDocument> stringsToIndex;
     private final BlockingQueue<ObjectInfoDocument> objectsToIndex;
+    private final BlockingQueue<ExceptionRecord> exceptionsToIndex;
+    /**
+     * Records of every stack frame seen, by frame ID, each archive copies the ones its exceptions use.
+     */
+    private final Map<Integer, byte[]> stackFrames = new ConcurrentHashMap<>();
+    private final AtomicLong stackFrameBytes = new AtomicLong(0);
+    /**
+     * Values referred to by events of log files which are not archived yet, by hash. A value is removed
+     * when the last of these files is archived.
+     */
+    private final Map<ByteBuffer, ValueBlob> blobStore = new ConcurrentHashMap<>();
     private final ArchiveCloser archiveCloser;
+    private final LogFileCompressor logFileCompressor;
+    private final RecordingPressure recordingPressure;
+    private final RecordingMetrics recordingMetrics;
     private final BlockingQueue<ArchivedIndexWriter> archiveQueue = new ArrayBlockingQueue<>(100);
+    /**
+     * How the recorded values are encoded, written into every archive for its readers
+     */
+    private final Properties archiveMetadata = new Properties();
     public int filesPerArchive = 0;
     private boolean shutdown = false;
     private boolean shutdownComplete = false;
@@ -53,15 +87,41 @@ public class RawFileCollector implements Runnable {
                             NetworkClient networkClient,
                             IErrorLogger errorLogger,
                             File outputDir) throws IOException {
+        this(filesPerArchive, indexFileNameGenerator, networkClient, errorLogger, outputDir, 0,
+                new RecordingPressure(BackpressurePolicy.DROP_NEWEST, RecordingPressure.DEFAULT_MEMORY_BUDGET,
+                        getDefaultFileBacklogLimit(filesPerArchive)));
+    }
+
+    /**
+     * @param compressionWorkerCount when more than zero, completed log files are compressed by a
+     *                               LogFileCompressor with this many workers before they are archived
+     * @param recordingPressure      memory budget and backpressure policy for the queues of this collector
+     */
+    public RawFileCollector(int filesPerArchive,
+                            FileNameGenerator indexFileNameGenerator,
+                            NetworkClient networkClient,
+                            IErrorLogger errorLogger,
+                            File outputDir,
+                            int compressionWorkerCount,
+                            RecordingPressure recordingPressure) throws IOException {
         this.filesPerArchive = filesPerArchive;
+        this.recordingPressure = recordingPressure;
+        this.recordingMetrics = new RecordingMetrics(recordingPressure, this::getQueueDepths);
         this.networkClient = networkClient;
         this.indexFileNameGenerator = indexFileNameGenerator;
         this.errorLogger = errorLogger;
-        this.fileList = new ArrayBlockingQueue<>(1024 * 128);
+        this.fileList = new PipelineFileQueue(1024 * 128);
         this.typeInfoDocuments = new ArrayBlockingQueue<>(1024 * 1024);
         typesToIndex = new ArrayBlockingQueue<>(1024 * 1024);
         stringsToIndex = new ArrayBlockingQueue<>(1024 * 1024);
         objectsToIndex = new ArrayBlockingQueue<>(1024 * 1024);
+        exceptionsToIndex = new ArrayBlockingQueue<>(64 * 1024);
+        if (compressionWorkerCount > 0) {
+            logFileCompressor = new LogFileCompressor(fileList, compressionWorkerCount, errorLogger);
+            archiveMetadata.setProperty(ArchivedIndexWriter.META_LOG_ENCODING, "gzip");
+        } else {
+            logFileCompressor = null;
+        }
 
         this.outputDir = outputDir;
 //        errorLogger.log("Created raw file collector, files per archive: " + filesPerArchive);
@@ -74,13 +134,20 @@ public class RawFileCollector implements Runnable {
 
     private final Lock archiveSwapLock = new ReentrantLock();
 
+    /**
+     * Completed log files waiting to be archived before the pipeline counts as behind.
+     */
+    public static int getDefaultFileBacklogLimit(int filesPerArchive) {
+        return Math.max(64, filesPerArchive * 4);
+    }
+
     private void finalizeArchiveAndUpload() throws IOException {
 
 
         archiveSwapLock.lock();
         ArchivedIndexWriter archivedIndexWriterOld = archivedIndexWriter;
         archivedIndexWriter = new ArchivedIndexWriter(indexFileNameGenerator.getNextFile(),
-                outputDir + "/class.weave.dat", errorLogger);
+                outputDir + "/class.weave.dat", archiveMetadata, errorLogger);
         archiveSwapLock.unlock();
 
         fileCount = 0;
@@ -101,6 +168,8 @@ public class RawFileCollector implements Runnable {
                 if (shutdown) {
                     return;
                 }
+                recordingPressure.reportDrops(errorLogger);
+                recordingMetrics.sample();
                 try {
                     EXECUTOR_SERVICE.submit(() -> {
                         try {
@@ -126,6 +195,13 @@ public class RawFileCollector implements Runnable {
 
 
     public void shutdown() {
+        if (logFileCompressor != null) {
+            try {
+                logFileCompressor.shutdown();
+            } catch (InterruptedException e) {
+                errorLogger.log("interrupted while stopping log file compressor");
+            }
+        }
         shutdown = true;
         errorLogger.log("shutting down raw file collector");
         EXECUTOR_SERVICE.shutdownNow();
@@ -138,6 +214,7 @@ public class RawFileCollector implements Runnable {
         try {
 //            errorLogger.log("wait for log file");
             UploadFile logFile = fileList.poll(1, TimeUnit.SECONDS);
+            recordingPressure.setPendingFiles(getPendingFileCount());
 //            errorLogger.log("got log file");
             if (logFile == null) {
                 if (fileCount > 0 || shutdown) {
@@ -158,6 +235,7 @@ public class RawFileCollector implements Runnable {
             for (UploadFile file : logFiles) {
                 File fileToAddToArchive = new File(file.path);
                 archivedIndexWriter.writeFileEntry(file);
+                archiveReferencedBlobs(archivedIndexWriter, fileToAddToArchive);
                 fileCount++;
                 errorLogger.log("delete [" + file.path + "]");
                 fileToAddToArchive.delete();
@@ -201,6 +279,23 @@ public class RawFileCollector implements Runnable {
 
             stringsToIndex.drainTo(stringInfoDocuments);
 
+            List<ExceptionRecord> exceptionRecords = new ArrayList<>();
+            exceptionsToIndex.drainTo(exceptionRecords);
+
+            long drainedBytes = objectInfoDocuments.size() * RecordingPressure.estimateObjectEntry();
+            for (TypeInfoDocument newType : newTypes) {
+                drainedBytes += RecordingPressure.estimateTypeEntry(newType.getTypeName(), newType.getTypeBytes());
+            }
+            for (StringInfoDocument stringInfoDocument : stringInfoDocuments) {
+                drainedBytes += RecordingPressure.estimateStringEntry(stringInfoDocument.getString());
+            }
+            for (ExceptionRecord exceptionRecord : exceptionRecords) {
+                drainedBytes += RecordingPressure.estimateExceptionEntry(exceptionRecord.getRecord(),
+                        exceptionRecord.getFrameIds());
+            }
+            writer.addExceptions(exceptionRecords, stackFrames);
+            recordingPressure.releaseIndexBytes(drainedBytes);
+
             if (objectInfoDocuments.size() == 0 && stringInfoDocuments.size() == 0 && typeInfoDocuments.size() == 0) {
                 errorLogger.log("no new data to record, return");
                 return;
@@ -217,12 +312,147 @@ public class RawFileCollector implements Runnable {
 
 
     public void indexObjectTypeEntry(long id, int typeId) {
-        objectsToIndex.offer(new ObjectInfoDocument(id, typeId));
+        long entrySize = RecordingPressure.estimateObjectEntry();
+        if (!recordingPressure.reserveIndexBytes(entrySize)) {
+            recordingPressure.recordDroppedObject();
+            return;
+        }
+        if (!objectsToIndex.offer(new ObjectInfoDocument(id, typeId))) {
+            recordingPressure.releaseIndexBytes(entrySize);
+            recordingPressure.recordDroppedObject();
+        }
     }
 
     public void indexStringEntry(long id, String stringObject) {
-        stringsToIndex.offer(new StringInfoDocument(id, stringObject));
+        long entrySize = RecordingPressure.estimateStringEntry(stringObject);
+        if (!recordingPressure.reserveIndexBytes(entrySize)) {
+            recordingPressure.recordDroppedString();
+            return;
+        }
+        if (!stringsToIndex.offer(new StringInfoDocument(id, stringObject))) {
+            recordingPressure.releaseIndexBytes(entrySize);
+            recordingPressure.recordDroppedString();
+        }
+    }
+
+    /**
+     * Frames are kept for the life of the collector, since any later exception can use them. They are
+     * limited by STACK_FRAME_MEMORY_LIMIT instead of the memory budget, which only holds entries that are
+     * released again. A frame which does not fit is counted as a dropped object.
+     *
+     * @return false when the frame was dropped, exceptions must not refer to it
+     */
+    public boolean indexStackFrame(int frameId, byte[] frameRecord) {
+        long frameSize = RecordingPressure.estimateFrameEntry(frameRecord);
+        if (stackFrameBytes.addAndGet(frameSize) > STACK_FRAME_MEMORY_LIMIT) {
+            stackFrameBytes.addAndGet(-frameSize);
+            recordingPressure.recordDroppedObject();
+            return false;
+        }
+        stackFrames.put(frameId, frameRecord);
+        return true;
+    }
+
+    /**
+     * Exceptions are kept with the other index entries in the memory budget, and counted as dropped
+     * objects when they do not fit.
+     */
+    public void indexExceptionEntry(long id, byte[] exceptionRecord, int[] frameIds) {
+        long entrySize = RecordingPressure.estimateExceptionEntry(exceptionRecord, frameIds);
+        if (!recordingPressure.reserveIndexBytes(entrySize)) {
+            recordingPressure.recordDroppedObject();
+            return;
+        }
+        if (!exceptionsToIndex.offer(new ExceptionRecord(id, exceptionRecord, frameIds))) {
+            recordingPressure.releaseIndexBytes(entrySize);
+            recordingPressure.recordDroppedObject();
+        }
+    }
+
+    /**
+     * Keep a serialized value for an event which is going to refer to it. Each call counts as one
+     * reference, the value is kept until the log files holding these events are archived, and is copied
+     * into the archive of each of them. A value which does not fit in the memory budget is counted as a
+     * dropped object.
+     *
+     * @return false when the value was dropped, the event has to carry it inline
+     */
+    public boolean indexBlob(byte[] hash, byte[] value) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        if (blobStore.computeIfPresent(key, (storedKey, storedBlob) -> storedBlob.addReference()) != null) {
+            return true;
+        }
+        long entrySize = RecordingPressure.estimateBlobEntry(hash, value);
+        if (!recordingPressure.reserveIndexBytes(entrySize)) {
+            recordingPressure.recordDroppedObject();
+            return false;
+        }
+        ValueBlob newBlob = new ValueBlob(hash, value);
+        // another thread may have stored the value meanwhile, the reference is then counted on its copy
+        if (blobStore.merge(key, newBlob, (storedBlob, unused) -> storedBlob.addReference()) != newBlob) {
+            recordingPressure.releaseIndexBytes(entrySize);
+        }
+        return true;
+    }
+
+    /**
+     * Write the values the events of a log file refer to into the archive receiving the file, then drop
+     * the references of these events.
+     */
+    void archiveReferencedBlobs(ArchivedIndexWriter writer, File logFile) {
+        if (blobStore.isEmpty()) {
+            // no event of any pending log file refers to a value
+            return;
+        }
+        List<ByteBuffer> references = readBlobReferences(logFile);
+        List<ValueBlob> valueBlobs = new ArrayList<>();
+        for (ByteBuffer key : new LinkedHashSet<>(references)) {
+            ValueBlob valueBlob = blobStore.get(key);
+            if (valueBlob != null) {
+                valueBlobs.add(valueBlob);
+            }
+        }
+        if (!writer.addBlobs(valueBlobs)) {
+            errorLogger.log("[" + writer.getArchiveFile().getName() + "] values referred to by ["
+                    + logFile.getName() + "] were not written");
+        }
+        releaseBlobReferences(references);
+    }
 
+    /**
+     * @return the hash of each REFERENCE payload in the log file, once per event
+     */
+    private List<ByteBuffer> readBlobReferences(File logFile) {
+        List<ByteBuffer> references = new ArrayList<>();
+        try (InputStream fileStream = new FileInputStream(logFile);
+             EventRecordReader reader = new EventRecordReader(
+                     logFile.getName().endsWith(LogFileCompressor.COMPRESSED_FILE_SUFFIX)
+                             ? new GZIPInputStream(fileStream) : fileStream)) {
+            EventRecordReader.EventRecord record;
+            while ((record = reader.read()) != null) {
+                byte[] payload = record.getSerializedValue();
+                if (payload.length == ValueBlobs.HASH_LENGTH + 1 && payload[0] == ValueBlobs.REFERENCE) {
+                    references.add(ByteBuffer.wrap(Arrays.copyOfRange(payload, 1, payload.length)));
+                }
+            }
+        } catch (IOException e) {
+            errorLogger.log("failed to read value references of [" + logFile.getName() + "]: " + e.getMessage());
+        }
+        return references;
+    }
+
+    private void releaseBlobReferences(List<ByteBuffer> references) {
+        for (ByteBuffer key : references) {
+            ValueBlob valueBlob = blobStore.get(key);
+            if (valueBlob == null) {
+                continue;
+            }
+            if (blobStore.computeIfPresent(key,
+                    (storedKey, storedBlob) -> storedBlob.removeReference() ? null : storedBlob) == null) {
+                recordingPressure.releaseIndexBytes(
+                        RecordingPressure.estimateBlobEntry(valueBlob.getHash(), valueBlob.getValue()));
+            }
+        }
     }
 
     public void addValueId(long valueId) {
@@ -236,7 +466,15 @@ public class RawFileCollector implements Runnable {
 
     public void indexTypeEntry(int typeId, String typeName, byte[] typeInfoBytes) {
 //        System.err.println("Offering type [" + typeId + "] -> " + typeName + ". Now collected " + typesToIndex.size());
-        typesToIndex.offer(new TypeInfoDocument(typeId, typeName, typeInfoBytes));
+        long entrySize = RecordingPressure.estimateTypeEntry(typeName, typeInfoBytes);
+        if (!recordingPressure.reserveIndexBytes(entrySize)) {
+            recordingPressure.recordDroppedType();
+            return;
+        }
+        if (!typesToIndex.offer(new TypeInfoDocument(typeId, typeName, typeInfoBytes))) {
+            recordingPressure.releaseIndexBytes(entrySize);
+            recordingPressure.recordDroppedType();
+        }
     }
 
     synchronized public void addClassWeaveInfo(byte[] byteArray) {
@@ -248,10 +486,77 @@ public class RawFileCollector implements Runnable {
         }
     }
 
+    /**
+     * Set an entry of the metadata stored in each archive completed from now on.
+     */
+    public void setArchiveMetadata(String key, String value) {
+        archiveMetadata.setProperty(key, value);
+    }
+
+    public RecordingPressure getRecordingPressure() {
+        return recordingPressure;
+    }
+
+    public RecordingMetrics getRecordingMetrics() {
+        return recordingMetrics;
+    }
+
+    private Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new LinkedHashMap<>();
+        if (logFileCompressor != null) {
+            queueDepths.put("filesToCompress", logFileCompressor.getRawFileQueue().size());
+        }
+        queueDepths.put("filesToArchive", fileList.size());
+        queueDepths.put("archivesToClose", archiveQueue.size());
+        queueDepths.put("objectsToIndex", objectsToIndex.size());
+        queueDepths.put("stringsToIndex", stringsToIndex.size());
+        queueDepths.put("typesToIndex", typesToIndex.size());
+        queueDepths.put("typeInfoDocuments", typeInfoDocuments.size());
+        queueDepths.put("exceptionsToIndex", exceptionsToIndex.size());
+        queueDepths.put("storedBlobs", blobStore.size());
+        return queueDepths;
+    }
+
+    private int getPendingFileCount() {
+        int pendingFiles = fileList.size();
+        if (logFileCompressor != null) {
+            pendingFiles += logFileCompressor.getRawFileQueue().size();
+        }
+        return pendingFiles;
+    }
+
     public BlockingQueue<UploadFile> getFileQueue() {
+        if (logFileCompressor != null) {
+            return logFileCompressor.getRawFileQueue();
+        }
         return this.fileList;
     }
 
+    /**
+     * Counts the completed log files which do not fit into the queue. A file which cannot be queued is
+     * never archived, so it is deleted, and the values its events refer to are released.
+     */
+    private class PipelineFileQueue extends ArrayBlockingQueue<UploadFile> {
+        PipelineFileQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(UploadFile uploadFile) {
+            if (super.offer(uploadFile)) {
+                return true;
+            }
+            recordingPressure.recordDroppedFile();
+            recordingPressure.setPendingFiles(getPendingFileCount());
+            File droppedFile = new File(uploadFile.path);
+            if (!blobStore.isEmpty()) {
+                releaseBlobReferences(readBlobReferences(droppedFile));
+            }
+            droppedFile.delete();
+            return false;
+        }
+    }
+
     public class ArchiveCloser implements Runnable {
 
         private final BlockingQueue<ArchivedIndexWriter> archiveQueue;
@@ -268,13 +573,16 @@ public class RawFileCollector implements Runnable {
                 try {
 //                    errorLogger.log("Waiting for next archive to close");
                     ArchivedIndexWriter archivedIndexWriterOld = archiveQueue.take();
+                    long closeStart = System.nanoTime();
                     try {
 //                        errorLogger.log("closing archive: " + archivedIndexWriterOld.getArchiveFile().getName());
                         drainItemsToIndex(archivedIndexWriterOld);
                         archivedIndexWriterOld.drainQueueToIndex(EMPTY_LIST, typeInfoDocuments, EMPTY_STRING_LIST);
                         archivedIndexWriterOld.close();
+                        recordingMetrics.recordArchiveClosed(System.nanoTime() - closeStart);
                         errorLogger.log("closed archive: " + archivedIndexWriterOld.getArchiveFile().getName());
                     } catch (Throwable e) {
+                        recordingMetrics.recordArchiveFailure();
                         errorLogger.log(e);
                     }
 
@@ -282,8 +590,11 @@ public class RawFileCollector implements Runnable {
                         File archiveFile = archivedIndexWriterOld.getArchiveFile();
                         try {
                             errorLogger.log("uploading file: " + archiveFile.getAbsolutePath());
+                            long uploadStart = System.nanoTime();
                             networkClient.uploadFile(archiveFile.getAbsolutePath(), errorLogger.getPath());
+                            recordingMetrics.recordUpload(System.nanoTime() - uploadStart);
                         } catch (IOException e) {
+                            recordingMetrics.recordUploadFailure();
                             errorLogger.log("failed to upload archive file: " + e.getMessage());
                         } finally {
                             archiveFile.delete();
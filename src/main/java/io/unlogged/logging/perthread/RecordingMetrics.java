@@ -0,0 +1,296 @@
+package io.unlogged.logging.perthread;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.unlogged.logging.IErrorLogger;
+
+/**
+ * Throughput and health of the recording pipeline, served on the agent server /metrics route and as the
+ * {@value #OBJECT_NAME} MXBean.
+ * <p>
+ * Events and bytes are counted per application thread and per probe by MeteredAggregatedLogger, bytes
+ * are the size of the records in the fixed (v1) layout. Rates are computed by sample(), which the
+ * RawFileCollector calls about once a second, threads which have ended are folded into the totals there.
+ * <p>
+ * The same per thread counters carry the recording cost measured by the RecordingCostEventLogger, which
+ * the AdaptiveSamplingController reads through sampleRecordingNanos.
+ */
+public class RecordingMetrics implements RecordingMetricsMXBean {
+
+    public static final String OBJECT_NAME = "io.unlogged:type=RecordingMetrics";
+    /**
+     * Number of probes reported by getProbeEventCounts, the ones with the most events.
+     */
+    public static final int TOP_PROBE_COUNT = 100;
+
+    private final RecordingPressure recordingPressure;
+    private final Supplier<Map<String, Integer>> queueDepthSupplier;
+    private final Set<ThreadRecordingCounters> threadCounters = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<ThreadRecordingCounters> currentThreadCounters =
+            ThreadLocal.withInitial(this::registerThread);
+    private final TimingStats serialization = new TimingStats();
+    private final TimingStats archives = new TimingStats();
+    private final TimingStats uploads = new TimingStats();
+
+    // guarded by this
+    private final Map<ThreadRecordingCounters, ThreadRates> threadRates = new IdentityHashMap<>();
+    private final Map<ThreadRecordingCounters, RecordingCost> recordingCosts = new IdentityHashMap<>();
+    private final Map<Integer, Long> endedThreadProbeCounts = new HashMap<>();
+    private long endedThreadEvents = 0;
+    private long endedThreadBytes = 0;
+    private long lastSampleNanos = System.nanoTime();
+
+    public RecordingMetrics(RecordingPressure recordingPressure, Supplier<Map<String, Integer>> queueDepthSupplier) {
+        this.recordingPressure = recordingPressure;
+        this.queueDepthSupplier = queueDepthSupplier;
+    }
+
+    private ThreadRecordingCounters registerThread() {
+        ThreadRecordingCounters counters = new ThreadRecordingCounters();
+        threadCounters.add(counters);
+        return counters;
+    }
+
+    /**
+     * Count an event written by the current thread.
+     *
+     * @param recordBytes size of the event record
+     */
+    public void countEvent(int probeId, int recordBytes) {
+        currentThreadCounters.get().count(probeId, recordBytes);
+    }
+
+    /**
+     * @return the counters of the current thread, to be used by that thread only
+     */
+    public ThreadRecordingCounters getCurrentThreadCounters() {
+        return currentThreadCounters.get();
+    }
+
+    public void recordSerialization(long nanos) {
+        serialization.record(nanos);
+    }
+
+    public void recordSerializationFailure() {
+        serialization.recordFailure();
+    }
+
+    void recordArchiveClosed(long nanos) {
+        archives.record(nanos);
+    }
+
+    void recordArchiveFailure() {
+        archives.recordFailure();
+    }
+
+    void recordUpload(long nanos) {
+        uploads.record(nanos);
+    }
+
+    void recordUploadFailure() {
+        uploads.recordFailure();
+    }
+
+    /**
+     * Update the per thread rates from the counters, and drop the counters of threads which have ended.
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        double elapsedSeconds = (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        Iterator<ThreadRecordingCounters> iterator = threadCounters.iterator();
+        while (iterator.hasNext()) {
+            ThreadRecordingCounters counters = iterator.next();
+            long events = counters.getEvents();
+            long bytes = counters.getBytes();
+            ThreadRates rates = threadRates.computeIfAbsent(counters, k -> new ThreadRates());
+            if (elapsedSeconds > 0) {
+                rates.eventsPerSecond = (events - rates.sampledEvents) / elapsedSeconds;
+                rates.bytesPerSecond = (bytes - rates.sampledBytes) / elapsedSeconds;
+            }
+            rates.sampledEvents = events;
+            rates.sampledBytes = bytes;
+            if (!counters.isOwnerAlive()) {
+                iterator.remove();
+                threadRates.remove(counters);
+                recordingCosts.remove(counters);
+                endedThreadEvents += events;
+                endedThreadBytes += bytes;
+                counters.addProbeCountsTo(endedThreadProbeCounts);
+            }
+        }
+    }
+
+    /**
+     * Each thread's recordings since the previous call are costed at the average time of its recordings
+     * timed over the same period, so the estimate follows changes in the cost of recording.
+     *
+     * @return estimated nanoseconds spent recording events by all threads since the previous call
+     */
+    public synchronized long sampleRecordingNanos() {
+        long recordingNanos = 0;
+        for (ThreadRecordingCounters counters : threadCounters) {
+            RecordingCost cost = recordingCosts.computeIfAbsent(counters, k -> new RecordingCost());
+            long recordings = counters.getRecordings();
+            long timedRecordings = counters.getTimedRecordings();
+            long timedNanos = counters.getTimedNanos();
+            long timedRecordingDelta = timedRecordings - cost.sampledTimedRecordings;
+            if (timedRecordingDelta > 0) {
+                cost.averageNanos = (double) (timedNanos - cost.sampledTimedNanos) / timedRecordingDelta;
+                cost.sampledTimedRecordings = timedRecordings;
+                cost.sampledTimedNanos = timedNanos;
+            }
+            recordingNanos += (long) ((recordings - cost.sampledRecordings) * cost.averageNanos);
+            cost.sampledRecordings = recordings;
+        }
+        return recordingNanos;
+    }
+
+    private ThreadRates getRates(ThreadRecordingCounters counters) {
+        ThreadRates rates = threadRates.get(counters);
+        return rates == null ? ThreadRates.NOT_SAMPLED : rates;
+    }
+
+    @Override
+    public synchronized List<ThreadMetrics> getThreads() {
+        List<ThreadMetrics> threads = new ArrayList<>();
+        for (ThreadRecordingCounters counters : threadCounters) {
+            ThreadRates rates = getRates(counters);
+            threads.add(new ThreadMetrics(counters.getThreadId(), counters.getThreadName(),
+                    counters.getEvents(), counters.getBytes(), rates.eventsPerSecond, rates.bytesPerSecond));
+        }
+        return threads;
+    }
+
+    @Override
+    public synchronized long getEvents() {
+        long events = endedThreadEvents;
+        for (ThreadRecordingCounters counters : threadCounters) {
+            events += counters.getEvents();
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        long bytes = endedThreadBytes;
+        for (ThreadRecordingCounters counters : threadCounters) {
+            bytes += counters.getBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized double getEventsPerSecond() {
+        double eventsPerSecond = 0;
+        for (ThreadRecordingCounters counters : threadCounters) {
+            eventsPerSecond += getRates(counters).eventsPerSecond;
+        }
+        return eventsPerSecond;
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        double bytesPerSecond = 0;
+        for (ThreadRecordingCounters counters : threadCounters) {
+            bytesPerSecond += getRates(counters).bytesPerSecond;
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return event counts of the TOP_PROBE_COUNT probes with the most events, highest first
+     */
+    @Override
+    public synchronized Map<Integer, Long> getProbeEventCounts() {
+        Map<Integer, Long> probeEventCounts = new HashMap<>(endedThreadProbeCounts);
+        for (ThreadRecordingCounters counters : threadCounters) {
+            counters.addProbeCountsTo(probeEventCounts);
+        }
+        List<Map.Entry<Integer, Long>> entries = new ArrayList<>(probeEventCounts.entrySet());
+        entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        Map<Integer, Long> topProbes = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Long> entry : entries.subList(0, Math.min(TOP_PROBE_COUNT, entries.size()))) {
+            topProbes.put(entry.getKey(), entry.getValue());
+        }
+        return topProbes;
+    }
+
+    @Override
+    public TimingStats getSerialization() {
+        return serialization;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return queueDepthSupplier.get();
+    }
+
+    @Override
+    public TimingStats getArchives() {
+        return archives;
+    }
+
+    @Override
+    public TimingStats getUploads() {
+        return uploads;
+    }
+
+    @Override
+    public RecordingPressure getRecordingPressure() {
+        return recordingPressure;
+    }
+
+    /**
+     * Register with the platform MBean server, failures are logged and otherwise ignored.
+     */
+    public void registerMBean(IErrorLogger errorLogger) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (Throwable e) {
+            errorLogger.log("failed to register recording metrics mbean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rates of one thread, computed by sample() and kept apart from the counters of the thread.
+     */
+    private static final class ThreadRates {
+        static final ThreadRates NOT_SAMPLED = new ThreadRates();
+
+        long sampledEvents;
+        long sampledBytes;
+        double eventsPerSecond;
+        double bytesPerSecond;
+    }
+
+    /**
+     * Recording cost of one thread as of the previous sampleRecordingNanos, kept apart from the counters of
+     * the thread.
+     */
+    private static final class RecordingCost {
+        long sampledRecordings;
+        long sampledTimedRecordings;
+        long sampledTimedNanos;
+        double averageNanos;
+    }
+}
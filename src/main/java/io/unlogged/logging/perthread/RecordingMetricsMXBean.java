@@ -0,0 +1,32 @@
+package io.unlogged.logging.perthread;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of RecordingMetrics, registered as {@value RecordingMetrics#OBJECT_NAME}.
+ */
+public interface RecordingMetricsMXBean {
+
+    List<ThreadMetrics> getThreads();
+
+    long getEvents();
+
+    long getBytes();
+
+    double getEventsPerSecond();
+
+    double getBytesPerSecond();
+
+    Map<Integer, Long> getProbeEventCounts();
+
+    TimingStats getSerialization();
+
+    Map<String, Integer> getQueueDepths();
+
+    TimingStats getArchives();
+
+    TimingStats getUploads();
+
+    RecordingPressure getRecordingPressure();
+}
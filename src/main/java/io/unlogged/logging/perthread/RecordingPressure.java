@@ -0,0 +1,236 @@
+package io.unlogged.logging.perthread;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.IErrorLogger;
+
+/**
+ * Tracks the backlog of the recording pipeline and applies the BackpressurePolicy.
+ * <p>
+ * The backlog is the estimated memory held by index entries waiting in the RawFileCollector queues, and
+ * the number of completed log files waiting to be archived. Index entries beyond the memory budget are
+ * refused. The pipeline is under pressure once either backlog passes three quarters of its limit, and
+ * stays so until both have drained below half of it. It is full from the moment either backlog reaches
+ * its limit until both are back under three quarters of it. Getters are read by the agent server
+ * /pipeline route.
+ * <p>
+ * Events are admitted a method call at a time, see admitFrame, so a call is either recorded from its entry
+ * to its exit or not at all.
+ */
+public class RecordingPressure {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    /**
+     * One of this many method calls is recorded under pressure with the SAMPLE policy, a power of two.
+     */
+    public static final int SAMPLE_RATE = 16;
+    // rough heap sizes of the queued index documents
+    private static final long OBJECT_ENTRY_SIZE = 48;
+    private static final long STRING_ENTRY_SIZE = 64;
+    private static final long TYPE_ENTRY_SIZE = 96;
+    private static final long EXCEPTION_ENTRY_SIZE = 64;
+    private static final long BLOB_ENTRY_SIZE = 64;
+    private static final long FRAME_ENTRY_SIZE = 64;
+
+    private final BackpressurePolicy policy;
+    private final long memoryBudget;
+    private final int fileBacklogLimit;
+    private final AtomicLong pendingIndexBytes = new AtomicLong(0);
+    private volatile int pendingFiles = 0;
+    private volatile boolean underPressure = false;
+    private volatile boolean full = false;
+    private final AtomicLong sampleCounter = new AtomicLong(0);
+
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder droppedObjects = new LongAdder();
+    private final LongAdder droppedStrings = new LongAdder();
+    private final LongAdder droppedTypes = new LongAdder();
+    private final LongAdder droppedFiles = new LongAdder();
+    private long reportedDropTotal = 0;
+
+    /**
+     * @param policy           what to do with events under pressure
+     * @param memoryBudget     hard limit in bytes for queued index entries
+     * @param fileBacklogLimit number of completed log files waiting to be archived before the pipeline is
+     *                         considered behind
+     */
+    public RecordingPressure(BackpressurePolicy policy, long memoryBudget, int fileBacklogLimit) {
+        this.policy = policy;
+        this.memoryBudget = memoryBudget;
+        this.fileBacklogLimit = fileBacklogLimit;
+    }
+
+    static long estimateObjectEntry() {
+        return OBJECT_ENTRY_SIZE;
+    }
+
+    static long estimateStringEntry(String value) {
+        return STRING_ENTRY_SIZE + (value == null ? 0 : 2L * value.length());
+    }
+
+    static long estimateTypeEntry(String typeName, byte[] typeBytes) {
+        return TYPE_ENTRY_SIZE + (typeName == null ? 0 : 2L * typeName.length())
+                + (typeBytes == null ? 0 : typeBytes.length);
+    }
+
+    static long estimateExceptionEntry(byte[] record, int[] frameIds) {
+        return EXCEPTION_ENTRY_SIZE + record.length + 4L * frameIds.length;
+    }
+
+    static long estimateBlobEntry(byte[] hash, byte[] value) {
+        return BLOB_ENTRY_SIZE + hash.length + value.length;
+    }
+
+    static long estimateFrameEntry(byte[] frameRecord) {
+        return FRAME_ENTRY_SIZE + frameRecord.length;
+    }
+
+    /**
+     * Called by BackpressureAggregatedLogger at the entry of every method call, and for events outside of
+     * any method call. Events of an admitted call are recorded up to its exit whatever the pressure is then.
+     *
+     * @return false when the call should not be recorded
+     */
+    public boolean admitFrame() {
+        if (!underPressure) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_NEWEST:
+                return !full;
+            case SAMPLE:
+                return (sampleCounter.incrementAndGet() & (SAMPLE_RATE - 1)) == 0;
+            case PAUSE:
+            default:
+                return false;
+        }
+    }
+
+    public void recordDroppedEvent() {
+        droppedEvents.increment();
+    }
+
+    /**
+     * Reserve room for an index entry in the memory budget.
+     *
+     * @return false when the budget is used up, the entry should be dropped
+     */
+    boolean reserveIndexBytes(long bytes) {
+        long pending = pendingIndexBytes.addAndGet(bytes);
+        if (pending > memoryBudget) {
+            pendingIndexBytes.addAndGet(-bytes);
+            underPressure = true;
+            full = true;
+            return false;
+        }
+        if (!underPressure && pending > memoryBudget / 4 * 3) {
+            underPressure = true;
+        }
+        return true;
+    }
+
+    void releaseIndexBytes(long bytes) {
+        pendingIndexBytes.addAndGet(-bytes);
+        updatePressure();
+    }
+
+    void setPendingFiles(int pendingFiles) {
+        this.pendingFiles = pendingFiles;
+        updatePressure();
+    }
+
+    private void updatePressure() {
+        long pending = pendingIndexBytes.get();
+        if (pendingFiles >= fileBacklogLimit) {
+            full = true;
+        } else if (full && pending <= memoryBudget / 4 * 3 && pendingFiles <= fileBacklogLimit / 4 * 3) {
+            full = false;
+        }
+        if (underPressure) {
+            if (pending < memoryBudget / 2 && pendingFiles < fileBacklogLimit / 2) {
+                underPressure = false;
+            }
+        } else if (pending > memoryBudget / 4 * 3 || pendingFiles > fileBacklogLimit / 4 * 3) {
+            underPressure = true;
+        }
+    }
+
+    void recordDroppedObject() {
+        droppedObjects.increment();
+    }
+
+    void recordDroppedString() {
+        droppedStrings.increment();
+    }
+
+    void recordDroppedType() {
+        droppedTypes.increment();
+    }
+
+    void recordDroppedFile() {
+        droppedFiles.increment();
+    }
+
+    /**
+     * Log the drop counters when anything was dropped since the last report.
+     */
+    void reportDrops(IErrorLogger errorLogger) {
+        long dropTotal = getDroppedEvents() + getDroppedObjects() + getDroppedStrings()
+                + getDroppedTypes() + getDroppedFiles();
+        if (dropTotal == reportedDropTotal) {
+            return;
+        }
+        reportedDropTotal = dropTotal;
+        errorLogger.log("[unlogged] recording is behind, policy [" + policy + "] pending index bytes ["
+                + getPendingIndexBytes() + "/" + memoryBudget + "] pending files [" + pendingFiles
+                + "] dropped events [" + getDroppedEvents() + "] objects [" + getDroppedObjects()
+                + "] strings [" + getDroppedStrings() + "] types [" + getDroppedTypes()
+                + "] files [" + getDroppedFiles() + "]");
+    }
+
+    public BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getPendingIndexBytes() {
+        return pendingIndexBytes.get();
+    }
+
+    public int getPendingFiles() {
+        return pendingFiles;
+    }
+
+    public boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    public long getDroppedObjects() {
+        return droppedObjects.sum();
+    }
+
+    public long getDroppedStrings() {
+        return droppedStrings.sum();
+    }
+
+    public long getDroppedTypes() {
+        return droppedTypes.sum();
+    }
+
+    public long getDroppedFiles() {
+        return droppedFiles.sum();
+    }
+}
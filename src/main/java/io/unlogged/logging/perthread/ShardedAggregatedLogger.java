@@ -0,0 +1,325 @@
+package io.unlogged.logging.perthread;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.insidious.common.UploadFile;
+
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.IErrorLogger;
+import io.unlogged.logging.util.AggregatedFileLogger;
+import io.unlogged.logging.util.EventIdUtil;
+import io.unlogged.logging.util.FileNameGenerator;
+
+/**
+ * Writes events from any number of threads into a fixed number of shard files, for applications which
+ * run each request on its own (virtual) thread and would otherwise get one tiny .selog file per thread.
+ * <p>
+ * Every thread still gets its own logical thread id and event sequence, the event id of each record
+ * carries the logical thread id in its thread slot (see EventIdUtil), so the per thread streams can be
+ * rebuilt from the shard files. The slot has 24 bits, so the ids of ended threads are recycled: a new
+ * thread takes over the id of an ended one and continues its event sequence, keeping event ids unique as
+ * long as fewer than 2^24 recording threads are alive at the same time. A thread writes to the shard
+ * picked by its logical thread id, and moves on to the next shard when that one is busy.
+ * <p>
+ * A shard file holds the events of many threads, it is queued with SHARED_FILE_THREAD_ID as its thread
+ * id, and readers take the thread of each record from its event id. Shards are guarded by a ReentrantLock rather than a monitor
+ * so a virtual thread waiting for a shard does not pin its carrier.
+ */
+public class ShardedAggregatedLogger implements AggregatedFileLogger {
+
+    /**
+     * Thread id of the UploadFile of a shard file, which holds events of several threads.
+     */
+    public static final int SHARED_FILE_THREAD_ID = -1;
+    /**
+     * Number of shards, one per available processor rounded up to a power of two.
+     */
+    public static final int SHARD_COUNT =
+            Integer.highestOneBit(Math.max(1, java.lang.Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicInteger nextThreadId = new AtomicInteger(0);
+    private final ThreadLocal<ThreadLogState> threadState = ThreadLocal.withInitial(this::createThreadState);
+    private final Queue<ThreadLogState> liveThreadStates = new ConcurrentLinkedQueue<>();
+    // states of ended threads, their ids are taken over by new threads
+    private final Queue<ThreadLogState> endedThreadStates = new ConcurrentLinkedQueue<>();
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    private final BlockingQueue<UploadFile> fileList;
+    private final FileNameGenerator fileNameGenerator;
+    private final IErrorLogger errorLogger;
+    private final RawFileCollector fileCollector;
+    private final UnloggedMode unloggedMode;
+    private final ScheduledExecutorService threadPoolExecutor5Seconds = Executors.newScheduledThreadPool(1);
+    private final ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(1);
+    private volatile boolean shutdown;
+    private long threadDepth = 0;
+
+    /**
+     * Create an instance of the sharded writer.
+     *
+     * @param fileNameGenerator file generator for output data
+     * @param logger            is to report errors that occur in this class.
+     * @param fileCollector     collects the dataEvent log files, creates indexes,
+     * @param unloggedMode      recording mode of the agent
+     */
+    public ShardedAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            UnloggedMode unloggedMode) {
+        this(fileNameGenerator, logger, fileCollector, fileCollector.getFileQueue(), unloggedMode);
+    }
+
+    /**
+     * @param fileList queue the closed shard files are shipped to
+     */
+    ShardedAggregatedLogger(
+            FileNameGenerator fileNameGenerator,
+            IErrorLogger logger,
+            RawFileCollector fileCollector,
+            BlockingQueue<UploadFile> fileList,
+            UnloggedMode unloggedMode) {
+        this.errorLogger = logger;
+        this.fileNameGenerator = fileNameGenerator;
+        this.fileCollector = fileCollector;
+        this.fileList = fileList;
+        this.unloggedMode = unloggedMode;
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(i);
+        }
+
+        threadPoolExecutor.submit(fileCollector);
+        threadPoolExecutor5Seconds.scheduleAtFixedRate(() -> {
+            rotateShardsWithEvents();
+            recycleEndedThreadIds();
+        }, 0, 731, TimeUnit.MILLISECONDS);
+    }
+
+    private ThreadLogState createThreadState() {
+        ThreadLogState endedThreadState = endedThreadStates.poll();
+        ThreadLogState newThreadState;
+        if (endedThreadState != null) {
+            newThreadState = new ThreadLogState(endedThreadState.getThreadId(),
+                    endedThreadState.getNextLocalSequence());
+        } else {
+            newThreadState = new ThreadLogState(nextThreadId.getAndIncrement() & EventIdUtil.THREAD_SLOT_MASK);
+        }
+        liveThreadStates.offer(newThreadState);
+        return newThreadState;
+    }
+
+    /**
+     * Make the ids of ended threads available to new threads. Thread.isAlive returning false makes the
+     * last event sequence of the ended thread visible here.
+     */
+    void recycleEndedThreadIds() {
+        Iterator<ThreadLogState> iterator = liveThreadStates.iterator();
+        while (iterator.hasNext()) {
+            ThreadLogState liveThreadState = iterator.next();
+            if (!liveThreadState.isOwnerAlive()) {
+                iterator.remove();
+                endedThreadStates.offer(liveThreadState);
+            }
+        }
+    }
+
+    /**
+     * Lock a shard for the calling thread, its own shard when free, otherwise the first free one after it.
+     * Waits for its own shard when every shard is busy.
+     */
+    private Shard lockShard(int logicalThreadId) {
+        int home = logicalThreadId & (SHARD_COUNT - 1);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            Shard shard = shards[(home + i) & (SHARD_COUNT - 1)];
+            if (shard.lock.tryLock()) {
+                return shard;
+            }
+        }
+        Shard shard = shards[home];
+        shard.lock.lock();
+        return shard;
+    }
+
+    private void writeRecord(int probeId, long valueId, byte[] serializedValue, ByteArrayOutputStream serializedStream) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // early exit, do not print probed data now
+            return;
+        }
+        if (shutdown) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        ThreadLogState currentThreadState = threadState.get();
+        int length = serializedValue != null ? serializedValue.length
+                : serializedStream != null ? serializedStream.size() : 0;
+
+        Shard shard = lockShard(currentThreadState.getThreadId());
+        try {
+            if (shutdown) {
+                // close has shipped this shard already
+                return;
+            }
+            if (shard.out == null) {
+                openNextFile(shard);
+            }
+            PerThreadBinaryFileAggregatedLogger.fillEventHeader(shard.header, currentThreadState.nextEventId(),
+                    timestamp, probeId, valueId, length);
+            shard.out.write(shard.header);
+            if (serializedValue != null) {
+                shard.out.write(serializedValue);
+            } else if (serializedStream != null) {
+                serializedStream.writeTo(shard.out);
+            }
+            shard.eventCount++;
+            if (shard.eventCount >= PerThreadBinaryFileAggregatedLogger.MAX_EVENTS_PER_FILE) {
+                closeCurrentFile(shard);
+            }
+        } catch (IOException e) {
+            errorLogger.log(e);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private void openNextFile(Shard shard) throws IOException {
+        File nextFile = fileNameGenerator.getNextFile(String.valueOf(shard.shardIndex));
+        shard.currentFile = nextFile.getPath();
+        shard.out = new BufferedOutputStream(Files.newOutputStream(nextFile.toPath()),
+                PerThreadBinaryFileAggregatedLogger.WRITE_BYTE_BUFFER_SIZE);
+        shard.eventCount = 0;
+    }
+
+    /**
+     * Called with the shard lock held.
+     */
+    private void closeCurrentFile(Shard shard) throws IOException {
+        shard.out.close();
+        shard.out = null;
+        fileList.offer(new UploadFile(shard.currentFile, SHARED_FILE_THREAD_ID, null, null));
+    }
+
+    private void rotateShardsWithEvents() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                if (shard.out != null && shard.eventCount > 0) {
+                    closeCurrentFile(shard);
+                }
+            } catch (IOException e) {
+                errorLogger.log(e);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+        fileCollector.indexObjectTypeEntry(id, (int) typeId);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId) {
+        writeRecord(probeId, valueId, null, null);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, byte[] toByteArray) {
+        writeRecord(probeId, valueId, toByteArray, null);
+    }
+
+    @Override
+    public void writeEvent(int probeId, long valueId, ByteArrayOutputStream outputStream) {
+        writeRecord(probeId, valueId, null, outputStream);
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        fileCollector.indexTypeEntry(typeId, typeName, toString);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        return fileCollector.indexStackFrame(frameId, frameRecord);
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        fileCollector.indexExceptionEntry(objectId, exceptionRecord, frameIds);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        if ((this.unloggedMode == UnloggedMode.LogAnnotatedWithChildren) && (this.threadDepth == 0)) {
+            // the event is not going to be written, it must not hold the value in the collector
+            return false;
+        }
+        return fileCollector.indexBlob(blobHash, value);
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+        fileCollector.addClassWeaveInfo(byteArray);
+    }
+
+    /**
+     * Ship the files of all shards and stop writing, events written afterwards are dropped.
+     */
+    public void close() {
+        shutdown = true;
+        rotateShardsWithEvents();
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        System.err.println("[unlogged] shutdown sharded logger");
+        threadPoolExecutor5Seconds.shutdown();
+        threadPoolExecutor5Seconds.awaitTermination(1, TimeUnit.SECONDS);
+        close();
+        fileCollector.shutdown();
+        threadPoolExecutor.shutdown();
+    }
+
+    @Override
+    public void errorLog(String message) {
+        errorLogger.log(message);
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+        errorLogger.log(throwable);
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+        this.threadDepth += delta;
+    }
+
+    private static class Shard {
+        private final int shardIndex;
+        private final ReentrantLock lock = new ReentrantLock();
+        // guarded by lock
+        private final byte[] header = new byte[PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE];
+        private OutputStream out;
+        private String currentFile;
+        private int eventCount;
+
+        Shard(int shardIndex) {
+            this.shardIndex = shardIndex;
+        }
+    }
+}
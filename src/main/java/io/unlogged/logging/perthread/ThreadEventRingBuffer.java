@@ -0,0 +1,235 @@
+package io.unlogged.logging.perthread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.unlogged.logging.util.EventIdUtil;
+
+/**
+ * A single producer, single consumer byte ring owned by one application thread.
+ * <p>
+ * The owner thread appends event records and publishes the new tail with an ordered store, the
+ * drainer thread copies everything between head and the published tail into the current .selog file
+ * of the thread and then releases the space by moving head forward. Neither side ever takes a lock.
+ * <p>
+ * Records are laid out exactly like the records written by PerThreadBinaryFileAggregatedLogger, so the
+ * files produced from a ring are byte for byte compatible with the stream writer.
+ */
+final class ThreadEventRingBuffer {
+
+    private final int threadId;
+    private final WeakReference<Thread> ownerThread;
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    // head is written by the drainer, publishedTail by the owner. Kept in separate objects so the two
+    // counters do not share a cache line with each other or with the owner only fields below.
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong publishedTail = new AtomicLong(0);
+    private final AtomicLong droppedEvents = new AtomicLong(0);
+
+    // owner thread only
+    private long tail = 0;
+    private long cachedHead = 0;
+    private long nextLocalSequence = 0;
+    private final RingOutputStream ringOutputStream = new RingOutputStream();
+
+    // drainer thread only
+    OutputStream out;
+    String currentFile;
+    long bytesInFile;
+    long fileOpenedAt;
+    long reportedDroppedEvents;
+
+    /**
+     * @param threadId    id assigned to the owner thread, used in the .selog file names
+     * @param ownerThread the thread which is going to write into this buffer
+     * @param capacity    size of the ring in bytes, must be a power of two
+     */
+    ThreadEventRingBuffer(int threadId, Thread ownerThread, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("ring buffer capacity must be a power of two: " + capacity);
+        }
+        this.threadId = threadId;
+        this.ownerThread = new WeakReference<>(ownerThread);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = new byte[capacity];
+    }
+
+    int getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * Append an event record without serialized data. Called by the owner thread only.
+     *
+     * @return false when the ring is full and the event was dropped
+     */
+    boolean writeEvent(long timestamp, int probeId, long valueId) {
+        if (!claim(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE)) {
+            return false;
+        }
+        long position = putHeader(tail, nextEventId(), timestamp, probeId, valueId, 0);
+        publish(position);
+        return true;
+    }
+
+    /**
+     * Append an event record followed by its serialized value. Called by the owner thread only.
+     *
+     * @return false when the ring does not have enough free space and the event was dropped
+     */
+    boolean writeEvent(long timestamp, int probeId, long valueId, byte[] serializedValue) {
+        int length = serializedValue.length;
+        if (!claim(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + length)) {
+            return false;
+        }
+        long position = putHeader(tail, nextEventId(), timestamp, probeId, valueId, length);
+        putBytes(position, serializedValue, 0, length);
+        publish(position + length);
+        return true;
+    }
+
+    /**
+     * Append an event record followed by the contents of the stream, without copying the stream
+     * contents into an intermediate array. Called by the owner thread only.
+     *
+     * @return false when the ring does not have enough free space and the event was dropped
+     */
+    boolean writeEvent(long timestamp, int probeId, long valueId,
+                       ByteArrayOutputStream serializedValue) throws IOException {
+        int length = serializedValue.size();
+        if (!claim(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + length)) {
+            return false;
+        }
+        long position = putHeader(tail, nextEventId(), timestamp, probeId, valueId, length);
+        ringOutputStream.position = position;
+        serializedValue.writeTo(ringOutputStream);
+        publish(position + length);
+        return true;
+    }
+
+    /**
+     * Copy all published records to the output stream and release their space in the ring.
+     * Called by the drainer thread only.
+     *
+     * @param outputStream destination file stream of this thread
+     * @return number of bytes moved
+     * @throws IOException when the write to the output stream fails
+     */
+    int drainTo(OutputStream outputStream) throws IOException {
+        long start = head.get();
+        long end = publishedTail.get();
+        if (end == start) {
+            return 0;
+        }
+        int index = (int) (start & mask);
+        int length = (int) (end - start);
+        int firstPart = Math.min(length, capacity - index);
+        outputStream.write(buffer, index, firstPart);
+        if (firstPart < length) {
+            outputStream.write(buffer, 0, length - firstPart);
+        }
+        head.lazySet(end);
+        return length;
+    }
+
+    boolean hasPendingData() {
+        return publishedTail.get() != head.get();
+    }
+
+    boolean isOwnerAlive() {
+        Thread thread = ownerThread.get();
+        return thread != null && thread.isAlive();
+    }
+
+    long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    private boolean claim(int length) {
+        if (length > capacity) {
+            droppedEvents.lazySet(droppedEvents.get() + 1);
+            return false;
+        }
+        long wrapPoint = tail + length - capacity;
+        if (wrapPoint > cachedHead) {
+            cachedHead = head.get();
+            if (wrapPoint > cachedHead) {
+                droppedEvents.lazySet(droppedEvents.get() + 1);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dropped events do not consume a sequence number, so gaps in the local sequence of a thread are
+     * never caused by a full ring.
+     */
+    private long nextEventId() {
+        return EventIdUtil.toEventId(threadId, nextLocalSequence++);
+    }
+
+    private void publish(long newTail) {
+        tail = newTail;
+        publishedTail.lazySet(newTail);
+    }
+
+    private long putHeader(long position, long eventId, long timestamp, int probeId, long valueId, int length) {
+        buffer[(int) (position & mask)] = 7;
+        putLong(position + 1, eventId);
+        putLong(position + 9, timestamp);
+        putInt(position + 17, probeId);
+        putLong(position + 21, valueId);
+        // the length of the serialized value is at byte 29 as an integer
+        putInt(position + 29, length);
+        return position + PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE;
+    }
+
+    private void putInt(long position, int value) {
+        buffer[(int) (position & mask)] = (byte) (value >>> 24);
+        buffer[(int) ((position + 1) & mask)] = (byte) (value >>> 16);
+        buffer[(int) ((position + 2) & mask)] = (byte) (value >>> 8);
+        buffer[(int) ((position + 3) & mask)] = (byte) value;
+    }
+
+    private void putLong(long position, long value) {
+        putInt(position, (int) (value >>> 32));
+        putInt(position + 4, (int) value);
+    }
+
+    private void putBytes(long position, byte[] source, int offset, int length) {
+        int index = (int) (position & mask);
+        int firstPart = Math.min(length, capacity - index);
+        System.arraycopy(source, offset, buffer, index, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(source, offset + firstPart, buffer, 0, length - firstPart);
+        }
+    }
+
+    /**
+     * Lets ByteArrayOutputStream.writeTo copy its contents straight into the ring.
+     * Space for the contents has to be claimed before writing.
+     */
+    private final class RingOutputStream extends OutputStream {
+        private long position;
+
+        @Override
+        public void write(int b) {
+            buffer[(int) (position & mask)] = (byte) b;
+            position++;
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int length) {
+            putBytes(position, source, offset, length);
+            position += length;
+        }
+    }
+}
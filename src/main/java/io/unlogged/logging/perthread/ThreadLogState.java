@@ -0,0 +1,171 @@
+package io.unlogged.logging.perthread;
+
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import io.unlogged.logging.util.EventIdUtil;
+
+/**
+ * Recording state owned by a single application thread, looked up once per event through a ThreadLocal.
+ * <p>
+ * The event counter is only ever written by the owner thread, with an ordered store and without boxing.
+ * Other threads (the file rotation checker) read it through getEventsInCurrentFile. Each state is created
+ * by its owner thread, so it is allocated in that thread's TLAB next to the owner's own objects.
+ */
+final class ThreadLogState {
+
+    private static final AtomicIntegerFieldUpdater<ThreadLogState> EVENT_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadLogState.class, "eventCount");
+    private static final AtomicIntegerFieldUpdater<ThreadLogState> WRITER_STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadLogState.class, "writerState");
+    private static final int IDLE = 0;
+    private static final int WRITING = 1;
+    private static final int ROTATING = 2;
+
+    private final int threadId;
+    private final WeakReference<Thread> ownerThread;
+    private long nextLocalSequence = 0;
+    /**
+     * Total events written by the owner thread, monotonic.
+     */
+    private volatile int eventCount = 0;
+    /**
+     * Value of eventCount when the current file was opened, written while rotating the file.
+     */
+    private volatile int eventCountAtFileStart = 0;
+    /**
+     * Handoff between the owner thread and the file rotation task, the fields below are only touched by
+     * whichever side moved this from IDLE.
+     */
+    private volatile int writerState = IDLE;
+    OutputStream out;
+    String currentFile;
+    long fileDeadline;
+
+    // delta base of the compact record format, owner thread only
+    private Object compactEncodingTarget;
+    private long previousEventId;
+    private long previousTimestamp;
+
+    /**
+     * Created on the owner thread.
+     */
+    ThreadLogState(int threadId) {
+        this(threadId, 0);
+    }
+
+    /**
+     * Created on the owner thread, for a thread id taken over from an ended thread.
+     *
+     * @param firstLocalSequence local sequence of the first event, after the last event of the previous
+     *                           thread with this id so that event ids stay unique
+     */
+    ThreadLogState(int threadId, long firstLocalSequence) {
+        this.threadId = threadId;
+        this.nextLocalSequence = firstLocalSequence;
+        this.ownerThread = new WeakReference<>(Thread.currentThread());
+    }
+
+    int getThreadId() {
+        return threadId;
+    }
+
+    boolean isOwnerAlive() {
+        Thread thread = ownerThread.get();
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Called by the owner thread before touching its file. Only waits while the rotation task is closing
+     * the file of this thread, which never blocks on anything else.
+     */
+    void beginWrite() {
+        while (!WRITER_STATE_UPDATER.compareAndSet(this, IDLE, WRITING)) {
+            Thread.yield();
+        }
+    }
+
+    void endWrite() {
+        WRITER_STATE_UPDATER.lazySet(this, IDLE);
+    }
+
+    /**
+     * Called by the rotation task.
+     *
+     * @return false when the owner thread is writing, the owner checks the rotation deadline itself then
+     */
+    boolean tryBeginRotation() {
+        return WRITER_STATE_UPDATER.compareAndSet(this, IDLE, ROTATING);
+    }
+
+    void endRotation() {
+        writerState = IDLE;
+    }
+
+    /**
+     * Called by the owner thread only.
+     *
+     * @return the next event id of this thread, see EventIdUtil
+     */
+    long nextEventId() {
+        return EventIdUtil.toEventId(threadId, nextLocalSequence++);
+    }
+
+    /**
+     * Only read once the owner thread has ended.
+     */
+    long getNextLocalSequence() {
+        return nextLocalSequence;
+    }
+
+    /**
+     * Count one more event in the current file. Called by the owner thread only, so a plain read
+     * followed by an ordered store is enough.
+     *
+     * @return number of events in the current file including this one
+     */
+    int incrementEventCount() {
+        int newCount = eventCount + 1;
+        EVENT_COUNT_UPDATER.lazySet(this, newCount);
+        return newCount - eventCountAtFileStart;
+    }
+
+    /**
+     * Safe to call from any thread.
+     *
+     * @return number of events written since the current file was opened
+     */
+    int getEventsInCurrentFile() {
+        return eventCount - eventCountAtFileStart;
+    }
+
+    /**
+     * Start counting from zero for a newly opened file. The owner's counter is never reset, so this
+     * cannot lose an increment racing with it.
+     */
+    void markFileStart() {
+        eventCountAtFileStart = eventCount;
+    }
+
+    /**
+     * Encode a compact record header for the owner thread. The delta base restarts whenever the records
+     * go to a different target, so the first record of every file is decoded from zero.
+     *
+     * @param target the file stream or segment the record is written into
+     * @return number of header bytes written into the buffer
+     */
+    int encodeCompactHeader(byte[] buffer, Object target, long timestamp, int probeId, long valueId, int length) {
+        if (target != compactEncodingTarget) {
+            compactEncodingTarget = target;
+            previousEventId = 0;
+            previousTimestamp = 0;
+        }
+        long eventId = nextEventId();
+        int headerLength = CompactEventFormat.encodeHeader(buffer, eventId - previousEventId,
+                timestamp - previousTimestamp, probeId, valueId, length);
+        previousEventId = eventId;
+        previousTimestamp = timestamp;
+        return headerLength;
+    }
+}
@@ -0,0 +1,48 @@
+package io.unlogged.logging.perthread;
+
+/**
+ * Recording throughput of one application thread, as of the last sample taken by RecordingMetrics.
+ */
+public class ThreadMetrics {
+
+    private final long threadId;
+    private final String threadName;
+    private final long events;
+    private final long bytes;
+    private final double eventsPerSecond;
+    private final double bytesPerSecond;
+
+    ThreadMetrics(long threadId, String threadName, long events, long bytes,
+                  double eventsPerSecond, double bytesPerSecond) {
+        this.threadId = threadId;
+        this.threadName = threadName;
+        this.events = events;
+        this.bytes = bytes;
+        this.eventsPerSecond = eventsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
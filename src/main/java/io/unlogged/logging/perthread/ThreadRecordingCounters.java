@@ -0,0 +1,224 @@
+package io.unlogged.logging.perthread;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Event, byte and per probe counters of a single application thread. Only the owner thread writes them,
+ * with ordered stores, so counting an event takes no lock. The sampling task reads them from another
+ * thread and may see a slightly older value, it keeps what it computes in RecordingMetrics so that it
+ * never writes to this object.
+ * <p>
+ * When the recording cost is measured, the calls into the event logger are counted here as well and one
+ * of every RECORDING_SAMPLE_INTERVAL calls is timed. A call made while another one of the same thread is
+ * in progress, a logger recording from woven code, is neither counted nor timed, its time is already
+ * part of the outer call.
+ */
+public final class ThreadRecordingCounters {
+
+    /**
+     * One of this many recordings is timed, a power of two.
+     */
+    public static final int RECORDING_SAMPLE_INTERVAL = 64;
+
+    private static final AtomicLongFieldUpdater<ThreadRecordingCounters> EVENTS_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ThreadRecordingCounters.class, "events");
+    private static final AtomicLongFieldUpdater<ThreadRecordingCounters> BYTES_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ThreadRecordingCounters.class, "bytes");
+    private static final AtomicLongFieldUpdater<ThreadRecordingCounters> RECORDINGS_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ThreadRecordingCounters.class, "recordings");
+    private static final AtomicLongFieldUpdater<ThreadRecordingCounters> TIMED_RECORDINGS_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ThreadRecordingCounters.class, "timedRecordings");
+    private static final AtomicLongFieldUpdater<ThreadRecordingCounters> TIMED_NANOS_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ThreadRecordingCounters.class, "timedNanos");
+    private static final long TIMER_OVERHEAD_NANOS = measureTimerOverhead();
+    private static final int INITIAL_PROBE_CAPACITY = 64;
+
+    private final long threadId;
+    private final String threadName;
+    private final WeakReference<Thread> ownerThread;
+    private volatile long events = 0;
+    private volatile long bytes = 0;
+    private volatile long recordings = 0;
+    private volatile long timedRecordings = 0;
+    private volatile long timedNanos = 0;
+    // owner thread only
+    private int recordingDepth = 0;
+    /**
+     * Replaced by the owner when it fills up, readers always see a complete table.
+     */
+    private volatile ProbeCountTable probeCounts = new ProbeCountTable(INITIAL_PROBE_CAPACITY);
+
+    /**
+     * Created on the owner thread.
+     */
+    ThreadRecordingCounters() {
+        Thread thread = Thread.currentThread();
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.ownerThread = new WeakReference<>(thread);
+    }
+
+    /**
+     * Called by the owner thread only.
+     */
+    void count(int probeId, int recordBytes) {
+        EVENTS_UPDATER.lazySet(this, events + 1);
+        BYTES_UPDATER.lazySet(this, bytes + recordBytes);
+        ProbeCountTable table = probeCounts;
+        if (!table.increment(probeId)) {
+            table = table.grow();
+            table.increment(probeId);
+            probeCounts = table;
+        }
+    }
+
+    private static long measureTimerOverhead() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long start = System.nanoTime();
+            min = Math.min(min, System.nanoTime() - start);
+        }
+        return min;
+    }
+
+    /**
+     * Called by the owner thread before a call into the event logger, every call must be followed by an
+     * endRecording.
+     *
+     * @return the start time when this recording is to be timed, 0 otherwise
+     */
+    public long beginRecording() {
+        if (recordingDepth++ > 0) {
+            return 0;
+        }
+        long count = recordings + 1;
+        RECORDINGS_UPDATER.lazySet(this, count);
+        return (count & (RECORDING_SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Called by the owner thread after a call into the event logger.
+     *
+     * @param start the value returned by the matching beginRecording
+     */
+    public void endRecording(long start) {
+        recordingDepth--;
+        if (start == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start - TIMER_OVERHEAD_NANOS;
+        TIMED_NANOS_UPDATER.lazySet(this, timedNanos + Math.max(0, elapsed));
+        TIMED_RECORDINGS_UPDATER.lazySet(this, timedRecordings + 1);
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    String getThreadName() {
+        return threadName;
+    }
+
+    long getEvents() {
+        return events;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getRecordings() {
+        return recordings;
+    }
+
+    long getTimedRecordings() {
+        return timedRecordings;
+    }
+
+    long getTimedNanos() {
+        return timedNanos;
+    }
+
+    boolean isOwnerAlive() {
+        Thread thread = ownerThread.get();
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Add the probe counts of this thread into the given map.
+     */
+    void addProbeCountsTo(Map<Integer, Long> probeEventCounts) {
+        probeCounts.addTo(probeEventCounts);
+    }
+
+    /**
+     * Open addressing map from probe id to event count, kept at most half full. Keys are stored as
+     * probe id + 1 so that zero marks an empty slot.
+     */
+    static final class ProbeCountTable {
+        private final int[] keys;
+        private final long[] counts;
+        private int size = 0;
+
+        ProbeCountTable(int capacity) {
+            keys = new int[capacity];
+            counts = new long[capacity];
+        }
+
+        /**
+         * @return false when the probe is new and the table has no room left for it
+         */
+        boolean increment(int probeId) {
+            int key = probeId + 1;
+            int mask = keys.length - 1;
+            int slot = (key * 0x9E3779B9) & mask;
+            while (true) {
+                int current = keys[slot];
+                if (current == key) {
+                    counts[slot]++;
+                    return true;
+                }
+                if (current == 0) {
+                    if (size >= keys.length / 2) {
+                        return false;
+                    }
+                    counts[slot] = 1;
+                    keys[slot] = key;
+                    size++;
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        ProbeCountTable grow() {
+            ProbeCountTable grown = new ProbeCountTable(keys.length * 2);
+            int mask = grown.keys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                int key = keys[i];
+                if (key == 0) {
+                    continue;
+                }
+                int slot = (key * 0x9E3779B9) & mask;
+                while (grown.keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                grown.keys[slot] = key;
+                grown.counts[slot] = counts[i];
+            }
+            grown.size = size;
+            return grown;
+        }
+
+        void addTo(Map<Integer, Long> probeEventCounts) {
+            for (int i = 0; i < keys.length; i++) {
+                int key = keys[i];
+                if (key != 0) {
+                    probeEventCounts.merge(key - 1, counts[i], Long::sum);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.unlogged.logging.perthread;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, duration and failures of a repeated step of the recording pipeline (serializing a value,
+ * closing an archive, uploading an archive). Updated by any thread, read by the /metrics route and JMX.
+ */
+public class TimingStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong(0);
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastNanos = 0;
+    private volatile long lastCompletedAt = 0;
+
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        lastNanos = nanos;
+        lastCompletedAt = System.currentTimeMillis();
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    void recordFailure() {
+        failures.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getAverageNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / count;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return epoch millis of the last completion, 0 when nothing completed yet
+     */
+    public long getLastCompletedAt() {
+        return lastCompletedAt;
+    }
+}
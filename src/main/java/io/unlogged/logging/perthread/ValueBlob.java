@@ -0,0 +1,37 @@
+package io.unlogged.logging.perthread;
+
+/**
+ * Serialized value kept by the RawFileCollector for the events which refer to it, until the log files
+ * holding these events are archived. The reference count is only changed inside the map operations of
+ * the collector.
+ */
+class ValueBlob {
+    private final byte[] hash;
+    private final byte[] value;
+    private int references = 1;
+
+    ValueBlob(byte[] hash, byte[] value) {
+        this.hash = hash;
+        this.value = value;
+    }
+
+    byte[] getHash() {
+        return hash;
+    }
+
+    byte[] getValue() {
+        return value;
+    }
+
+    ValueBlob addReference() {
+        references++;
+        return this;
+    }
+
+    /**
+     * @return true when no event refers to the value anymore
+     */
+    boolean removeReference() {
+        return --references == 0;
+    }
+}
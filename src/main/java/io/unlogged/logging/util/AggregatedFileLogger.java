@@ -11,6 +11,18 @@ public interface AggregatedFileLogger {
 
     void writeNewTypeRecord(int typeId, String typeName, byte[] toString);
 
+    /**
+     * @return false when the frame was not kept, its ID must then not be given to any exception
+     */
+    boolean writeNewStackFrame(int frameId, byte[] frameRecord);
+
+    void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds);
+
+    /**
+     * @return false when the value was not kept, the event must then carry the value itself
+     */
+    boolean writeNewBlob(byte[] blobHash, byte[] value);
+
     void writeWeaveInfo(byte[] byteArray);
 
     void shutdown() throws IOException, InterruptedException;
@@ -0,0 +1,66 @@
+package io.unlogged.logging.util;
+
+/**
+ * Payload of the composite array load and store events.
+ * <p>
+ * An array access is recorded as a single type 7 record on the ARRAY_LOAD or ARRAY_STORE probe, the value
+ * id of the record is the object id of the array and the payload carries the index (4 bytes, big endian)
+ * followed by the element value (8 bytes, same long representation as a recordEvent of the element type,
+ * object id for object arrays). Loads recorded by classes woven before the value was passed only carry
+ * the index, their value comes in a separate ARRAY_LOAD_RESULT event.
+ * <p>
+ * The returned arrays are reused by the calling thread, writers copy them before returning.
+ */
+public class ArrayEventPayload {
+
+    public static final int INDEX_ONLY_SIZE = 4;
+    public static final int INDEX_VALUE_SIZE = 12;
+
+    private static final ThreadLocal<byte[]> indexBuffer = ThreadLocal.withInitial(() -> new byte[INDEX_ONLY_SIZE]);
+    private static final ThreadLocal<byte[]> indexValueBuffer =
+            ThreadLocal.withInitial(() -> new byte[INDEX_VALUE_SIZE]);
+
+    public static byte[] encode(int index) {
+        byte[] buffer = indexBuffer.get();
+        putIndex(buffer, index);
+        return buffer;
+    }
+
+    public static byte[] encode(int index, long value) {
+        byte[] buffer = indexValueBuffer.get();
+        putIndex(buffer, index);
+        buffer[4] = (byte) (value >>> 56);
+        buffer[5] = (byte) (value >>> 48);
+        buffer[6] = (byte) (value >>> 40);
+        buffer[7] = (byte) (value >>> 32);
+        buffer[8] = (byte) (value >>> 24);
+        buffer[9] = (byte) (value >>> 16);
+        buffer[10] = (byte) (value >>> 8);
+        buffer[11] = (byte) (value >>> 0);
+        return buffer;
+    }
+
+    private static void putIndex(byte[] buffer, int index) {
+        buffer[0] = (byte) (index >>> 24);
+        buffer[1] = (byte) (index >>> 16);
+        buffer[2] = (byte) (index >>> 8);
+        buffer[3] = (byte) (index >>> 0);
+    }
+
+    public static int getIndex(byte[] payload) {
+        return ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+    }
+
+    public static boolean hasValue(byte[] payload) {
+        return payload.length >= INDEX_VALUE_SIZE;
+    }
+
+    public static long getValue(byte[] payload) {
+        long value = 0;
+        for (int i = 4; i < INDEX_VALUE_SIZE; i++) {
+            value = (value << 8) | (payload[i] & 0xff);
+        }
+        return value;
+    }
+}
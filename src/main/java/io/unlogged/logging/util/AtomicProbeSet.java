@@ -0,0 +1,75 @@
+package io.unlogged.logging.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of probe ids kept as a bitset indexed by probe id. contains is a volatile read and a bit test, without
+ * locking or boxing. Probes are added as classes are woven and removed at most once each, so updates take
+ * the lock of the set and the bitset is copied into a larger one when a probe id is beyond its end.
+ */
+public class AtomicProbeSet {
+
+    private volatile AtomicLongArray words = new AtomicLongArray(0);
+    private volatile int size;
+
+    public boolean contains(int probeId) {
+        AtomicLongArray words = this.words;
+        int word = probeId >>> 6;
+        return word < words.length() && (words.get(word) & (1L << probeId)) != 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public synchronized boolean add(int probeId) {
+        if (probeId < 0) {
+            throw new IllegalArgumentException("negative probe id: " + probeId);
+        }
+        int word = probeId >>> 6;
+        AtomicLongArray words = this.words;
+        if (word >= words.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, words.length() * 2));
+            for (int i = 0; i < words.length(); i++) {
+                grown.set(i, words.get(i));
+            }
+            this.words = grown;
+            words = grown;
+        }
+        long value = words.get(word);
+        long bit = 1L << probeId;
+        if ((value & bit) != 0) {
+            return false;
+        }
+        words.set(word, value | bit);
+        size++;
+        return true;
+    }
+
+    public synchronized void addAll(Collection<Integer> probeIds) {
+        for (Integer probeId : probeIds) {
+            add(probeId);
+        }
+    }
+
+    public synchronized boolean remove(int probeId) {
+        AtomicLongArray words = this.words;
+        int word = probeId >>> 6;
+        if (probeId < 0 || word >= words.length()) {
+            return false;
+        }
+        long value = words.get(word);
+        long bit = 1L << probeId;
+        if ((value & bit) == 0) {
+            return false;
+        }
+        words.set(word, value & ~bit);
+        size--;
+        return true;
+    }
+}
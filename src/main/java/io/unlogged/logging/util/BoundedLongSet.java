@@ -0,0 +1,82 @@
+package io.unlogged.logging.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent set of long values with a fixed capacity, for values which only need to be remembered for a
+ * while. A value hashes to a bucket of BUCKET_SIZE slots. When the bucket is full, adding a value evicts one
+ * of them, so memory stays the same however many values are added.
+ * <p>
+ * contains and add do not lock or allocate. Two threads adding the same value together may both store it,
+ * which only costs a slot.
+ */
+public class BoundedLongSet {
+
+    private static final int BUCKET_SIZE = 8;
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray slots;
+    private final int bucketMask;
+    /**
+     * 0 marks an empty slot, so it is kept apart
+     */
+    private volatile boolean containsEmpty;
+
+    /**
+     * @param capacity number of values kept, rounded up to a power of two
+     */
+    public BoundedLongSet(int capacity) {
+        int slotCount = BUCKET_SIZE;
+        while (slotCount < capacity && slotCount < (1 << 30)) {
+            slotCount <<= 1;
+        }
+        this.slots = new AtomicLongArray(slotCount);
+        this.bucketMask = slotCount / BUCKET_SIZE - 1;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsEmpty;
+        }
+        int start = ((int) mix(value) & bucketMask) * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (slots.get(i) == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a value, evicting another value of its bucket when the bucket is full.
+     */
+    public void add(long value) {
+        if (value == EMPTY) {
+            containsEmpty = true;
+            return;
+        }
+        long hash = mix(value);
+        int start = ((int) hash & bucketMask) * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            long current = slots.get(i);
+            if (current == value) {
+                return;
+            }
+            if (current == EMPTY && slots.compareAndSet(i, EMPTY, value)) {
+                return;
+            }
+        }
+        // the high bits of the hash, unused by the bucket index, pick the value to evict
+        slots.set(start + ((int) (hash >>> 32) & (BUCKET_SIZE - 1)), value);
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+}
@@ -0,0 +1,53 @@
+package io.unlogged.logging.util;
+
+/**
+ * Event ids are assigned without any shared counter.
+ * <p>
+ * The high THREAD_SLOT_BITS bits of an event id hold the id of the recording thread, the low
+ * LOCAL_SEQUENCE_BITS bits hold a counter owned by that thread. Ids are unique and increase within a
+ * thread, but are not ordered across threads. A reader rebuilds the global order of events from several
+ * threads by sorting on (timestamp, thread slot, local sequence), see compareEventOrder.
+ */
+public class EventIdUtil {
+
+    public static final int THREAD_SLOT_BITS = 24;
+    public static final int LOCAL_SEQUENCE_BITS = 64 - THREAD_SLOT_BITS;
+    public static final long LOCAL_SEQUENCE_MASK = (1L << LOCAL_SEQUENCE_BITS) - 1;
+    public static final int THREAD_SLOT_MASK = (1 << THREAD_SLOT_BITS) - 1;
+
+    /**
+     * @param threadId      id assigned to the recording thread, wraps after 2^24 threads
+     * @param localSequence per thread counter, wraps after 2^40 events
+     * @return event id
+     */
+    public static long toEventId(int threadId, long localSequence) {
+        return ((long) (threadId & THREAD_SLOT_MASK) << LOCAL_SEQUENCE_BITS) | (localSequence & LOCAL_SEQUENCE_MASK);
+    }
+
+    public static int getThreadSlot(long eventId) {
+        return (int) (eventId >>> LOCAL_SEQUENCE_BITS);
+    }
+
+    public static long getLocalSequence(long eventId) {
+        return eventId & LOCAL_SEQUENCE_MASK;
+    }
+
+    /**
+     * Merge rule for events from different per thread files. Timestamps are System.nanoTime values
+     * which never go back within a thread, the thread slot breaks ties between threads and the local
+     * sequence keeps the recorded order of events with the same timestamp within a thread.
+     *
+     * @return a negative number, zero, or a positive number as the first event is ordered before, same as,
+     * or after the second event
+     */
+    public static int compareEventOrder(long timestamp1, long eventId1, long timestamp2, long eventId2) {
+        if (timestamp1 != timestamp2) {
+            return Long.compare(timestamp1, timestamp2);
+        }
+        int slotCompare = Integer.compare(getThreadSlot(eventId1), getThreadSlot(eventId2));
+        if (slotCompare != 0) {
+            return slotCompare;
+        }
+        return Long.compare(getLocalSequence(eventId1), getLocalSequence(eventId2));
+    }
+}
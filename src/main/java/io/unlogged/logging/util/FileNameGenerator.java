@@ -43,4 +43,12 @@ public class FileNameGenerator {
     public String getOutputDir() {
         return dir.getAbsolutePath();
     }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
 }
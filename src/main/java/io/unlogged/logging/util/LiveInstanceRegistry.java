@@ -0,0 +1,63 @@
+package io.unlogged.logging.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps an instance of each class seen in the recorded values, so that a direct invoke can call a method on
+ * a live object of the target class. Instances are held through weak references and the entry of a collected
+ * instance is replaced by the next instance registered under its name.
+ * <p>
+ * The first instance registered under a name is kept, except for Spring CGLIB proxies, which replace it since
+ * the proxy is the bean the application calls through.
+ */
+public class LiveInstanceRegistry {
+
+    private final ConcurrentHashMap<String, WeakReference<Object>> instances = new ConcurrentHashMap<>();
+
+    /**
+     * @param name     the class name with the suffixes of generated subclasses removed
+     * @param instance the object to keep
+     * @param proxy    true when the instance is a CGLIB proxy, it then replaces the instance kept for the name
+     * @return the reference kept for the name after the call, callers can skip registering more instances
+     * of the class while it is not cleared
+     */
+    public WeakReference<Object> register(String name, Object instance, boolean proxy) {
+        WeakReference<Object> reference = new WeakReference<>(instance);
+        if (proxy) {
+            instances.put(name, reference);
+            return reference;
+        }
+        while (true) {
+            WeakReference<Object> existing = instances.putIfAbsent(name, reference);
+            if (existing == null) {
+                return reference;
+            }
+            if (existing.get() != null) {
+                return existing;
+            }
+            if (instances.replace(name, existing, reference)) {
+                return reference;
+            }
+        }
+    }
+
+    /**
+     * @return the instance kept for the name, null when none was seen or it was collected
+     */
+    public Object get(String name) {
+        WeakReference<Object> reference = instances.get(name);
+        if (reference == null) {
+            return null;
+        }
+        Object instance = reference.get();
+        if (instance == null) {
+            instances.remove(name, reference);
+        }
+        return instance;
+    }
+
+    public int size() {
+        return instances.size();
+    }
+}
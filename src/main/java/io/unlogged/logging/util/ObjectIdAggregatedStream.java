@@ -14,6 +14,7 @@ public class ObjectIdAggregatedStream extends ObjectIdMap {
     private final String lineSeparator = "\n";
     private final AggregatedFileLogger aggregatedLogger;
     private final TypeIdAggregatedStreamMap typeToId;
+    private final StackFrameTable stackFrameTable;
 
     /**
      * Create an instance to record object types.
@@ -26,9 +27,10 @@ public class ObjectIdAggregatedStream extends ObjectIdMap {
     public ObjectIdAggregatedStream(
             AggregatedFileLogger aggregatedLogger,
             TypeIdAggregatedStreamMap typeToId, File outputDir) throws IOException {
-        super(8 * 1024 * 1024, outputDir);
+        super(64 * 1024, outputDir);
         this.typeToId = typeToId;
         this.aggregatedLogger = aggregatedLogger;
+        this.stackFrameTable = new StackFrameTable(aggregatedLogger);
     }
 
     /**
@@ -45,7 +47,7 @@ public class ObjectIdAggregatedStream extends ObjectIdMap {
 
     /**
      * Record an object ID and its Type ID in a file.
-     * In case of String and Throwable, this method also record their textual contents.
+     * In case of Throwable, this method also records its message, cause and stack trace.
      */
     @Override
     protected void onNewObjectId(Object o, long id) {
@@ -61,48 +63,33 @@ public class ObjectIdAggregatedStream extends ObjectIdMap {
 //        } else
         if (o instanceof Throwable) {
             try {
-                Throwable t = (Throwable) o;
-                long causeId = getId(t.getCause());
-
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                DataOutputStream output = new DataOutputStream(outputStream);
-                output.writeLong(id);
-                byte[] messageBytes = t.getMessage().getBytes();
-                output.writeInt(messageBytes.length);
-                output.write(messageBytes);
-                output.writeLong(causeId);
-
-                StackTraceElement[] trace = t.getStackTrace();
-
-                // todo: recording only first item in the stack trace for now, need to record the
-                //  whole stack trace for better reproducibility ?
-                for (int i = 0; i < 1; ++i) {
-                    StackTraceElement e = trace[i];
-
-                    byte[] classNameBytes = e.getClassName().getBytes();
-                    byte[] methodNameBytes = e.getMethodName().getBytes();
-                    byte[] fileNameBytes = e.getFileName().getBytes();
-
-                    output.writeBoolean(e.isNativeMethod());
-
-                    output.writeInt(classNameBytes.length);
-                    output.write(classNameBytes);
-
-                    output.writeInt(methodNameBytes.length);
-                    output.write(methodNameBytes);
-
-                    output.writeInt(fileNameBytes.length);
-                    output.write(fileNameBytes);
-
-                    output.writeInt(e.getLineNumber());
-
-                }
+                writeException((Throwable) o, id);
             } catch (Throwable e) {
                 // ignore all exceptions
             }
         }
     }
 
+    /**
+     * Exception record: object ID, message as a length and UTF-8 bytes or -1 for no message, object ID of
+     * the cause, then the number of stack frames and the ID of each frame in the StackFrameTable.
+     */
+    private void writeException(Throwable t, long id) throws IOException {
+        long causeId = getId(t.getCause());
+        int[] frameIds = stackFrameTable.getFrameIds(t.getStackTrace());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(32 + 4 * frameIds.length);
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeLong(id);
+        StackFrameTable.writeString(output, t.getMessage());
+        output.writeLong(causeId);
+        output.writeInt(frameIds.length);
+        for (int frameId : frameIds) {
+            output.writeInt(frameId);
+        }
+        aggregatedLogger.writeNewException(id, outputStream.toByteArray(), frameIds);
+    }
+
     /**
      * Close the files written by this object.
      */
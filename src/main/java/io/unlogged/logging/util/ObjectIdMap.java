@@ -1,66 +1,52 @@
 package io.unlogged.logging.util;
 
-import com.insidious.common.BloomFilterUtil;
-import orestes.bloomfilter.BloomFilter;
-
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
  * This object assigns a unique ID to each object reference.
  * Conceptually, this is a kind of IdentityHashMap from Object to long.
+ * <p>
+ * Objects are held through weak references in open addressing tables, one per stripe, selected by the
+ * identity hash of the object. Lookups of known objects do not lock, new objects are added under the lock
+ * of their stripe, which also removes the entries of collected objects queued on its ReferenceQueue. IDs
+ * come from a single counter, so two objects never share an ID, even after one of them is collected.
  */
 public class ObjectIdMap {
 
-    public static final int INT_MAP_CAPACITY = 1024 * 1024;
-    private final long nextId;
-    private final int andKey;
-    private final int size;
-    private final int INT_MAX_BIT = 30;
-    private final int idCount = 0;
-    BloomFilter<Integer> aggregatedProbeIdSet;
-    private Entry[] entries;
-    private int capacity;
-    private int threshold;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+    private static final int MIN_STRIPE_CAPACITY = 64;
+    private static final IdEntry TOMBSTONE = new IdEntry(null, 0, 0, null);
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
 
     /**
      * Create an instance.
      *
-     * @param initialCapacity is the size of an internal array to manage the contents.
+     * @param initialCapacity is the number of objects expected, the tables grow and shrink from there.
      * @param outputDir       location to save the object map, optional
      */
     public ObjectIdMap(int initialCapacity, File outputDir) throws IOException {
-        size = 0;
-        nextId = 1;
-
-        // To ensure capacity == 0b100...000, so that andKey == 0b111...111
-        for (int i = 0; i < INT_MAX_BIT + 1; ++i) {
-            capacity = 1 << i;
-            if (capacity > initialCapacity) {
-                break;
-            }
+        int stripeCapacity = MIN_STRIPE_CAPACITY;
+        while (stripeCapacity < Math.min(1 << 24, 2L * initialCapacity / STRIPE_COUNT)) {
+            stripeCapacity <<= 1;
+        }
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
         }
-        andKey = 0xffffffff - 1;
-//        File objectIdMapFile = new File(outputDir.getAbsolutePath() + "/objectids.dat");
-//        objectIdMapFile.delete();
-
-//        recentIdsBuffer = new CircularFifoBuffer(capacity / 4);
-
-//        objectIdContainer = ChronicleMap
-//                .of(LongValue.class, LongValue.class)
-//                .name("objectid-map")
-//                .entries(capacity)
-//                .createPersistedTo(objectIdMapFile);
-//        threshold = capacity / 2;
-//        entries = new Entry[capacity];
-        aggregatedProbeIdSet = BloomFilterUtil.newBloomFilterForProbesNonSync(initialCapacity);
-
     }
 
-//    CircularFifoBuffer recentIdsBuffer;
+    private static int spread(int identityHash) {
+        return identityHash * 0x9E3779B9;
+    }
 
     /**
      * Translate an object into an ID.
@@ -69,98 +55,42 @@ public class ObjectIdMap {
      * @return an ID corresponding to the object.
      * 0 is returned for null.
      */
-
-//    IntIntMap4 objectMap = new IntIntMap4(1024 * 1024, 0.5f);
-
-//    public long getIdOld(Object o) {
-//        if (o == null) {
-//            return 0L;
-//        }
-//        idCount++;
-//        int id = System.identityHashCode(o);
-//
-//        int val = objectMap.get(id);
-//        if (val == 0) {
-//            objectMap.put(id, id);
-//            onNewObjectId(o, id);
-//        } else {
-//            int x = id + 1;
-//        }
-//        return id;
-//
-//    }
-//
-//    ChronicleMap<LongValue, LongValue> objectIdContainer;
-//    ThreadLocal<LongValue> keyHolder = ThreadLocal.withInitial(() -> Values.newHeapInstance(LongValue.class));
-//    ThreadLocal<LongValue> valueHolder = ThreadLocal.withInitial(() -> Values.newHeapInstance(LongValue.class));
-//
-//
-//    ExecutorService singleExecutor = Executors.newFixedThreadPool(1);
-//    public long getIdChronicleMap(Object o) {
-//        if (o == null) {
-//            return 0L;
-//        }
-//        LongValue longIdValue = keyHolder.get();
-//        int hash = System.identityHashCode(o);
-//
-////        long index = hash & andKey;
-//        longIdValue.setValue(hash);
-//        if (objectIdContainer.containsKey(longIdValue)) {
-//            return hash;
-//        }
-//        idCount++;
-////        int objectId = hash;
-//
-////        Entry newEntry = new Entry(o, objectId, objectIdContainer.get(longIdValue), hash);
-//
-//        if (objectIdContainer.size() > capacity * 0.8 && recentIdsBuffer.size() > (0.6 * (capacity / 4))) {
-//            List<Long> idsToRemove = (List<Long>) recentIdsBuffer.stream().collect(Collectors.toList());
-//            recentIdsBuffer.clear();
-//            if (idsToRemove.size() > 0) {
-//                OldIdCleaner idCleaner = new OldIdCleaner(objectIdContainer, idsToRemove);
-//                singleExecutor.submit(idCleaner);
-//            }
-//        }
-//        recentIdsBuffer.add(longIdValue);
-//
-//        try {
-//
-//            LongValue valueItem = valueHolder.get();
-//            valueItem.setValue(hash);
-//            objectIdContainer.put(longIdValue, valueItem);
-//        } catch (IllegalStateException ise) {
-//            System.err.println("Too many objects being generated, recoding will be skip [" + objectIdContainer.size() + "]");
-//        }
-//
-//        onNewObjectId(o, hash);
-//
-//        return hash;
-//    }
     public long getId(Object o) {
         if (o == null) {
             return 0L;
         }
-        int hash = System.identityHashCode(o);
-
-        if (aggregatedProbeIdSet.contains(hash)) {
-//            System.out.println("Object " + hash + " already present of type " + o.getClass());
-            return hash;
+        int hash = spread(System.identityHashCode(o));
+        Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+        long id = stripe.find(o, hash);
+        if (id != 0) {
+            return id;
         }
 
-        if (aggregatedProbeIdSet.getFalsePositiveProbability() > 0.01) {
-            System.out.println("Clearing object id bloom filter");
-            aggregatedProbeIdSet.clear();
+        onNewObject(o);
+        id = stripe.findOrAdd(o, hash, nextId);
+        if (id < 0) {
+            id = -id;
+            onNewObjectId(o, id);
         }
-        aggregatedProbeIdSet.add(hash);
-        onNewObjectId(o, hash);
+        return id;
+    }
 
-        return hash;
+    /**
+     * @return number of objects holding an ID, including collected objects not removed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
     }
 
 
     /**
      * A placeholder for handling a new object.
      * This method is called when a new object is found, before a new ID is assigned.
+     * It may be called more than once when threads find the same new object together.
      *
      * @param o is the object passed to the getId method.
      */
@@ -178,123 +108,146 @@ public class ObjectIdMap {
     }
 
 
-//    /**
-//     * Translate an object into an ID.
-//     *
-//     * @param o is an object used in the logging target program.
-//     * @return an ID corresponding to the object.
-//     * 0 is returned for null.
-//     */
-//    public synchronized long getSynchronizedId(Object o) {
-//        if (o == null) {
-//            return 0L;
-//        }
-//
-//        int hash = System.identityHashCode(o);
-//
-//        // Search the object.  If found, return the registered ID.
-//        int index = hash & andKey;
-//        Entry e = entries[index];
-//        while (e != null) {
-//            if (hash == e.hashcode) {
-//                return e.objectId;
-//            }
-//            e = e.next;
-//        }
-//
-//        // If not found, create a new entry for the given object.
-//        // First, prepares a new object
-//        onNewObject(o);
-//
-//        // Update an entry.  index is re-computed because andKey may be updated by onNewObject.
-//        index = hash & andKey;
-//        Entry oldEntry = entries[index];
-//        long id = nextId;
-//        nextId++;
-//        e = new Entry(o, id, oldEntry, hash);
-//        entries[index] = e;
-//        size++;
-//        onNewObjectId(o, id);
-//
-//        if (size >= threshold) {
-//            resize();
-//        }
-//        return id;
-//    }
-//
-//
-//    /**
-//     * Enlarge the internal array for entries.
-//     */
-//    private void resize() {
-//        if (capacity == (1 << INT_MAX_BIT)) {
-//            capacity = Integer.MAX_VALUE;
-//            threshold = Integer.MAX_VALUE;
-//            andKey = capacity;
-//        } else {
-//            capacity = capacity * 2;
-//            threshold = threshold * 2;
-//            andKey = capacity - 1;
-//        }
-//
-//        Entry[] newEntries = new Entry[capacity];
-//        // Copy contents of the hash table
-//        for (int from = 0; from < entries.length; ++from) {
-//            Entry fromEntry = entries[from];
-//            entries[from] = null;
-//            while (fromEntry != null) {
-//                Entry nextEntry = fromEntry.next;
-//                if (fromEntry.hashcode != 0) {
-//                    // Copy non-null entries
-//                    int index = fromEntry.hashcode & andKey;
-//                    fromEntry.next = newEntries[index];
-//                    newEntries[index] = fromEntry;
-//                } else {
-//                    // skip null object entry
-//                    fromEntry.next = null;
-//                    size--;
-//                }
-//                fromEntry = nextEntry;
-//            }
-//        }
-//        entries = newEntries;
-//    }
+    private static class IdEntry extends WeakReference<Object> {
+        private final int hash;
+        private final long objectId;
 
-    /**
-     * @return the number of objects stored in the map.
-     */
-    public int size() {
-        return idCount;
+        IdEntry(Object o, int hash, long objectId, ReferenceQueue<Object> queue) {
+            super(o, queue);
+            this.hash = hash;
+            this.objectId = objectId;
+        }
     }
 
     /**
-     * @return the size of the hash table inside the map.
-     * This method is declared for debugging.
+     * Linear probing table kept at most half full, counting the tombstones left by removed entries.
      */
-    public int capacity() {
-        return capacity;
-    }
+    private static class Stripe {
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private final int minCapacity;
+        private volatile AtomicReferenceArray<IdEntry> table;
+        private int size;
+        private int tombstones;
+
+        Stripe(int capacity) {
+            this.minCapacity = capacity;
+            this.table = new AtomicReferenceArray<>(capacity);
+        }
 
-    public void close() {
+        /**
+         * @return the ID of the object, 0 when it has none yet
+         */
+        long find(Object o, int hash) {
+            AtomicReferenceArray<IdEntry> table = this.table;
+            int mask = table.length() - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                IdEntry entry = table.get(i);
+                if (entry == null) {
+                    return 0;
+                }
+                if (entry.get() == o) {
+                    return entry.objectId;
+                }
+            }
+        }
 
-    }
+        /**
+         * @return the ID of the object, negated when it was assigned by this call
+         */
+        synchronized long findOrAdd(Object o, int hash, AtomicLong nextId) {
+            expungeStaleEntries();
+            AtomicReferenceArray<IdEntry> table = this.table;
+            int mask = table.length() - 1;
+            int insertAt = -1;
+            int i = hash & mask;
+            for (IdEntry entry; (entry = table.get(i)) != null; i = (i + 1) & mask) {
+                if (entry == TOMBSTONE) {
+                    if (insertAt < 0) {
+                        insertAt = i;
+                    }
+                } else if (entry.get() == o) {
+                    return entry.objectId;
+                }
+            }
+            if (insertAt < 0) {
+                insertAt = i;
+            } else {
+                tombstones--;
+            }
+            long id = nextId.getAndIncrement();
+            table.set(insertAt, new IdEntry(o, hash, id, queue));
+            size++;
+            if ((size + tombstones) * 2 > table.length()) {
+                rehash();
+            }
+            return -id;
+        }
 
-    /**
-     * A simple list structure to store a registered object and its ID.
-     * ~ approx 20 bytes each object
-     */
-    public static class Entry implements Serializable {
-        //        private final WeakReference<Object> reference;
-        private final int hashcode;
-        private final long objectId;
-        private final WeakReference<Object> reference;
-        private final Entry next;
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Entries of collected objects are replaced by a tombstone, so the probe sequences of other entries
+         * stay intact for lookups running without the lock.
+         */
+        private void expungeStaleEntries() {
+            Reference<?> reference;
+            while ((reference = queue.poll()) != null) {
+                IdEntry stale = (IdEntry) reference;
+                AtomicReferenceArray<IdEntry> table = this.table;
+                int mask = table.length() - 1;
+                for (int i = stale.hash & mask; ; i = (i + 1) & mask) {
+                    IdEntry entry = table.get(i);
+                    if (entry == null) {
+                        // already dropped by a rehash
+                        break;
+                    }
+                    if (entry == stale) {
+                        table.set(i, TOMBSTONE);
+                        size--;
+                        tombstones++;
+                        break;
+                    }
+                }
+            }
+        }
 
-        public Entry(Object o, long id, Entry e, int hashcode) {
-            this.reference = new WeakReference<Object>(o);
-            this.objectId = id;
-            this.next = e;
-            this.hashcode = hashcode;
+        /**
+         * Copies the entries of live objects into a table a quarter full, which is smaller than the current
+         * one when most objects were collected. Lookups still reading the old table miss new objects only.
+         */
+        private void rehash() {
+            AtomicReferenceArray<IdEntry> oldTable = table;
+            int live = 0;
+            for (int i = 0; i < oldTable.length(); i++) {
+                IdEntry entry = oldTable.get(i);
+                if (entry != null && entry.get() != null) {
+                    live++;
+                }
+            }
+            int capacity = minCapacity;
+            while (capacity < live * 4 && capacity < (1 << 30)) {
+                capacity <<= 1;
+            }
+            AtomicReferenceArray<IdEntry> newTable = new AtomicReferenceArray<>(capacity);
+            int mask = capacity - 1;
+            int copied = 0;
+            for (int i = 0; i < oldTable.length(); i++) {
+                IdEntry entry = oldTable.get(i);
+                if (entry == null || entry.get() == null) {
+                    continue;
+                }
+                int index = entry.hash & mask;
+                while (newTable.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                newTable.set(index, entry);
+                copied++;
+            }
+            size = copied;
+            tombstones = 0;
+            table = newTable;
         }
     }
 
@@ -0,0 +1,107 @@
+package io.unlogged.logging.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns an ID to each distinct stack frame, so that a stack trace is recorded as an array of frame IDs.
+ * The record of a frame is passed to the AggregatedFileLogger once, when the frame is first seen, and each
+ * archive stores the frames used by its exceptions.
+ */
+public class StackFrameTable {
+
+    /**
+     * Distinct frames kept, frames seen after the table is full are not recorded.
+     */
+    public static final int MAX_FRAMES = 256 * 1024;
+    public static final int FRAME_NOT_RECORDED = -1;
+
+    private final ConcurrentHashMap<StackTraceElement, Integer> frameIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AggregatedFileLogger aggregatedLogger;
+
+    public StackFrameTable(AggregatedFileLogger aggregatedLogger) {
+        this.aggregatedLogger = aggregatedLogger;
+    }
+
+    /**
+     * Frame record: frame ID, native method flag, then class name, method name and file name each as a
+     * length and UTF-8 bytes, length -1 for a missing name, then the line number.
+     */
+    static byte[] encodeFrame(int frameId, StackTraceElement frame) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(frameId);
+        output.writeBoolean(frame.isNativeMethod());
+        writeString(output, frame.getClassName());
+        writeString(output, frame.getMethodName());
+        writeString(output, frame.getFileName());
+        output.writeInt(frame.getLineNumber());
+        return outputStream.toByteArray();
+    }
+
+    static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * The record of a new frame is written before its ID is returned to any thread, a thread asking for
+     * the same frame meanwhile waits for the write, so an exception never refers to an unwritten frame. A
+     * frame the AggregatedFileLogger did not keep gets no ID, it is offered again the next time it is seen.
+     *
+     * @return the ID of the frame, FRAME_NOT_RECORDED when the table is full or the frame was not kept
+     */
+    public int getFrameId(StackTraceElement frame) throws IOException {
+        Integer frameId = frameIds.get(frame);
+        if (frameId != null) {
+            return frameId;
+        }
+        if (frameIds.size() >= MAX_FRAMES) {
+            return FRAME_NOT_RECORDED;
+        }
+        try {
+            frameId = frameIds.computeIfAbsent(frame, this::writeFrame);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return frameId == null ? FRAME_NOT_RECORDED : frameId;
+    }
+
+    /**
+     * @return null when the frame was not kept, computeIfAbsent then leaves the frame unmapped
+     */
+    private Integer writeFrame(StackTraceElement frame) {
+        int newId = nextId.getAndIncrement();
+        try {
+            if (!aggregatedLogger.writeNewStackFrame(newId, encodeFrame(newId, frame))) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return newId;
+    }
+
+    public int[] getFrameIds(StackTraceElement[] trace) throws IOException {
+        int[] ids = new int[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            ids[i] = getFrameId(trace[i]);
+        }
+        return ids;
+    }
+
+    public int size() {
+        return frameIds.size();
+    }
+}
@@ -4,9 +4,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -14,6 +14,11 @@ import java.util.List;
  * We use an ID instead of a type name (String) because
  * Java VM may load multiple versions of the same class.
  * In other words, a number of classes may have the same type name.
+ * <p>
+ * IDs are cached in a ClassValue, so a known type costs no hash lookup and no lock, and the cache does
+ * not keep a class loader alive. The record of a type is written once, by the first thread to lock the
+ * TypeRecord of the class. The ids of its supertypes and its class location are looked up before the lock
+ * is taken, so no lock is held while another record is written or while the class loader is called.
  */
 public class TypeIdAggregatedStreamMap {
 
@@ -47,11 +52,17 @@ public class TypeIdAggregatedStreamMap {
     private static final String SEPARATOR = ",";
     private final AggregatedFileLogger aggregatedLogger;
     /**
-     * Mapping from a Class object to String type ID.
+     * Mapping from a Class object to its type ID.
      */
-    private final HashMap<Class<?>, Integer> classToIdMap;
+    private final ClassValue<TypeRecord> typeRecords = new ClassValue<TypeRecord>() {
+        @Override
+        protected TypeRecord computeValue(Class<?> type) {
+            return new TypeRecord();
+        }
+    };
     //    private final IEventLogger eventLogger;
-    private int nextId;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ThreadLocal<boolean[]> locatingClass = ThreadLocal.withInitial(() -> new boolean[1]);
 
     /**
      * Create an initial map containing only basic types.
@@ -60,7 +71,6 @@ public class TypeIdAggregatedStreamMap {
      */
     public TypeIdAggregatedStreamMap(AggregatedFileLogger aggregatedLogger) {
         this.aggregatedLogger = aggregatedLogger;
-        classToIdMap = new HashMap<>(65536);
         for (int i = 0; i < BASIC_TYPE_CLASS.length; ++i) {
             Integer id = createTypeRecord(BASIC_TYPE_CLASS[i]);
             assert i >= 10 || id.equals(i);
@@ -94,9 +104,10 @@ public class TypeIdAggregatedStreamMap {
      * Assign an ID to a type.
      *
      * @param type specifies a type to be translated into an ID.
-     * @return a String of an integer ID (to be stored in a HashMap).
+     * @return the integer ID of the type.
      */
     private int createTypeRecord(Class<?> type) {
+        TypeRecord typeRecord = typeRecords.get(type);
         // Assign type IDs to dependent classes first.
 //        System.out.println("Create type record: " + type.getCanonicalName());
         int superClass = getTypeIdString(type.getSuperclass());
@@ -110,19 +121,45 @@ public class TypeIdAggregatedStreamMap {
             interfaceClasses.add(interfaceClassId);
         }
 
-
         // Getting a class location may load other types (if a custom class loader is working with selogger)
-        String classLocation = getClassLocation(type);
+        String classLocation = typeRecord.id == TypeRecord.UNASSIGNED ? locateClass(type) : "";
+
+        synchronized (typeRecord) {
+            if (typeRecord.id != TypeRecord.UNASSIGNED) {
+                return typeRecord.id;
+            }
+            int newId = nextId.getAndIncrement();
+            writeTypeRecord(type, newId, superClass, componentType, interfaceClasses, classLocation);
+            typeRecord.id = newId;
+            return newId;
+        }
+    }
 
+    /**
+     * Types first seen by a class loader while it looks up a class location are recorded without their own
+     * location, so that a loader which records its own types does not recurse.
+     */
+    private String locateClass(Class<?> type) {
+        boolean[] locating = locatingClass.get();
+        if (locating[0]) {
+            return "";
+        }
+        locating[0] = true;
+        try {
+            return getClassLocation(type);
+        } finally {
+            locating[0] = false;
+        }
+    }
+
+    private void writeTypeRecord(Class<?> type, int newId, int superClass, int componentType,
+                                 List<Integer> interfaceClasses, String classLocation) {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         DataOutputStream record = new DataOutputStream(byteArrayOutputStream);
         String typeNameFromClass = getTypeNameFromClass(type);
         String classLoaderIdentifier = TypeIdUtil.getClassLoaderIdentifier(type.getName());
 
 
-        int newId = nextId++;
-        classToIdMap.put(type, newId);
-
         try {
             record.writeInt(newId);
             record.writeInt(typeNameFromClass.getBytes().length);
@@ -148,7 +185,6 @@ public class TypeIdAggregatedStreamMap {
         }
 
         aggregatedLogger.writeNewTypeRecord(newId, typeNameFromClass, byteArrayOutputStream.toByteArray());
-        return newId;
     }
 
     /**
@@ -162,9 +198,9 @@ public class TypeIdAggregatedStreamMap {
         if (type == null) {
             return TYPEID_NULL;
         } else {
-            if (classToIdMap.containsKey(type)) {
-//                System.out.println("Class already exists: " + type.getCanonicalName());
-                return classToIdMap.get(type);
+            int id = typeRecords.get(type).id;
+            if (id != TypeRecord.UNASSIGNED) {
+                return id;
             }
             return createTypeRecord(type);
         }
@@ -221,4 +257,15 @@ public class TypeIdAggregatedStreamMap {
         return "";
     }
 
+    /**
+     * Type ID of one class, also the lock held while its record is written.
+     */
+    private static final class TypeRecord {
+        static final int UNASSIGNED = Integer.MIN_VALUE;
+        /**
+         * Set once the record is written.
+         */
+        volatile int id = UNASSIGNED;
+    }
+
 }
@@ -0,0 +1,73 @@
+package io.unlogged.logging.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Payload encoding of serialized values with the value blob store, enabled by the valueBlobs weave
+ * parameter.
+ * <p>
+ * The payload starts with a tag byte, INLINE followed by the serialized value, or REFERENCE followed by the
+ * HASH_LENGTH bytes of the content hash of the value. The value itself is passed to
+ * AggregatedFileLogger.writeNewBlob, and the RawFileCollector writes each distinct value once into the
+ * index.blob.dat of every archive holding a log file with an event which refers to it. Values shorter
+ * than MIN_BLOB_LENGTH cost less inline than as a reference, and a value the writer could not keep is
+ * written inline as well.
+ */
+public class ValueBlobs {
+
+    public static final byte INLINE = 0;
+    public static final byte REFERENCE = 1;
+    /**
+     * Leading bytes of the SHA-256 digest of the value
+     */
+    public static final int HASH_LENGTH = 16;
+    public static final int MIN_BLOB_LENGTH = 64;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final AggregatedFileLogger aggregatedLogger;
+
+    public ValueBlobs(AggregatedFileLogger aggregatedLogger) {
+        this.aggregatedLogger = aggregatedLogger;
+    }
+
+    public static byte[] hash(byte[] value) {
+        MessageDigest digest = DIGEST.get();
+        byte[] fullHash = digest.digest(value);
+        byte[] hash = new byte[HASH_LENGTH];
+        System.arraycopy(fullHash, 0, hash, 0, HASH_LENGTH);
+        return hash;
+    }
+
+    /**
+     * @param value serialized value of an event
+     * @return the tagged payload to write in the event
+     */
+    public byte[] toEventPayload(byte[] value) {
+        if (value.length < MIN_BLOB_LENGTH) {
+            return toInlinePayload(value);
+        }
+        byte[] hash = hash(value);
+        if (!aggregatedLogger.writeNewBlob(hash, value)) {
+            return toInlinePayload(value);
+        }
+        byte[] payload = new byte[HASH_LENGTH + 1];
+        payload[0] = REFERENCE;
+        System.arraycopy(hash, 0, payload, 1, HASH_LENGTH);
+        return payload;
+    }
+
+    private static byte[] toInlinePayload(byte[] value) {
+        byte[] payload = new byte[value.length + 1];
+        payload[0] = INLINE;
+        System.arraycopy(value, 0, payload, 1, value.length);
+        return payload;
+    }
+}
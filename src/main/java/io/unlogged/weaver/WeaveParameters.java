@@ -10,6 +10,12 @@ import java.util.regex.Pattern;
 
 import io.unlogged.Runtime;
 import io.unlogged.UnloggedMode;
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.EventRecordFormat;
+import io.unlogged.logging.LogWriterMode;
+import io.unlogged.logging.Logging;
+import io.unlogged.logging.SerializationMode;
+import io.unlogged.logging.perthread.RecordingPressure;
 
 
 /**
@@ -44,6 +50,38 @@ public class WeaveParameters {
     private String weaveOption = WeaveConfig.KEY_RECORD_ALL;
     private boolean outputJson = false;
 	private UnloggedMode unloggedMode = UnloggedMode.LogAll;
+    private LogWriterMode logWriterMode = LogWriterMode.STREAM;
+    private EventRecordFormat eventRecordFormat = EventRecordFormat.FIXED;
+    /**
+     * Compress the .selog files on a worker pool before they are archived
+     */
+    private boolean compressLogs = false;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+    /**
+     * Memory budget for queued index entries, in megabytes
+     */
+    private int memoryBudgetMb = (int) (RecordingPressure.DEFAULT_MEMORY_BUDGET / (1024 * 1024));
+    /**
+     * Elements of a multi-dimensional array allocation recorded before sampling
+     */
+    private int multiArrayElementLimit = Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT;
+    /**
+     * Count events per thread and per probe for the /metrics route
+     */
+    private boolean metrics = true;
+    /**
+     * Share of the process CPU time, in percent, which recording may use before the sampling divisor is
+     * raised by the AdaptiveSamplingController, 0 to keep the divisors fixed
+     */
+    private double overheadBudgetPercent = 0;
+    /**
+     * Write serialized values once per archive into the value blob store, events refer to them by hash
+     */
+    private boolean valueBlobs = false;
+    /**
+     * Encoding of serialized values, "serialization=json" (default) or "serialization=smile"
+     */
+    private SerializationMode serializationMode = SerializationMode.JACKSON;
     /**
      * Dump woven class files (mainly for debugging)
      */
@@ -109,6 +147,35 @@ public class WeaveParameters {
                 if (bufferSize < 4) bufferSize = 4;
             } else if (arg.startsWith("weavesecuritymanager=")) {
                 weaveSecurityManagerClass = Boolean.parseBoolean(arg.substring("weavesecuritymanager=".length()));
+            } else if (arg.startsWith("compressLogs=")) {
+                compressLogs = arg.substring("compressLogs=".length()).equalsIgnoreCase("true");
+            } else if (arg.startsWith("backpressure=")) {
+                String opt = arg.substring("backpressure=".length()).toLowerCase();
+                if (opt.startsWith("sample")) {
+                    backpressurePolicy = BackpressurePolicy.SAMPLE;
+                } else if (opt.startsWith("pause")) {
+                    backpressurePolicy = BackpressurePolicy.PAUSE;
+                } else if (opt.startsWith("drop")) {
+                    backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+                }
+            } else if (arg.startsWith("memoryBudgetMb=")) {
+                memoryBudgetMb = parseMemoryBudgetMb(arg.substring("memoryBudgetMb=".length()));
+            } else if (arg.startsWith("multiArrayElementLimit=")) {
+                multiArrayElementLimit =
+                        parseMultiArrayElementLimit(arg.substring("multiArrayElementLimit=".length()));
+            } else if (arg.startsWith("metrics=")) {
+                metrics = !arg.substring("metrics=".length()).equalsIgnoreCase("false");
+            } else if (arg.startsWith("overheadBudget=")) {
+                overheadBudgetPercent = Double.parseDouble(arg.substring("overheadBudget=".length()));
+            } else if (arg.startsWith("valueBlobs=")) {
+                valueBlobs = arg.substring("valueBlobs=".length()).equalsIgnoreCase("true");
+            } else if (arg.startsWith("serialization=")) {
+                String opt = arg.substring("serialization=".length()).toLowerCase();
+                if (opt.startsWith("smile")) {
+                    serializationMode = SerializationMode.SMILE;
+                } else if (opt.startsWith("json")) {
+                    serializationMode = SerializationMode.JACKSON;
+                }
             } else if (arg.startsWith("json=")) {
                 String param = arg.substring("json=".length());
                 outputJson = param.equalsIgnoreCase("true");
@@ -148,6 +215,24 @@ public class WeaveParameters {
                 } else if (opt.startsWith("latest") || opt.startsWith("nearomni") || opt.startsWith("near-omni")) {
                     mode = Runtime.Mode.FIXED_SIZE;
                 }
+            } else if (arg.startsWith("writer=")) {
+                String opt = arg.substring("writer=".length()).toLowerCase();
+                if (opt.startsWith("ring")) {
+                    logWriterMode = LogWriterMode.RING_BUFFER;
+                } else if (opt.startsWith("shard")) {
+                    logWriterMode = LogWriterMode.SHARDED;
+                } else if (opt.startsWith("mmap")) {
+                    logWriterMode = LogWriterMode.MEMORY_MAPPED;
+                } else if (opt.startsWith("stream")) {
+                    logWriterMode = LogWriterMode.STREAM;
+                }
+            } else if (arg.startsWith("recordformat=")) {
+                String opt = arg.substring("recordformat=".length()).toLowerCase();
+                if (opt.equals("v2") || opt.startsWith("compact")) {
+                    eventRecordFormat = EventRecordFormat.COMPACT;
+                } else if (opt.equals("v1") || opt.startsWith("fixed")) {
+                    eventRecordFormat = EventRecordFormat.FIXED;
+                }
             } else if (arg.startsWith("unloggedMode=")) {
 				String stringValue = arg.substring("unloggedMode=".length());
 				if (stringValue.equals("LogAll")) {
@@ -163,6 +248,41 @@ public class WeaveParameters {
         }
     }
 
+    /**
+     * @return the budget in megabytes, the default budget when the value is not a positive number
+     */
+    static int parseMemoryBudgetMb(String value) {
+        int defaultBudgetMb = (int) (RecordingPressure.DEFAULT_MEMORY_BUDGET / (1024 * 1024));
+        try {
+            int budgetMb = Integer.parseInt(value.trim());
+            if (budgetMb > 0) {
+                return budgetMb;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("[unlogged] invalid memoryBudgetMb [" + value + "], using the default of ["
+                + defaultBudgetMb + "] MB");
+        return defaultBudgetMb;
+    }
+
+    /**
+     * @return the limit, the default limit when the value is not a number or is negative
+     */
+    static int parseMultiArrayElementLimit(String value) {
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("[unlogged] invalid multiArrayElementLimit [" + value + "], using the default of ["
+                + Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT + "]");
+        return Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT;
+    }
+
     public String getOutputDirname() {
         return output_dirname;
     }
@@ -246,4 +366,84 @@ public class WeaveParameters {
 	public void setUnloggedMode(UnloggedMode unloggedMode) {
 		this.unloggedMode = unloggedMode;
 	}
+
+    public LogWriterMode getLogWriterMode() {
+        return logWriterMode;
+    }
+
+    public void setLogWriterMode(LogWriterMode logWriterMode) {
+        this.logWriterMode = logWriterMode;
+    }
+
+    public EventRecordFormat getEventRecordFormat() {
+        return eventRecordFormat;
+    }
+
+    public void setEventRecordFormat(EventRecordFormat eventRecordFormat) {
+        this.eventRecordFormat = eventRecordFormat;
+    }
+
+    public boolean isCompressLogs() {
+        return compressLogs;
+    }
+
+    public void setCompressLogs(boolean compressLogs) {
+        this.compressLogs = compressLogs;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public int getMemoryBudgetMb() {
+        return memoryBudgetMb;
+    }
+
+    public void setMemoryBudgetMb(int memoryBudgetMb) {
+        this.memoryBudgetMb = memoryBudgetMb;
+    }
+
+    public int getMultiArrayElementLimit() {
+        return multiArrayElementLimit;
+    }
+
+    public void setMultiArrayElementLimit(int multiArrayElementLimit) {
+        this.multiArrayElementLimit = multiArrayElementLimit;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public double getOverheadBudgetPercent() {
+        return overheadBudgetPercent;
+    }
+
+    public void setOverheadBudgetPercent(double overheadBudgetPercent) {
+        this.overheadBudgetPercent = overheadBudgetPercent;
+    }
+
+    public boolean isValueBlobs() {
+        return valueBlobs;
+    }
+
+    public void setValueBlobs(boolean valueBlobs) {
+        this.valueBlobs = valueBlobs;
+    }
+
+    public SerializationMode getSerializationMode() {
+        return serializationMode;
+    }
+
+    public void setSerializationMode(SerializationMode serializationMode) {
+        this.serializationMode = serializationMode;
+    }
 }
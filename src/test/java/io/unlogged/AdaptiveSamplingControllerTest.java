@@ -0,0 +1,58 @@
+package io.unlogged;
+
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.DiscardEventLogger;
+import io.unlogged.logging.RecordingCostEventLogger;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.perthread.RecordingMetrics;
+import io.unlogged.logging.perthread.RecordingPressure;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+public class AdaptiveSamplingControllerTest {
+
+    @After
+    public void resetScale() {
+        Runtime.setSamplingDivisorScale(1);
+    }
+
+    @Test
+    public void scaleFollowsTheOverhead() throws Exception {
+        File dir = Files.createTempDirectory("unlogged-sampling").toFile();
+        RecordingMetrics recordingMetrics = new RecordingMetrics(
+                new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 1024, 64), Collections::emptyMap);
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(
+                new RecordingCostEventLogger(new DiscardEventLogger(), recordingMetrics), 0.02,
+                new SimpleFileLogger(dir));
+        Runtime.setSamplingDivisorScale(1);
+
+        // four times the budget raises the scale at once in proportion
+        controller.adjust(0.08);
+        Assertions.assertEquals(4, Runtime.getSamplingDivisorScale());
+
+        // over the budget, the scale goes up by at least one
+        controller.adjust(0.021);
+        Assertions.assertEquals(5, Runtime.getSamplingDivisorScale());
+
+        // between half the budget and the budget nothing changes
+        controller.adjust(0.015);
+        Assertions.assertEquals(5, Runtime.getSamplingDivisorScale());
+
+        // below half the budget the scale is halved, down to 1
+        controller.adjust(0.001);
+        Assertions.assertEquals(2, Runtime.getSamplingDivisorScale());
+        controller.adjust(0.001);
+        Assertions.assertEquals(1, Runtime.getSamplingDivisorScale());
+        controller.adjust(0.001);
+        Assertions.assertEquals(1, Runtime.getSamplingDivisorScale());
+
+        // the scale is capped
+        controller.adjust(10000);
+        Assertions.assertEquals(AdaptiveSamplingController.MAX_DIVISOR_SCALE, Runtime.getSamplingDivisorScale());
+    }
+}
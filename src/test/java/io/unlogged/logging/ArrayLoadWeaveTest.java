@@ -0,0 +1,150 @@
+package io.unlogged.logging;
+
+import io.unlogged.WeaveClassLoader;
+import io.unlogged.core.bytecode.RuntimeWeaverParameters;
+import io.unlogged.core.bytecode.WeaveConfig;
+import io.unlogged.core.bytecode.method.JSRInliner;
+import io.unlogged.core.bytecode.method.MethodTransformer;
+import io.unlogged.weaver.DataInfoProvider;
+import io.unlogged.weaver.WeaveLog;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.TryCatchBlockSorter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Weaves the array loads of ArrayLoadTarget, runs them and checks both the results and the recorded events.
+ */
+public class ArrayLoadWeaveTest {
+
+    private static final String TARGET = "io.unlogged.testdata.ArrayLoadTarget";
+
+    @After
+    public void restoreLogger() {
+        Logging.initialiseDiscardLogger();
+    }
+
+    @Test
+    public void wovenLoadsKeepTheirValuesAndRecordThem() throws Exception {
+        Class<?> target = weave();
+        ArrayEventCollector events = Logging.setInstance(new ArrayEventCollector());
+
+        int[] ints = {3, 5, 7};
+        Assertions.assertEquals(15, invoke(target, "sumInts", ints));
+        Assertions.assertEquals(3, events.size());
+        for (int i = 0; i < ints.length; i++) {
+            events.assertEvent(i, ints, i, ints[i]);
+        }
+
+        events.clear();
+        long[] longs = {Long.MAX_VALUE - 10, -42L};
+        Assertions.assertEquals(Long.MAX_VALUE - 9, invoke(target, "addLong", 1L, longs, 0));
+        Assertions.assertEquals(-40L, invoke(target, "addLong", 2L, longs, 1));
+        events.assertEvent(0, longs, 0, Long.MAX_VALUE - 10);
+        events.assertEvent(1, longs, 1, -42L);
+
+        events.clear();
+        double[] doubles = {1.5, -0.25};
+        Assertions.assertEquals(-1.0, invoke(target, "scaleDouble", doubles, 1, 4.0));
+        events.assertEvent(0, doubles, 1, Double.doubleToRawLongBits(-0.25));
+
+        events.clear();
+        Object[] objects = {"a", null, 7};
+        Assertions.assertEquals(7, invoke(target, "pick", objects, 2));
+        Assertions.assertNull(invoke(target, "pick", objects, 1));
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertSame(objects, events.arrays.get(0));
+        Assertions.assertEquals(7, events.objectValues.get(0));
+        Assertions.assertNull(events.objectValues.get(1));
+    }
+
+    private static Object invoke(Class<?> target, String name, Object... args) throws Exception {
+        for (Method method : target.getMethods()) {
+            if (method.getName().equals(name)) {
+                return method.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    private static Class<?> weave() throws IOException {
+        WeaveConfig config = new WeaveConfig(new RuntimeWeaverParameters("weave=ALL"));
+        DataInfoProvider dataInfoProvider = new DataInfoProvider(1, 0, 0);
+        dataInfoProvider.setProbeOutputStream(new ByteArrayOutputStream());
+        WeaveLog weaveLog = new WeaveLog(1, dataInfoProvider);
+        weaveLog.setFullClassName(TARGET.replace('.', '/'));
+        ClassReader reader = new ClassReader(TARGET);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                MethodVisitor visitor = super.visitMethod(access, name, desc, signature, exceptions);
+                if (name.startsWith("<")) {
+                    return visitor;
+                }
+                visitor = new TryCatchBlockSorter(visitor, access, name, desc, signature, exceptions);
+                MethodTransformer transformer = new MethodTransformer(weaveLog, config, "ArrayLoadTarget.java",
+                        TARGET.replace('.', '/'), null, access, name, desc, signature, exceptions, visitor);
+                return new JSRInliner(transformer, access, name, desc, signature, exceptions);
+            }
+        }, ClassReader.EXPAND_FRAMES);
+        return new WeaveClassLoader().createClass(TARGET, writer.toByteArray());
+    }
+
+    private static class ArrayEventCollector extends DiscardEventLogger {
+        private final List<Object> arrays = new ArrayList<>();
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<Long> values = new ArrayList<>();
+        private final List<Object> objectValues = new ArrayList<>();
+
+        @Override
+        public void recordArrayEvent(int dataId, Object array, int index, long value) {
+            arrays.add(array);
+            indexes.add(index);
+            values.add(value);
+            objectValues.add(null);
+        }
+
+        @Override
+        public void recordArrayEvent(int dataId, Object array, int index, Object value) {
+            arrays.add(array);
+            indexes.add(index);
+            values.add(0L);
+            objectValues.add(value);
+        }
+
+        @Override
+        public void recordArrayEvent(int dataId, Object array, int index) {
+            Assertions.fail("array load recorded without its value");
+        }
+
+        int size() {
+            return arrays.size();
+        }
+
+        void clear() {
+            arrays.clear();
+            indexes.clear();
+            values.clear();
+            objectValues.clear();
+        }
+
+        void assertEvent(int event, Object array, int index, long value) {
+            Assertions.assertSame(array, arrays.get(event));
+            Assertions.assertEquals(index, indexes.get(event));
+            Assertions.assertEquals(value, values.get(event));
+        }
+    }
+}
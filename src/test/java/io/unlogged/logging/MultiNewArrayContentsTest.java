@@ -0,0 +1,139 @@
+package io.unlogged.logging;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MultiNewArrayContentsTest {
+
+    private static final int DATA_ID = 10;
+
+    @After
+    public void restoreLogger() {
+        Logging.setMultiNewArrayElementLimit(Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT);
+        Logging.initialiseDiscardLogger();
+    }
+
+    @Test
+    public void jaggedArrayWithNullSubArraysIsRecorded() {
+        ObjectEventCollector events = Logging.setInstance(new ObjectEventCollector());
+        int[][][] array = new int[3][][];
+        array[0] = new int[][]{new int[1], null};
+        array[2] = new int[2][];
+
+        Logging.recordMultiNewArray(array, DATA_ID);
+
+        List<Object> subArrays = events.valuesOf(DATA_ID + 1);
+        List<Object> elements = events.valuesOf(DATA_ID + 2);
+        Assertions.assertSame(array, events.valuesOf(DATA_ID).get(0));
+        // the outer array, array[0] and array[2]
+        Assertions.assertEquals(3, subArrays.size());
+        Assertions.assertSame(array, subArrays.get(0));
+        Assertions.assertSame(array[0], subArrays.get(1));
+        Assertions.assertSame(array[2], subArrays.get(2));
+        // array[0] and array[2], then array[0][0], null elements are skipped
+        Assertions.assertEquals(3, elements.size());
+        Assertions.assertSame(array[0], elements.get(0));
+        Assertions.assertSame(array[2], elements.get(1));
+        Assertions.assertSame(array[0][0], elements.get(2));
+    }
+
+    @Test
+    public void elementsFollowTheArrayTheyBelongTo() {
+        ObjectEventCollector events = Logging.setInstance(new ObjectEventCollector());
+        int[][][] array = new int[2][2][2];
+
+        Logging.recordMultiNewArray(array, DATA_ID);
+
+        List<Integer> expectedDataIds = new ArrayList<>();
+        List<Object> expectedValues = new ArrayList<>();
+        expectedDataIds.add(DATA_ID);
+        expectedValues.add(array);
+        expectedDataIds.add(DATA_ID + 1);
+        expectedValues.add(array);
+        for (int[][] subArray : array) {
+            expectedDataIds.add(DATA_ID + 2);
+            expectedValues.add(subArray);
+        }
+        for (int[][] subArray : array) {
+            expectedDataIds.add(DATA_ID + 1);
+            expectedValues.add(subArray);
+            for (int[] element : subArray) {
+                expectedDataIds.add(DATA_ID + 2);
+                expectedValues.add(element);
+            }
+        }
+        Assertions.assertEquals(expectedDataIds, events.dataIds);
+        Assertions.assertEquals(expectedValues.size(), events.values.size());
+        for (int i = 0; i < expectedValues.size(); i++) {
+            Assertions.assertSame(expectedValues.get(i), events.values.get(i));
+        }
+    }
+
+    @Test
+    public void elementsPastTheLimitAreSampled() {
+        ObjectEventCollector events = Logging.setInstance(new ObjectEventCollector());
+        int[][] array = new int[3000][1];
+
+        Logging.recordMultiNewArray(array, DATA_ID);
+
+        List<Object> elements = events.valuesOf(DATA_ID + 2);
+        int limit = Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT;
+        for (int i = 0; i < limit; i++) {
+            Assertions.assertSame(array[i], elements.get(i));
+        }
+        // then one element out of every 64
+        int sampled = 0;
+        for (int index = limit; index < array.length; index += 64) {
+            Assertions.assertSame(array[index], elements.get(limit + sampled));
+            sampled++;
+        }
+        Assertions.assertEquals(limit + sampled, elements.size());
+    }
+
+    @Test
+    public void zeroLimitSamplesFromTheFirstElement() {
+        ObjectEventCollector events = Logging.setInstance(new ObjectEventCollector());
+        Logging.setMultiNewArrayElementLimit(0);
+        int[][] array = new int[200][1];
+
+        Logging.recordMultiNewArray(array, DATA_ID);
+
+        List<Object> elements = events.valuesOf(DATA_ID + 2);
+        Assertions.assertEquals(4, elements.size());
+        Assertions.assertSame(array[0], elements.get(0));
+        Assertions.assertSame(array[64], elements.get(1));
+        Assertions.assertSame(array[128], elements.get(2));
+        Assertions.assertSame(array[192], elements.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitIsRejected() {
+        Logging.setMultiNewArrayElementLimit(-1);
+    }
+
+    private static class ObjectEventCollector extends DiscardEventLogger {
+        private final List<Integer> dataIds = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+
+        @Override
+        public Object recordEvent(int dataId, Object value) {
+            dataIds.add(dataId);
+            values.add(value);
+            return value;
+        }
+
+        List<Object> valuesOf(int dataId) {
+            List<Object> matching = new ArrayList<>();
+            for (int i = 0; i < dataIds.size(); i++) {
+                if (dataIds.get(i) == dataId) {
+                    matching.add(values.get(i));
+                }
+            }
+            return matching;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.unlogged.logging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ObjectMapperFactoryTest {
+
+    @Test
+    public void smileMapperWritesSameTreeAsJson() throws Exception {
+        ObjectMapper jsonMapper = ObjectMapperFactory.createObjectMapperReactive();
+        ObjectMapper smileMapper = ObjectMapperFactory.createObjectMapperReactive(SerializationMode.SMILE);
+
+        Reading reading = new Reading();
+        for (int i = 0; i < 20; i++) {
+            reading.samples.add(new Reading());
+        }
+        byte[] json = jsonMapper.writeValueAsBytes(reading);
+        byte[] smile = smileMapper.writeValueAsBytes(reading);
+
+        // every value starts with the Smile header, readers tell it from JSON by it
+        Assertions.assertEquals(':', smile[0]);
+        Assertions.assertEquals(')', smile[1]);
+        Assertions.assertEquals(jsonMapper.readTree(json), smileMapper.readTree(smile));
+        Assertions.assertTrue(smile.length < json.length, smile.length + " >= " + json.length);
+    }
+
+    static class Reading {
+        private final long timestamp = 1700000000000L;
+        private final double x = 1.25;
+        private final double y = -3.5;
+        private final int[] counts = {1, 2, 3, 4, 5, 600000};
+        private final List<Reading> samples = new ArrayList<>();
+    }
+}
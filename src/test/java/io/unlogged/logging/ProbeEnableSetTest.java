@@ -0,0 +1,74 @@
+package io.unlogged.logging;
+
+import com.insidious.common.weaver.DataInfo;
+import com.insidious.common.weaver.Descriptor;
+import com.insidious.common.weaver.EventType;
+import com.insidious.common.weaver.MethodInfo;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class ProbeEnableSetTest {
+
+    @Test
+    public void switchProbesByMethodAndRange() throws IOException {
+        ByteArrayOutputStream weaveInfo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(weaveInfo);
+        out.writeInt(3);
+        new DataInfo(1, 10, 100, 5, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(1, 10, 101, 5, 1, EventType.METHOD_NORMAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(1, 11, 102, 9, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        out.writeInt(2);
+        new MethodInfo(1, 10, "com/example/Service", "handle", "()V", 1, "Service.java", "h1")
+                .writeToOutputStream(out);
+        new MethodInfo(1, 11, "com/example/Service", "other", "()V", 1, "Service.java", "h2")
+                .writeToOutputStream(out);
+        ProbeEnableSet.registerClass("com/example/Service", new ByteArrayInputStream(weaveInfo.toByteArray()));
+
+        Assertions.assertEquals(2, ProbeEnableSet.setEnabled("com.example.Service", "handle", false));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(100));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(101));
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(102));
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(100000));
+
+        Assertions.assertEquals(1, ProbeEnableSet.setEnabled(101, 103, false));
+        Assertions.assertEquals(3, ProbeEnableSet.setEnabled("com.example.Service", null, true));
+        Assertions.assertEquals(0, ProbeEnableSet.getDisabledCount());
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(100));
+    }
+
+    @Test
+    public void rangeIsClampedToRegisteredProbes() throws IOException {
+        ByteArrayOutputStream weaveInfo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(weaveInfo);
+        out.writeInt(1);
+        new DataInfo(2, 20, 130, 5, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        out.writeInt(1);
+        new MethodInfo(2, 20, "com/example/Wide", "handle", "()V", 1, "Wide.java", "h3")
+                .writeToOutputStream(out);
+        ProbeEnableSet.registerClass("com/example/Wide", new ByteArrayInputStream(weaveInfo.toByteArray()));
+
+        Assertions.assertEquals(131, ProbeEnableSet.setEnabled(0, Integer.MAX_VALUE, false));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(0));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(63));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(64));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(130));
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(131));
+        Assertions.assertEquals(131, ProbeEnableSet.getDisabledCount());
+
+        Assertions.assertEquals(2, ProbeEnableSet.setEnabled(63, 65, true));
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(63));
+        Assertions.assertTrue(ProbeEnableSet.isEnabled(64));
+        Assertions.assertFalse(ProbeEnableSet.isEnabled(65));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ProbeEnableSet.setEnabled(-1, 10, false));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ProbeEnableSet.setEnabled(10, 5, false));
+
+        Assertions.assertEquals(129, ProbeEnableSet.setEnabled(0, Integer.MAX_VALUE, true));
+        Assertions.assertEquals(0, ProbeEnableSet.getDisabledCount());
+    }
+}
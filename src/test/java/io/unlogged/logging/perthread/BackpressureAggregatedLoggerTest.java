@@ -0,0 +1,237 @@
+package io.unlogged.logging.perthread;
+
+import com.insidious.common.weaver.ClassInfo;
+import com.insidious.common.weaver.DataInfo;
+import com.insidious.common.weaver.Descriptor;
+import com.insidious.common.weaver.EventType;
+import com.insidious.common.weaver.LogLevel;
+import com.insidious.common.weaver.MethodInfo;
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.ProbeEnableSet;
+import io.unlogged.logging.util.AggregatedFileLogger;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BackpressureAggregatedLoggerTest {
+
+    private static final int ENTRY = 1;
+    private static final int EXIT = 2;
+    private static final int EXCEPTIONAL_EXIT = 3;
+    private static final int LINE = 4;
+
+    @Test
+    public void callStartedBeforePressureIsRecordedToItsExit() throws IOException {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.PAUSE, 1000, 64);
+        EventCollector events = new EventCollector();
+        BackpressureAggregatedLogger logger = createLogger(pressure, events);
+
+        logger.writeEvent(ENTRY, 0);
+        pressure.reserveIndexBytes(800);
+        logger.writeEvent(LINE, 0);
+        logger.writeEvent(EXIT, 0);
+
+        // a new call and the call nested in it are skipped as a whole
+        logger.writeEvent(ENTRY, 0);
+        logger.writeEvent(ENTRY, 0);
+        logger.writeEvent(LINE, 0);
+        logger.writeEvent(EXCEPTIONAL_EXIT, 0);
+        pressure.releaseIndexBytes(800);
+        logger.writeEvent(LINE, 0);
+        logger.writeEvent(EXIT, 0);
+
+        logger.writeEvent(ENTRY, 0);
+        logger.writeEvent(EXIT, 0);
+
+        Assertions.assertEquals(Arrays.asList(ENTRY, LINE, EXIT, ENTRY, EXIT), events.probeIds);
+        Assertions.assertEquals(6, pressure.getDroppedEvents());
+    }
+
+    @Test
+    public void sampledCallsKeepTheirEntryAndExitTogether() throws IOException {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.SAMPLE, 1000, 64);
+        EventCollector events = new EventCollector();
+        BackpressureAggregatedLogger logger = createLogger(pressure, events);
+        pressure.reserveIndexBytes(800);
+
+        int callCount = RecordingPressure.SAMPLE_RATE * 2;
+        for (int i = 0; i < callCount; i++) {
+            logger.writeEvent(ENTRY, i);
+            logger.writeEvent(LINE, i);
+            logger.writeEvent(EXIT, i);
+        }
+
+        Assertions.assertEquals(6, events.probeIds.size());
+        for (int i = 0; i < events.probeIds.size(); i += 3) {
+            Assertions.assertEquals(Arrays.asList(ENTRY, LINE, EXIT), events.probeIds.subList(i, i + 3));
+            Assertions.assertEquals(events.valueIds.get(i), events.valueIds.get(i + 2));
+        }
+    }
+
+    @Test
+    public void dropPolicySkipsCallsWhileFull() throws IOException {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 1000, 64);
+        EventCollector events = new EventCollector();
+        BackpressureAggregatedLogger logger = createLogger(pressure, events);
+
+        pressure.reserveIndexBytes(800);
+        logger.writeEvent(ENTRY, 0);
+        logger.writeEvent(EXIT, 0);
+        pressure.reserveIndexBytes(300);
+        logger.writeEvent(ENTRY, 1);
+        logger.writeEvent(EXIT, 1);
+        logger.writeEvent(LINE, 1);
+
+        Assertions.assertEquals(Arrays.asList(ENTRY, EXIT), events.probeIds);
+        Assertions.assertEquals(3, pressure.getDroppedEvents());
+    }
+
+    @Test
+    public void probeRangeSwitchesTheEntryAndExitOfAMethodTogether() throws IOException {
+        // outer method 40-41, inner method 42-44 and a method called from it 45-46
+        ByteArrayOutputStream weaveInfo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(weaveInfo);
+        new ClassInfo(3, "", "Nested.java", "com/example/Nested", LogLevel.Normal, "hash", "",
+                new String[0], "java/lang/Object", "").writeToOutputStream(out);
+        out.writeInt(7);
+        new DataInfo(3, 30, 40, 5, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 30, 41, 5, 1, EventType.METHOD_NORMAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 31, 42, 9, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 31, 43, 9, 1, EventType.METHOD_NORMAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 31, 44, 9, 2, EventType.METHOD_EXCEPTIONAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 32, 45, 13, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(3, 32, 46, 13, 1, EventType.METHOD_NORMAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        out.writeInt(3);
+        new MethodInfo(3, 30, "com/example/Nested", "outer", "()V", 1, "Nested.java", "h1")
+                .writeToOutputStream(out);
+        new MethodInfo(3, 31, "com/example/Nested", "inner", "()V", 1, "Nested.java", "h2")
+                .writeToOutputStream(out);
+        new MethodInfo(3, 32, "com/example/Nested", "leaf", "()V", 1, "Nested.java", "h3")
+                .writeToOutputStream(out);
+        ByteArrayInputStream in = new ByteArrayInputStream(weaveInfo.toByteArray());
+        ClassInfo classInfo = new ClassInfo();
+        classInfo.readFromDataStream(in);
+        ProbeEnableSet.registerClass(classInfo.getClassName(), in);
+
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.PAUSE, 1000, 64);
+        EventCollector events = new EventCollector();
+        BackpressureAggregatedLogger logger = new BackpressureAggregatedLogger(events, pressure);
+        logger.writeWeaveInfo(weaveInfo.toByteArray());
+
+        // the range holds the entry of the inner method only, its exits are switched off with it
+        Assertions.assertEquals(3, ProbeEnableSet.setEnabled(42, 43, false));
+        try {
+            writeEnabled(logger, 40);
+            writeEnabled(logger, 42);
+            pressure.reserveIndexBytes(800);
+            // skipped as a whole, its exit must not be taken for the one of the skipped call
+            writeEnabled(logger, 45);
+            writeEnabled(logger, 46);
+            writeEnabled(logger, 43);
+            writeEnabled(logger, 41);
+            pressure.releaseIndexBytes(800);
+        } finally {
+            Assertions.assertEquals(3, ProbeEnableSet.setEnabled(42, 43, true));
+        }
+
+        Assertions.assertEquals(Arrays.asList(40, 41), events.probeIds);
+    }
+
+    /**
+     * Write the event only when the probe is switched on, like the call sites of Logging.
+     */
+    private static void writeEnabled(BackpressureAggregatedLogger logger, int probeId) {
+        if (ProbeEnableSet.isEnabled(probeId)) {
+            logger.writeEvent(probeId, 0);
+        }
+    }
+
+    private static BackpressureAggregatedLogger createLogger(RecordingPressure pressure, EventCollector events)
+            throws IOException {
+        BackpressureAggregatedLogger logger = new BackpressureAggregatedLogger(events, pressure);
+        ByteArrayOutputStream weaveInfo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(weaveInfo);
+        new ClassInfo(1, "", "Service.java", "com/example/Service", LogLevel.Normal, "hash", "",
+                new String[0], "java/lang/Object", "").writeToOutputStream(out);
+        out.writeInt(4);
+        new DataInfo(1, 10, ENTRY, 5, 0, EventType.METHOD_ENTRY, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(1, 10, EXIT, 5, 1, EventType.METHOD_NORMAL_EXIT, Descriptor.Void, "").writeToStream(out);
+        new DataInfo(1, 10, EXCEPTIONAL_EXIT, 5, 2, EventType.METHOD_EXCEPTIONAL_EXIT, Descriptor.Void, "")
+                .writeToStream(out);
+        new DataInfo(1, 10, LINE, 6, 3, EventType.LINE_NUMBER, Descriptor.Void, "").writeToStream(out);
+        out.writeInt(0);
+        logger.writeWeaveInfo(weaveInfo.toByteArray());
+        return logger;
+    }
+
+    private static class EventCollector implements AggregatedFileLogger {
+        private final List<Integer> probeIds = new ArrayList<>();
+        private final List<Long> valueIds = new ArrayList<>();
+
+        @Override
+        public void writeNewObjectType(long id, long typeId) {
+        }
+
+        @Override
+        public void writeEvent(int id, long value) {
+            probeIds.add(id);
+            valueIds.add(value);
+        }
+
+        @Override
+        public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        }
+
+        @Override
+        public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+            return true;
+        }
+
+        @Override
+        public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        }
+
+        @Override
+        public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public void writeWeaveInfo(byte[] byteArray) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+            writeEvent(dataId, objectId);
+        }
+
+        @Override
+        public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+            writeEvent(dataId, objectId);
+        }
+
+        @Override
+        public void errorLog(String message) {
+        }
+
+        @Override
+        public void errorLog(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        @Override
+        public void modifyThreadDepth(long delta) {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.unlogged.logging.perthread;
+
+import io.unlogged.logging.util.EventIdUtil;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class EventRecordReaderTest {
+
+    @Test
+    public void readsFixedRecords() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.write(7);
+        out.writeLong(EventIdUtil.toEventId(3, 100));
+        out.writeLong(-5000);
+        out.writeInt(12);
+        out.writeLong(Long.MIN_VALUE);
+        out.writeInt(2);
+        out.write(new byte[]{9, 9});
+
+        EventRecordReader reader = new EventRecordReader(new ByteArrayInputStream(file.toByteArray()));
+        EventRecordReader.EventRecord record = reader.read();
+        Assertions.assertEquals(EventIdUtil.toEventId(3, 100), record.getEventId());
+        Assertions.assertEquals(-5000, record.getTimestamp());
+        Assertions.assertEquals(12, record.getProbeId());
+        Assertions.assertEquals(Long.MIN_VALUE, record.getValueId());
+        Assertions.assertArrayEquals(new byte[]{9, 9}, record.getSerializedValue());
+        Assertions.assertNull(reader.read());
+    }
+
+    @Test
+    public void zeroTypeByteEndsTheRecords() throws IOException {
+        File segmentFile = File.createTempFile("unclosed-segment", ".selog");
+        segmentFile.delete();
+        segmentFile.deleteOnExit();
+        MappedEventSegment segment = MappedEventSegment.open(3, Thread.currentThread(), segmentFile, 4096);
+        segment.writeEvent(EventIdUtil.toEventId(3, 0), 100, 5, 500);
+        segment.writeEvent(EventIdUtil.toEventId(3, 1), 200, 6, 600, new byte[]{1, 2});
+        // the segment is never closed, the rest of the file is the zero tail of the mapping
+
+        try (EventRecordReader reader = new EventRecordReader(new FileInputStream(segmentFile))) {
+            Assertions.assertEquals(5, reader.read().getProbeId());
+            EventRecordReader.EventRecord record = reader.read();
+            Assertions.assertEquals(6, record.getProbeId());
+            Assertions.assertArrayEquals(new byte[]{1, 2}, record.getSerializedValue());
+            Assertions.assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void readsCompactRecords() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        ThreadLogState threadLogState = new ThreadLogState(3);
+        byte[] header = new byte[CompactEventFormat.MAX_HEADER_SIZE];
+
+        int firstHeaderLength = threadLogState.encodeCompactHeader(header, file, -5000, 70000, Long.MIN_VALUE, 3);
+        file.write(header, 0, firstHeaderLength);
+        file.write(new byte[]{1, 2, 3});
+        for (int i = 0; i < 10; i++) {
+            int headerLength = threadLogState.encodeCompactHeader(header, file, 100 * i, i, i - 5, 0);
+            file.write(header, 0, headerLength);
+        }
+        // small probe ids, values and deltas take a single byte each
+        Assertions.assertTrue(file.size() - firstHeaderLength - 3 <= 10 * 7);
+
+        EventRecordReader reader = new EventRecordReader(new ByteArrayInputStream(file.toByteArray()));
+        EventRecordReader.EventRecord record = reader.read();
+        Assertions.assertEquals(EventIdUtil.toEventId(3, 0), record.getEventId());
+        Assertions.assertEquals(-5000, record.getTimestamp());
+        Assertions.assertEquals(70000, record.getProbeId());
+        Assertions.assertEquals(Long.MIN_VALUE, record.getValueId());
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, record.getSerializedValue());
+        for (int i = 0; i < 10; i++) {
+            record = reader.read();
+            Assertions.assertEquals(EventIdUtil.toEventId(3, i + 1), record.getEventId());
+            Assertions.assertEquals(100 * i, record.getTimestamp());
+            Assertions.assertEquals(i, record.getProbeId());
+            Assertions.assertEquals(i - 5, record.getValueId());
+            Assertions.assertEquals(0, record.getSerializedValue().length);
+        }
+        Assertions.assertNull(reader.read());
+    }
+}
@@ -0,0 +1,70 @@
+package io.unlogged.logging.perthread;
+
+import com.insidious.common.UploadFile;
+import io.unlogged.logging.SimpleFileLogger;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class LogFileCompressorTest {
+
+    @Test
+    public void blocksDecompressAsOneGzipStream() throws IOException {
+        byte[] original = new byte[LogFileCompressor.BLOCK_SIZE * 2 + 1000];
+        for (int i = 0; i < original.length; i++) {
+            original[i] = (byte) (i % 7 == 0 ? i : 0);
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        LogFileCompressor.compressBlocks(new ByteArrayInputStream(original), compressed, deflater,
+                new byte[LogFileCompressor.BLOCK_SIZE], new byte[LogFileCompressor.BLOCK_SIZE]);
+        deflater.end();
+        Assertions.assertTrue(compressed.size() < original.length);
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int length;
+        while ((length = in.read(buf)) > 0) {
+            decompressed.write(buf, 0, length);
+        }
+        Assertions.assertArrayEquals(original, decompressed.toByteArray());
+    }
+
+    @Test
+    public void filesWaitForRoomInAFullCollectorQueue() throws Exception {
+        File outputDir = Files.createTempDirectory("log-file-compressor").toFile();
+        BlockingQueue<UploadFile> collectorQueue = new ArrayBlockingQueue<>(1);
+        LogFileCompressor compressor = new LogFileCompressor(collectorQueue, 1, new SimpleFileLogger(outputDir));
+
+        Set<String> expectedFiles = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            File logFile = new File(outputDir, "log-" + i + ".selog");
+            Files.write(logFile.toPath(), new byte[]{1, 2, 3, (byte) i});
+            Assertions.assertTrue(compressor.getRawFileQueue().offer(new UploadFile(logFile.getPath(), i, null, null)));
+            expectedFiles.add(logFile.getPath() + LogFileCompressor.COMPRESSED_FILE_SUFFIX);
+        }
+
+        Set<String> archivedFiles = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            UploadFile compressedFile = collectorQueue.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(compressedFile);
+            archivedFiles.add(compressedFile.path);
+        }
+        compressor.shutdown();
+        Assertions.assertEquals(expectedFiles, archivedFiles);
+    }
+}
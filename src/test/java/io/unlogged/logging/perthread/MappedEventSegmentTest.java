@@ -0,0 +1,63 @@
+package io.unlogged.logging.perthread;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MappedEventSegmentTest {
+
+    @Test
+    public void closeTruncatesToTheWrittenRecords() throws IOException {
+        File segmentFile = File.createTempFile("mapped-segment", ".selog");
+        segmentFile.delete();
+        segmentFile.deleteOnExit();
+
+        MappedEventSegment segment = MappedEventSegment.open(1, Thread.currentThread(), segmentFile, 4096);
+        segment.writeEvent(1, 100, 5, 500);
+        segment.writeEvent(2, 200, 6, 600, new byte[]{1, 2, 3});
+        ByteArrayOutputStream serializedValue = new ByteArrayOutputStream();
+        serializedValue.write(new byte[]{0, 0, 0, 0});
+        segment.writeEvent(3, 300, 7, 700, serializedValue);
+        Assertions.assertEquals(4096, segmentFile.length());
+
+        int expectedLength = 3 * PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + 3 + 4;
+        Assertions.assertEquals(expectedLength, segment.close());
+        Assertions.assertTrue(segment.isClosed());
+        Assertions.assertEquals(expectedLength, segmentFile.length());
+
+        // a second close leaves the file alone
+        Assertions.assertEquals(expectedLength, segment.close());
+        Assertions.assertEquals(expectedLength, segmentFile.length());
+    }
+
+    @Test
+    public void unclosedSegmentIsRecoveredToCompleteRecords() throws IOException {
+        File segmentFile = File.createTempFile("mapped-segment", ".selog");
+        segmentFile.delete();
+        segmentFile.deleteOnExit();
+
+        MappedEventSegment segment = MappedEventSegment.open(1, Thread.currentThread(), segmentFile, 4096);
+        segment.writeEvent(1, 100, 5, 500);
+        segment.writeEvent(2, 200, 6, 600, new byte[]{1, 2, 3});
+
+        // the segment is never closed, as if the process had stopped
+        int expectedLength = 2 * PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + 3;
+        Assertions.assertEquals(4096, segmentFile.length());
+        Assertions.assertEquals(expectedLength, PerThreadMappedSegmentAggregatedLogger.recoverSegment(segmentFile));
+        Assertions.assertEquals(expectedLength, segmentFile.length());
+    }
+
+    @Test
+    public void recordWithoutTypeByteIsNotRecovered() {
+        ByteBuffer contents = ByteBuffer.allocate(200);
+        contents.put(0, (byte) 7);
+        // second record has its header written but was never committed
+        contents.putLong(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + 1, 2);
+        Assertions.assertEquals(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE,
+                MappedEventSegment.findUsedLength(contents));
+    }
+}
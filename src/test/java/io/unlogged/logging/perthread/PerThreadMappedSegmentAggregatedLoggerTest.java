@@ -0,0 +1,113 @@
+package io.unlogged.logging.perthread;
+
+import com.insidious.common.UploadFile;
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.util.FileNameGenerator;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PerThreadMappedSegmentAggregatedLoggerTest {
+
+    @Test
+    public void segmentOfIdleThreadIsShippedByTheExpiryTask() throws Exception {
+        File outputDir = Files.createTempDirectory("mapped-segment-logger").toFile();
+        SimpleFileLogger errorLogger = new SimpleFileLogger(outputDir);
+        RawFileCollector fileCollector = new RawFileCollector(1, new FileNameGenerator(outputDir, "index-", ".zip"),
+                null, errorLogger, outputDir);
+        BlockingQueue<UploadFile> shippedFiles = new ArrayBlockingQueue<>(16);
+        PerThreadMappedSegmentAggregatedLogger logger = new PerThreadMappedSegmentAggregatedLogger(
+                new FileNameGenerator(outputDir, "log-", ".selog"), errorLogger, fileCollector, shippedFiles,
+                UnloggedMode.LogAll);
+
+        CountDownLatch eventsWritten = new CountDownLatch(1);
+        CountDownLatch writeMore = new CountDownLatch(1);
+        CountDownLatch lastEventWritten = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            logger.writeEvent(1, 10);
+            logger.writeEvent(2, 20);
+            logger.writeEvent(3, 30);
+            eventsWritten.countDown();
+            try {
+                // stays alive without writing, the expiry task has to take the segment over
+                writeMore.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            logger.writeEvent(4, 40);
+            lastEventWritten.countDown();
+        });
+        writer.start();
+        eventsWritten.await();
+
+        UploadFile idleSegment = shippedFiles.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(idleSegment);
+        Assertions.assertTrue(writer.isAlive());
+        Assertions.assertEquals(3 * PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE,
+                new File(idleSegment.getPath()).length());
+
+        writeMore.countDown();
+        lastEventWritten.await();
+        logger.close();
+        UploadFile lastSegment = shippedFiles.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(lastSegment);
+        Assertions.assertNotEquals(idleSegment.getPath(), lastSegment.getPath());
+        Assertions.assertEquals(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE,
+                new File(lastSegment.getPath()).length());
+
+        // events written after close are dropped
+        logger.writeEvent(5, 50);
+        writer.join();
+        Assertions.assertNull(shippedFiles.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void leftoverSegmentIsRecoveredAndQueuedAtStartup() throws Exception {
+        File outputDir = Files.createTempDirectory("mapped-segment-logger").toFile();
+        SimpleFileLogger errorLogger = new SimpleFileLogger(outputDir);
+        FileNameGenerator fileNameGenerator = new FileNameGenerator(outputDir, "log-", ".selog");
+        // segments of a process which died, one with two records and one without any
+        File leftoverFile = fileNameGenerator.getNextFile("4");
+        MappedEventSegment leftover = MappedEventSegment.open(4, Thread.currentThread(), leftoverFile, 4096);
+        leftover.writeEvent(1, 100, 5, 500);
+        leftover.writeEvent(2, 200, 6, 600, new byte[]{1, 2, 3});
+        File emptyFile = fileNameGenerator.getNextFile("5");
+        MappedEventSegment.open(5, Thread.currentThread(), emptyFile, 4096);
+
+        RawFileCollector fileCollector = new RawFileCollector(1, new FileNameGenerator(outputDir, "index-", ".zip"),
+                null, errorLogger, outputDir);
+        BlockingQueue<UploadFile> shippedFiles = new ArrayBlockingQueue<>(16);
+        PerThreadMappedSegmentAggregatedLogger logger = new PerThreadMappedSegmentAggregatedLogger(
+                new FileNameGenerator(outputDir, "log-", ".selog"), errorLogger, fileCollector, shippedFiles,
+                UnloggedMode.LogAll);
+
+        UploadFile recovered = shippedFiles.poll();
+        Assertions.assertNotNull(recovered);
+        Assertions.assertEquals(4, recovered.getThreadId());
+        File recoveredFile = new File(recovered.getPath());
+        Assertions.assertEquals(leftoverFile.getName(), recoveredFile.getName());
+        Assertions.assertNotEquals(outputDir, recoveredFile.getParentFile());
+        Assertions.assertEquals(2 * PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE + 3,
+                recoveredFile.length());
+        Assertions.assertFalse(leftoverFile.exists());
+        Assertions.assertFalse(emptyFile.exists());
+        Assertions.assertNull(shippedFiles.poll());
+
+        // this process numbers its files from the start again, the recovered names are free
+        Thread writer = new Thread(() -> logger.writeEvent(1, 10));
+        writer.start();
+        writer.join();
+        logger.close();
+        UploadFile newSegment = shippedFiles.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(newSegment);
+        Assertions.assertEquals(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE,
+                new File(newSegment.getPath()).length());
+    }
+}
@@ -0,0 +1,142 @@
+package io.unlogged.logging.perthread;
+
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.util.FileNameGenerator;
+import io.unlogged.logging.util.ValueBlobs;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class RawFileCollectorTest {
+
+    @Test
+    public void stackFramesAreLimitedOutsideTheMemoryBudget() throws Exception {
+        File outputDir = Files.createTempDirectory("unlogged-frames").toFile();
+        // a frame record taking a sixteenth of the frame memory
+        byte[] frameRecord = new byte[(int) (RawFileCollector.STACK_FRAME_MEMORY_LIMIT / 16
+                - RecordingPressure.estimateFrameEntry(new byte[0]))];
+        RecordingPressure recordingPressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 1000, 64);
+        RawFileCollector fileCollector = new RawFileCollector(1,
+                new FileNameGenerator(outputDir, "index-", ".zip"), null, new SimpleFileLogger(outputDir),
+                outputDir, 0, recordingPressure);
+
+        for (int frameId = 0; frameId < 16; frameId++) {
+            Assertions.assertTrue(fileCollector.indexStackFrame(frameId, frameRecord));
+        }
+        Assertions.assertFalse(fileCollector.indexStackFrame(16, frameRecord));
+        Assertions.assertFalse(fileCollector.indexStackFrame(17, new byte[1]));
+
+        // the frames hold no room in the memory budget, the pipeline keeps recording
+        Assertions.assertEquals(0, recordingPressure.getPendingIndexBytes());
+        Assertions.assertEquals(2, recordingPressure.getDroppedObjects());
+        Assertions.assertFalse(recordingPressure.isFull());
+    }
+
+    @Test
+    public void valueIsArchivedWithTheLogFileReferringToIt() throws Exception {
+        File outputDir = Files.createTempDirectory("unlogged-blobs").toFile();
+        SimpleFileLogger errorLogger = new SimpleFileLogger(outputDir);
+        RecordingPressure recordingPressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST,
+                RecordingPressure.DEFAULT_MEMORY_BUDGET, 64);
+        RawFileCollector fileCollector = new RawFileCollector(1,
+                new FileNameGenerator(outputDir, "index-", ".zip"), null, errorLogger, outputDir, 0,
+                recordingPressure);
+        byte[] value = new byte[100];
+        byte[] hash = ValueBlobs.hash(value);
+        Assertions.assertTrue(fileCollector.indexBlob(hash, value));
+        long blobSize = RecordingPressure.estimateBlobEntry(hash, value);
+        Assertions.assertEquals(blobSize, recordingPressure.getPendingIndexBytes());
+
+        // the archive current at the time of the event receives another log file and is completed
+        ArchivedIndexWriter firstWriter = new ArchivedIndexWriter(new File(outputDir, "first.zip"),
+                outputDir + "/class.weave.dat", errorLogger);
+        fileCollector.archiveReferencedBlobs(firstWriter, writeLogFile(outputDir, "log-1.selog", new byte[0]));
+        firstWriter.close();
+        Assertions.assertEquals(blobSize, recordingPressure.getPendingIndexBytes());
+
+        ArchivedIndexWriter nextWriter = new ArchivedIndexWriter(new File(outputDir, "next.zip"),
+                outputDir + "/class.weave.dat", errorLogger);
+        fileCollector.archiveReferencedBlobs(nextWriter,
+                writeLogFile(outputDir, "log-2.selog", referencePayload(hash)));
+        nextWriter.close();
+        Assertions.assertEquals(0, recordingPressure.getPendingIndexBytes());
+
+        Assertions.assertEquals(0, getBlobEntrySize(new File(outputDir, "first.zip")));
+        Assertions.assertEquals(hash.length + 4 + value.length, getBlobEntrySize(new File(outputDir, "next.zip")));
+    }
+
+    @Test
+    public void valueIsKeptUntilEveryLogFileReferringToItIsArchived() throws Exception {
+        File outputDir = Files.createTempDirectory("unlogged-blobs").toFile();
+        SimpleFileLogger errorLogger = new SimpleFileLogger(outputDir);
+        RecordingPressure recordingPressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST,
+                RecordingPressure.DEFAULT_MEMORY_BUDGET, 64);
+        RawFileCollector fileCollector = new RawFileCollector(1,
+                new FileNameGenerator(outputDir, "index-", ".zip"), null, errorLogger, outputDir, 0,
+                recordingPressure);
+        byte[] value = new byte[100];
+        byte[] hash = ValueBlobs.hash(value);
+        // two events refer to the value, from log files which end up in different archives
+        Assertions.assertTrue(fileCollector.indexBlob(hash, value));
+        Assertions.assertTrue(fileCollector.indexBlob(hash, value));
+        long blobSize = RecordingPressure.estimateBlobEntry(hash, value);
+        Assertions.assertEquals(blobSize, recordingPressure.getPendingIndexBytes());
+
+        ArchivedIndexWriter firstWriter = new ArchivedIndexWriter(new File(outputDir, "first.zip"),
+                outputDir + "/class.weave.dat", errorLogger);
+        fileCollector.archiveReferencedBlobs(firstWriter,
+                writeLogFile(outputDir, "log-1.selog", referencePayload(hash)));
+        firstWriter.close();
+        Assertions.assertEquals(blobSize, recordingPressure.getPendingIndexBytes());
+
+        ArchivedIndexWriter nextWriter = new ArchivedIndexWriter(new File(outputDir, "next.zip"),
+                outputDir + "/class.weave.dat", errorLogger);
+        fileCollector.archiveReferencedBlobs(nextWriter,
+                writeLogFile(outputDir, "log-2.selog", referencePayload(hash)));
+        nextWriter.close();
+        Assertions.assertEquals(0, recordingPressure.getPendingIndexBytes());
+
+        Assertions.assertEquals(hash.length + 4 + value.length, getBlobEntrySize(new File(outputDir, "first.zip")));
+        Assertions.assertEquals(hash.length + 4 + value.length, getBlobEntrySize(new File(outputDir, "next.zip")));
+    }
+
+    private static byte[] referencePayload(byte[] hash) {
+        byte[] payload = new byte[hash.length + 1];
+        payload[0] = ValueBlobs.REFERENCE;
+        System.arraycopy(hash, 0, payload, 1, hash.length);
+        return payload;
+    }
+
+    /**
+     * A log file with a single event carrying the payload.
+     */
+    private static File writeLogFile(File outputDir, String name, byte[] payload) throws IOException {
+        File logFile = new File(outputDir, name);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile))) {
+            out.write(7);
+            out.writeLong(1);
+            out.writeLong(100);
+            out.writeInt(5);
+            out.writeLong(500);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        return logFile;
+    }
+
+    private static long getBlobEntrySize(File archiveFile) throws IOException {
+        try (ZipFile archive = new ZipFile(archiveFile)) {
+            ZipEntry blobEntry = archive.getEntry(ArchivedIndexWriter.INDEX_BLOB_DAT_FILE);
+            Assertions.assertNotNull(blobEntry);
+            return blobEntry.getSize();
+        }
+    }
+}
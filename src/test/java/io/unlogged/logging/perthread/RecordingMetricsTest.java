@@ -0,0 +1,68 @@
+package io.unlogged.logging.perthread;
+
+import io.unlogged.logging.BackpressurePolicy;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+public class RecordingMetricsTest {
+
+    @Test
+    public void countsEventsPerProbeAcrossThreads() throws InterruptedException {
+        RecordingMetrics recordingMetrics = new RecordingMetrics(
+                new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 1024, 64), Collections::emptyMap);
+
+        Thread worker = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                recordingMetrics.countEvent(i % 200, 29);
+            }
+        });
+        worker.start();
+        worker.join();
+        for (int i = 0; i < 50; i++) {
+            recordingMetrics.countEvent(7, 40);
+        }
+
+        recordingMetrics.sample();
+
+        // the worker has ended, its counts are kept in the totals
+        Assertions.assertEquals(1, recordingMetrics.getThreads().size());
+        Assertions.assertEquals(1050, recordingMetrics.getEvents());
+        Assertions.assertEquals(1000 * 29 + 50 * 40, recordingMetrics.getBytes());
+
+        Map<Integer, Long> probeEventCounts = recordingMetrics.getProbeEventCounts();
+        Assertions.assertEquals(RecordingMetrics.TOP_PROBE_COUNT, probeEventCounts.size());
+        Iterator<Map.Entry<Integer, Long>> iterator = probeEventCounts.entrySet().iterator();
+        Map.Entry<Integer, Long> top = iterator.next();
+        Assertions.assertEquals(7, top.getKey());
+        Assertions.assertEquals(55, top.getValue());
+        Assertions.assertEquals(5, iterator.next().getValue());
+    }
+
+    @Test
+    public void nestedRecordingsAreMeasuredOnce() {
+        RecordingMetrics recordingMetrics = new RecordingMetrics(
+                new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 1024, 64), Collections::emptyMap);
+        ThreadRecordingCounters counters = recordingMetrics.getCurrentThreadCounters();
+
+        int outerRecordings = ThreadRecordingCounters.RECORDING_SAMPLE_INTERVAL * 2;
+        for (int i = 0; i < outerRecordings; i++) {
+            long outerStart = counters.beginRecording();
+            long innerStart = counters.beginRecording();
+            Assertions.assertEquals(0, innerStart);
+            counters.endRecording(innerStart);
+            counters.endRecording(outerStart);
+        }
+
+        Assertions.assertEquals(outerRecordings, counters.getRecordings());
+        Assertions.assertEquals(2, counters.getTimedRecordings());
+        Assertions.assertTrue(recordingMetrics.sampleRecordingNanos() >= 0);
+        // nothing was recorded since the previous sample
+        Assertions.assertEquals(0, recordingMetrics.sampleRecordingNanos());
+        // the recordings were not counted as written events
+        Assertions.assertEquals(0, recordingMetrics.getEvents());
+    }
+}
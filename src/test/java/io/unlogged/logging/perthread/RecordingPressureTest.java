@@ -0,0 +1,67 @@
+package io.unlogged.logging.perthread;
+
+import io.unlogged.logging.BackpressurePolicy;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+public class RecordingPressureTest {
+
+    private static final long BUDGET = 1000;
+
+    @Test
+    public void dropPolicySkipsCallsOnlyWhileFull() {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST, BUDGET, 64);
+        Assertions.assertTrue(pressure.reserveIndexBytes(800));
+        Assertions.assertTrue(pressure.isUnderPressure());
+        Assertions.assertTrue(pressure.admitFrame());
+
+        Assertions.assertFalse(pressure.reserveIndexBytes(300));
+        Assertions.assertTrue(pressure.isFull());
+        Assertions.assertFalse(pressure.admitFrame());
+
+        pressure.releaseIndexBytes(100);
+        Assertions.assertFalse(pressure.isFull());
+        Assertions.assertTrue(pressure.isUnderPressure());
+        Assertions.assertTrue(pressure.admitFrame());
+    }
+
+    @Test
+    public void fileBacklogAtItsLimitIsFull() {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST, BUDGET, 64);
+        pressure.setPendingFiles(64);
+        Assertions.assertTrue(pressure.isFull());
+        Assertions.assertFalse(pressure.admitFrame());
+        pressure.setPendingFiles(10);
+        Assertions.assertFalse(pressure.isFull());
+        Assertions.assertFalse(pressure.isUnderPressure());
+        Assertions.assertTrue(pressure.admitFrame());
+    }
+
+    @Test
+    public void samplePolicyAdmitsOneCallInSampleRate() {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.SAMPLE, BUDGET, 64);
+        Assertions.assertTrue(pressure.admitFrame());
+        Assertions.assertTrue(pressure.reserveIndexBytes(800));
+
+        int admitted = 0;
+        for (int i = 0; i < RecordingPressure.SAMPLE_RATE * 4; i++) {
+            if (pressure.admitFrame()) {
+                admitted++;
+            }
+        }
+        Assertions.assertEquals(4, admitted);
+    }
+
+    @Test
+    public void pausePolicyAdmitsNothingUntilDrainedToHalf() {
+        RecordingPressure pressure = new RecordingPressure(BackpressurePolicy.PAUSE, BUDGET, 64);
+        Assertions.assertTrue(pressure.reserveIndexBytes(800));
+        Assertions.assertFalse(pressure.admitFrame());
+
+        pressure.releaseIndexBytes(200);
+        Assertions.assertFalse(pressure.admitFrame());
+        pressure.releaseIndexBytes(200);
+        Assertions.assertFalse(pressure.isUnderPressure());
+        Assertions.assertTrue(pressure.admitFrame());
+    }
+}
@@ -0,0 +1,107 @@
+package io.unlogged.logging.perthread;
+
+import com.insidious.common.UploadFile;
+import io.unlogged.UnloggedMode;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.util.EventIdUtil;
+import io.unlogged.logging.util.FileNameGenerator;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class ShardedAggregatedLoggerTest {
+
+    private static final int EVENTS_PER_THREAD = 3;
+
+    @Test
+    public void endedThreadIdsAreRecycledWithUniqueEventIds() throws Exception {
+        File outputDir = Files.createTempDirectory("sharded-logger").toFile();
+        BlockingQueue<UploadFile> shippedFiles = new ArrayBlockingQueue<>(1024);
+        ShardedAggregatedLogger logger = createLogger(outputDir, shippedFiles);
+
+        int threadCount = 200;
+        for (int i = 0; i < threadCount; i++) {
+            Thread writer = new Thread(() -> {
+                for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                    logger.writeEvent(1, j);
+                }
+            });
+            writer.start();
+            writer.join();
+            logger.recycleEndedThreadIds();
+        }
+        logger.close();
+
+        List<EventRecordReader.EventRecord> records = readRecords(shippedFiles);
+        Assertions.assertEquals(threadCount * EVENTS_PER_THREAD, records.size());
+        Set<Long> eventIds = new HashSet<>();
+        Set<Integer> threadSlots = new HashSet<>();
+        for (EventRecordReader.EventRecord record : records) {
+            Assertions.assertTrue(eventIds.add(record.getEventId()));
+            threadSlots.add(EventIdUtil.getThreadSlot(record.getEventId()));
+        }
+        // each thread ended before the next one started, so they all shared one id
+        Assertions.assertEquals(1, threadSlots.size());
+    }
+
+    @Test
+    public void fullShardFileIsRotatedWithoutLosingEvents() throws Exception {
+        File outputDir = Files.createTempDirectory("sharded-logger").toFile();
+        BlockingQueue<UploadFile> shippedFiles = new ArrayBlockingQueue<>(1024);
+        ShardedAggregatedLogger logger = createLogger(outputDir, shippedFiles);
+
+        int eventCount = PerThreadBinaryFileAggregatedLogger.MAX_EVENTS_PER_FILE + 10;
+        for (int i = 0; i < eventCount; i++) {
+            logger.writeEvent(2, i);
+        }
+        logger.close();
+        logger.writeEvent(2, -1);
+
+        List<UploadFile> files = new ArrayList<>(shippedFiles);
+        Assertions.assertTrue(files.size() >= 2);
+        for (UploadFile file : files) {
+            Assertions.assertEquals(ShardedAggregatedLogger.SHARED_FILE_THREAD_ID, file.threadId);
+        }
+        List<EventRecordReader.EventRecord> records = readRecords(shippedFiles);
+        Assertions.assertEquals(eventCount, records.size());
+        // the shard can be busy with a timed rotation, a record then goes to another shard file
+        Set<Long> valueIds = new HashSet<>();
+        for (EventRecordReader.EventRecord record : records) {
+            valueIds.add(record.getValueId());
+        }
+        Assertions.assertEquals(eventCount, valueIds.size());
+    }
+
+    private static ShardedAggregatedLogger createLogger(File outputDir, BlockingQueue<UploadFile> shippedFiles)
+            throws IOException {
+        SimpleFileLogger errorLogger = new SimpleFileLogger(outputDir);
+        RawFileCollector fileCollector = new RawFileCollector(1, new FileNameGenerator(outputDir, "index-", ".zip"),
+                null, errorLogger, outputDir);
+        return new ShardedAggregatedLogger(new FileNameGenerator(outputDir, "log-", ".selog"), errorLogger,
+                fileCollector, shippedFiles, UnloggedMode.LogAll);
+    }
+
+    private static List<EventRecordReader.EventRecord> readRecords(BlockingQueue<UploadFile> shippedFiles)
+            throws IOException {
+        List<EventRecordReader.EventRecord> records = new ArrayList<>();
+        for (UploadFile file : shippedFiles) {
+            try (EventRecordReader reader = new EventRecordReader(new FileInputStream(file.path))) {
+                EventRecordReader.EventRecord record;
+                while ((record = reader.read()) != null) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,62 @@
+package io.unlogged.logging.perthread;
+
+import io.unlogged.logging.util.EventIdUtil;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+public class ThreadEventRingBufferTest {
+
+    @Test
+    public void recordsSurviveWrapAround() throws IOException {
+        ThreadEventRingBuffer ringBuffer = new ThreadEventRingBuffer(1, Thread.currentThread(), 128);
+        ByteArrayOutputStream drained = new ByteArrayOutputStream();
+
+        // 3 records fit in 128 bytes, draining in between makes the later records wrap around the end
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(ringBuffer.writeEvent(1000 + i, 50 + i, 7000 + i));
+            Assertions.assertTrue(ringBuffer.writeEvent(2000 + i, 60 + i, 8000 + i, new byte[]{1, 2, 3}));
+            ringBuffer.drainTo(drained);
+        }
+        Assertions.assertFalse(ringBuffer.hasPendingData());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(drained.toByteArray()));
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(7, in.readByte());
+            Assertions.assertEquals(EventIdUtil.toEventId(1, 2 * i), in.readLong());
+            Assertions.assertEquals(1000 + i, in.readLong());
+            Assertions.assertEquals(50 + i, in.readInt());
+            Assertions.assertEquals(7000 + i, in.readLong());
+            Assertions.assertEquals(0, in.readInt());
+
+            Assertions.assertEquals(7, in.readByte());
+            Assertions.assertEquals(EventIdUtil.toEventId(1, 2 * i + 1), in.readLong());
+            Assertions.assertEquals(2000 + i, in.readLong());
+            Assertions.assertEquals(60 + i, in.readInt());
+            Assertions.assertEquals(8000 + i, in.readLong());
+            Assertions.assertEquals(3, in.readInt());
+            Assertions.assertEquals(1, in.readByte());
+            Assertions.assertEquals(2, in.readByte());
+            Assertions.assertEquals(3, in.readByte());
+        }
+        Assertions.assertEquals(0, in.available());
+    }
+
+    @Test
+    public void fullRingDropsInsteadOfBlocking() throws IOException {
+        ThreadEventRingBuffer ringBuffer = new ThreadEventRingBuffer(1, Thread.currentThread(), 64);
+
+        Assertions.assertTrue(ringBuffer.writeEvent(1, 1, 1));
+        Assertions.assertFalse(ringBuffer.writeEvent(2, 2, 2));
+        Assertions.assertFalse(ringBuffer.writeEvent(3, 3, 3, new byte[100]));
+        Assertions.assertEquals(2, ringBuffer.getDroppedEvents());
+
+        ByteArrayOutputStream drained = new ByteArrayOutputStream();
+        Assertions.assertEquals(PerThreadRingBufferAggregatedLogger.EVENT_RECORD_SIZE, ringBuffer.drainTo(drained));
+        Assertions.assertTrue(ringBuffer.writeEvent(4, 4, 4));
+    }
+}
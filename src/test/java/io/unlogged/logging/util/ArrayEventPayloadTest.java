@@ -0,0 +1,40 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+public class ArrayEventPayloadTest {
+
+    @Test
+    public void indexOnlyPayloadRoundTrips() {
+        for (int index : new int[]{0, 1, 255, 256, Integer.MAX_VALUE, -1}) {
+            byte[] payload = ArrayEventPayload.encode(index);
+            Assertions.assertEquals(ArrayEventPayload.INDEX_ONLY_SIZE, payload.length);
+            Assertions.assertFalse(ArrayEventPayload.hasValue(payload));
+            Assertions.assertEquals(index, ArrayEventPayload.getIndex(payload));
+        }
+    }
+
+    @Test
+    public void indexAndValuePayloadRoundTrips() {
+        long[] values = {0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 0x0102030405060708L,
+                Double.doubleToRawLongBits(-0.25), 0xff00L};
+        for (long value : values) {
+            byte[] payload = ArrayEventPayload.encode(70000, value);
+            Assertions.assertEquals(ArrayEventPayload.INDEX_VALUE_SIZE, payload.length);
+            Assertions.assertTrue(ArrayEventPayload.hasValue(payload));
+            Assertions.assertEquals(70000, ArrayEventPayload.getIndex(payload));
+            Assertions.assertEquals(value, ArrayEventPayload.getValue(payload));
+        }
+    }
+
+    @Test
+    public void encodingReusesTheBufferOfTheThread() {
+        byte[] first = ArrayEventPayload.encode(1, 2L);
+        byte[] copy = first.clone();
+        byte[] second = ArrayEventPayload.encode(3, 4L);
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(1, ArrayEventPayload.getIndex(copy));
+        Assertions.assertEquals(2L, ArrayEventPayload.getValue(copy));
+    }
+}
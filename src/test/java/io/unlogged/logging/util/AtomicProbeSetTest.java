@@ -0,0 +1,32 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.Arrays;
+
+public class AtomicProbeSetTest {
+
+    @Test
+    public void addsAndRemovesProbes() {
+        AtomicProbeSet probes = new AtomicProbeSet();
+        Assertions.assertTrue(probes.isEmpty());
+        Assertions.assertFalse(probes.contains(5));
+        Assertions.assertFalse(probes.remove(5));
+
+        probes.addAll(Arrays.asList(5, 63, 64, 100000));
+        Assertions.assertEquals(4, probes.size());
+        Assertions.assertTrue(probes.contains(5));
+        Assertions.assertTrue(probes.contains(63));
+        Assertions.assertTrue(probes.contains(64));
+        Assertions.assertTrue(probes.contains(100000));
+        Assertions.assertFalse(probes.contains(6));
+        Assertions.assertFalse(probes.contains(100001));
+        Assertions.assertFalse(probes.add(64));
+
+        Assertions.assertTrue(probes.remove(64));
+        Assertions.assertFalse(probes.contains(64));
+        Assertions.assertTrue(probes.contains(63));
+        Assertions.assertEquals(3, probes.size());
+    }
+}
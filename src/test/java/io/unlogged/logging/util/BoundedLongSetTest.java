@@ -0,0 +1,37 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+public class BoundedLongSetTest {
+
+    @Test
+    public void keepsRecentValuesWithinCapacity() {
+        BoundedLongSet set = new BoundedLongSet(1000);
+        Assertions.assertEquals(1024, set.capacity());
+        Assertions.assertFalse(set.contains(0));
+        set.add(0);
+        Assertions.assertTrue(set.contains(0));
+
+        for (long value = 1; value <= 100; value++) {
+            set.add(value);
+        }
+        for (long value = 1; value <= 100; value++) {
+            Assertions.assertTrue(set.contains(value));
+        }
+        Assertions.assertFalse(set.contains(101));
+
+        for (long value = 1; value <= 1000000; value++) {
+            set.add(value);
+            // a value just added is never the one evicted
+            Assertions.assertTrue(set.contains(value));
+        }
+        int kept = 0;
+        for (long value = 1; value <= 1000000; value++) {
+            if (set.contains(value)) {
+                kept++;
+            }
+        }
+        Assertions.assertTrue(kept <= set.capacity(), "kept " + kept);
+    }
+}
@@ -0,0 +1,79 @@
+package io.unlogged.logging.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the type, stack frame, exception and blob records written to it, and ignores events.
+ */
+class CollectingAggregatedFileLogger implements AggregatedFileLogger {
+    final Map<Integer, String> typeNames = new ConcurrentHashMap<>();
+    final List<Integer> typeIds = new CopyOnWriteArrayList<>();
+    final Map<Integer, byte[]> frameRecords = new ConcurrentHashMap<>();
+    final List<Integer> frameIds = new CopyOnWriteArrayList<>();
+    final Map<Long, byte[]> exceptionRecords = new ConcurrentHashMap<>();
+    final List<byte[]> blobs = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void writeNewObjectType(long id, long typeId) {
+    }
+
+    @Override
+    public void writeEvent(int id, long value) {
+    }
+
+    @Override
+    public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        typeIds.add(typeId);
+        typeNames.put(typeId, typeName);
+    }
+
+    @Override
+    public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+        frameIds.add(frameId);
+        frameRecords.put(frameId, frameRecord);
+        return true;
+    }
+
+    @Override
+    public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        exceptionRecords.put(objectId, exceptionRecord);
+    }
+
+    @Override
+    public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+        blobs.add(value);
+        return true;
+    }
+
+    @Override
+    public void writeWeaveInfo(byte[] byteArray) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+    }
+
+    @Override
+    public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+    }
+
+    @Override
+    public void errorLog(String message) {
+    }
+
+    @Override
+    public void errorLog(Throwable throwable) {
+    }
+
+    @Override
+    public void modifyThreadDepth(long delta) {
+    }
+}
@@ -0,0 +1,47 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.lang.ref.WeakReference;
+
+public class LiveInstanceRegistryTest {
+
+    @Test
+    public void keepsFirstInstanceUnlessProxy() {
+        LiveInstanceRegistry registry = new LiveInstanceRegistry();
+        Assertions.assertNull(registry.get("com.example.Service"));
+
+        Object first = new Object();
+        Object second = new Object();
+        WeakReference<Object> registration = registry.register("com.example.Service", first, false);
+        Assertions.assertSame(first, registration.get());
+        Assertions.assertSame(registration, registry.register("com.example.Service", second, false));
+        Assertions.assertSame(first, registry.get("com.example.Service"));
+
+        Object proxy = new Object();
+        registry.register("com.example.Service", proxy, true);
+        Assertions.assertSame(proxy, registry.get("com.example.Service"));
+        registry.register("com.example.Service", second, false);
+        Assertions.assertSame(proxy, registry.get("com.example.Service"));
+    }
+
+    @Test
+    public void replacesCollectedInstance() throws InterruptedException {
+        LiveInstanceRegistry registry = new LiveInstanceRegistry();
+        WeakReference<Object> registration = registry.register("com.example.Service", new Object(), false);
+        for (int i = 0; i < 50 && registration.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assertions.assertNull(registration.get());
+        Assertions.assertNull(registry.get("com.example.Service"));
+        Assertions.assertEquals(0, registry.size());
+
+        registry.register("com.example.Service", new Object(), false);
+        Object live = new Object();
+        registration = registry.register("com.example.Other", live, false);
+        Assertions.assertSame(live, registry.get("com.example.Other"));
+        Assertions.assertSame(live, registration.get());
+    }
+}
@@ -0,0 +1,80 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class ObjectIdAggregatedStreamTest {
+
+    private static IllegalStateException fail(int depth) {
+        if (depth > 0) {
+            return fail(depth - 1);
+        }
+        return new IllegalStateException("failed", new IllegalArgumentException());
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void recordsFullStackTracesWithSharedFrames() throws IOException {
+        CollectingAggregatedFileLogger aggregatedLogger = new CollectingAggregatedFileLogger();
+        ObjectIdAggregatedStream objectIdMap = new ObjectIdAggregatedStream(aggregatedLogger,
+                new TypeIdAggregatedStreamMap(aggregatedLogger), null);
+
+        IllegalStateException first = null;
+        long firstId = 0;
+        int framesAfterFirst = 0;
+        for (int i = 0; i < 101; i++) {
+            IllegalStateException exception = fail(5);
+            long id = objectIdMap.getId(exception);
+            if (first == null) {
+                first = exception;
+                firstId = id;
+                framesAfterFirst = aggregatedLogger.frameIds.size();
+            }
+        }
+
+        // the repeated exceptions are thrown from the same frames, which are written once
+        Assertions.assertEquals(framesAfterFirst, aggregatedLogger.frameIds.size());
+        Assertions.assertEquals(aggregatedLogger.frameRecords.size(), aggregatedLogger.frameIds.size());
+        // each exception and its cause
+        Assertions.assertEquals(202, aggregatedLogger.exceptionRecords.size());
+
+        DataInputStream record = new DataInputStream(
+                new ByteArrayInputStream(aggregatedLogger.exceptionRecords.get(firstId)));
+        Assertions.assertEquals(firstId, record.readLong());
+        Assertions.assertEquals("failed", readString(record));
+        long causeId = record.readLong();
+        Assertions.assertEquals(objectIdMap.getId(first.getCause()), causeId);
+        StackTraceElement[] trace = first.getStackTrace();
+        Assertions.assertEquals(trace.length, record.readInt());
+        for (StackTraceElement element : trace) {
+            DataInputStream frame = new DataInputStream(
+                    new ByteArrayInputStream(aggregatedLogger.frameRecords.get(record.readInt())));
+            frame.readInt();
+            Assertions.assertEquals(element.isNativeMethod(), frame.readBoolean());
+            Assertions.assertEquals(element.getClassName(), readString(frame));
+            Assertions.assertEquals(element.getMethodName(), readString(frame));
+            Assertions.assertEquals(element.getFileName(), readString(frame));
+            Assertions.assertEquals(element.getLineNumber(), frame.readInt());
+        }
+
+        DataInputStream causeRecord = new DataInputStream(
+                new ByteArrayInputStream(aggregatedLogger.exceptionRecords.get(causeId)));
+        causeRecord.readLong();
+        Assertions.assertNull(readString(causeRecord));
+        Assertions.assertEquals(0, causeRecord.readLong());
+    }
+}
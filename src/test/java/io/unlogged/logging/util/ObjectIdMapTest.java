@@ -0,0 +1,95 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ObjectIdMapTest {
+
+    @Test
+    public void assignsUniqueStableIds() throws IOException {
+        AtomicInteger newObjects = new AtomicInteger();
+        ObjectIdMap objectIdMap = new ObjectIdMap(16, null) {
+            @Override
+            protected void onNewObjectId(Object o, long id) {
+                newObjects.incrementAndGet();
+            }
+        };
+
+        Assertions.assertEquals(0, objectIdMap.getId(null));
+
+        List<Object> objects = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            Object object = new Object();
+            objects.add(object);
+            long id = objectIdMap.getId(object);
+            Assertions.assertTrue(id > 0);
+            Assertions.assertTrue(ids.add(id));
+        }
+        for (int i = 0; i < objects.size(); i++) {
+            // ids are assigned in order, and kept through the resizes
+            Assertions.assertEquals(i + 1, objectIdMap.getId(objects.get(i)));
+        }
+        Assertions.assertEquals(100000, newObjects.get());
+        Assertions.assertEquals(100000, objectIdMap.size());
+    }
+
+    @Test
+    public void sharedObjectsGetOneIdAcrossThreads() throws Exception {
+        Set<Long> newIds = ConcurrentHashMap.newKeySet();
+        ObjectIdMap objectIdMap = new ObjectIdMap(16, null) {
+            @Override
+            protected void onNewObjectId(Object o, long id) {
+                Assertions.assertTrue(newIds.add(id));
+            }
+        };
+        Object[] shared = new Object[20000];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new Object();
+        }
+
+        long[][] seen = new long[4][shared.length];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < seen.length; t++) {
+            long[] ids = seen[t];
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < shared.length; i++) {
+                    ids[i] = objectIdMap.getId(shared[i]);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int t = 1; t < seen.length; t++) {
+            Assertions.assertArrayEquals(seen[0], seen[t]);
+        }
+        Assertions.assertEquals(shared.length, newIds.size());
+    }
+
+    @Test
+    public void dropsCollectedObjects() throws Exception {
+        ObjectIdMap objectIdMap = new ObjectIdMap(16, null);
+        long lastId = 0;
+        for (int round = 0; round < 20 && (lastId < 1000000 || objectIdMap.size() >= 500000); round++) {
+            for (int i = 0; i < 100000; i++) {
+                lastId = objectIdMap.getId(new Object());
+            }
+            System.gc();
+            Thread.sleep(10);
+        }
+        // objects of the earlier rounds were collected and removed from the tables
+        Assertions.assertTrue(objectIdMap.size() < 500000, "size " + objectIdMap.size());
+    }
+}
@@ -0,0 +1,93 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+public class StackFrameTableTest {
+
+    @Test
+    public void frameIsWrittenBeforeItsIdIsReturned() throws Exception {
+        CollectingAggregatedFileLogger aggregatedLogger = new CollectingAggregatedFileLogger() {
+            @Override
+            public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+                try {
+                    // a slow writer, the other threads must not get the id meanwhile
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.writeNewStackFrame(frameId, frameRecord);
+            }
+        };
+        StackFrameTable stackFrameTable = new StackFrameTable(aggregatedLogger);
+        StackTraceElement[] trace = {
+                new StackTraceElement("a.B", "run", "B.java", 10),
+                new StackTraceElement("a.C", "call", "C.java", 20),
+                new StackTraceElement("a.D", "nativeCall", null, -2),
+        };
+
+        int[][] seen = new int[4][];
+        List<Throwable> failures = new ArrayList<>();
+        CyclicBarrier start = new CyclicBarrier(seen.length);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < seen.length; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    int[] ids = stackFrameTable.getFrameIds(trace);
+                    for (int id : ids) {
+                        Assertions.assertTrue(aggregatedLogger.frameRecords.containsKey(id));
+                    }
+                    seen[thread] = ids;
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertTrue(failures.isEmpty(), failures.toString());
+        for (int t = 1; t < seen.length; t++) {
+            Assertions.assertArrayEquals(seen[0], seen[t]);
+        }
+        // each frame is written once, with consecutive ids
+        Assertions.assertEquals(trace.length, aggregatedLogger.frameIds.size());
+        Assertions.assertEquals(trace.length, stackFrameTable.size());
+    }
+
+    @Test
+    public void frameWhichWasNotKeptGetsNoId() throws Exception {
+        boolean[] keepFrames = {false};
+        CollectingAggregatedFileLogger aggregatedLogger = new CollectingAggregatedFileLogger() {
+            @Override
+            public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+                return keepFrames[0] && super.writeNewStackFrame(frameId, frameRecord);
+            }
+        };
+        StackFrameTable stackFrameTable = new StackFrameTable(aggregatedLogger);
+        StackTraceElement frame = new StackTraceElement("a.B", "run", "B.java", 10);
+
+        Assertions.assertEquals(StackFrameTable.FRAME_NOT_RECORDED, stackFrameTable.getFrameId(frame));
+        Assertions.assertEquals(0, stackFrameTable.size());
+
+        // offered again when seen again
+        keepFrames[0] = true;
+        int frameId = stackFrameTable.getFrameId(frame);
+        Assertions.assertNotEquals(StackFrameTable.FRAME_NOT_RECORDED, frameId);
+        Assertions.assertTrue(aggregatedLogger.frameRecords.containsKey(frameId));
+        Assertions.assertEquals(frameId, stackFrameTable.getFrameId(frame));
+        Assertions.assertEquals(1, aggregatedLogger.frameIds.size());
+    }
+}
@@ -0,0 +1,122 @@
+package io.unlogged.logging.util;
+
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TypeIdAggregatedStreamMapTest {
+
+    @Test
+    public void writesOneRecordPerTypeAcrossThreads() throws Exception {
+        Map<Integer, String> typeRecords = new ConcurrentHashMap<>();
+        AtomicInteger recordCount = new AtomicInteger();
+        TypeIdAggregatedStreamMap typeToId = new TypeIdAggregatedStreamMap(new TypeRecordCollector() {
+            @Override
+            public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+                recordCount.incrementAndGet();
+                Assertions.assertNull(typeRecords.put(typeId, typeName));
+            }
+        });
+        Assertions.assertEquals(TypeIdAggregatedStreamMap.TYPEID_NULL, typeToId.getTypeIdString(null));
+        Assertions.assertEquals(TypeIdAggregatedStreamMap.TYPEID_INT, typeToId.getTypeIdString(int.class));
+        Assertions.assertEquals(TypeIdAggregatedStreamMap.TYPEID_OBJECT, typeToId.getTypeIdString(Object.class));
+
+        Class<?>[] types = {ArrayList.class, ConcurrentHashMap.class, int[][].class, String[].class,
+                Thread.class, CyclicBarrier.class, ByteArrayOutputStream.class};
+        int[][] seen = new int[4][types.length];
+        CyclicBarrier start = new CyclicBarrier(seen.length);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < seen.length; t++) {
+            int[] ids = seen[t];
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < types.length; i++) {
+                    ids[i] = typeToId.getTypeIdString(types[i]);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int t = 1; t < seen.length; t++) {
+            Assertions.assertArrayEquals(seen[0], seen[t]);
+        }
+        Assertions.assertEquals("java.util.ArrayList", typeRecords.get(seen[0][0]));
+        Assertions.assertEquals("int[][]", typeRecords.get(seen[0][2]));
+        Assertions.assertEquals("java.lang.String[]", typeRecords.get(seen[0][3]));
+        // supertypes and component types get their records too
+        Assertions.assertTrue(typeRecords.containsValue("int[]"));
+        Assertions.assertTrue(typeRecords.containsValue("java.util.AbstractList"));
+        Assertions.assertEquals(typeRecords.size(), recordCount.get());
+    }
+
+    private static class TypeRecordCollector implements AggregatedFileLogger {
+        @Override
+        public void writeNewObjectType(long id, long typeId) {
+        }
+
+        @Override
+        public void writeEvent(int id, long value) {
+        }
+
+        @Override
+        public void writeNewTypeRecord(int typeId, String typeName, byte[] toString) {
+        }
+
+        @Override
+        public boolean writeNewStackFrame(int frameId, byte[] frameRecord) {
+            return true;
+        }
+
+        @Override
+        public void writeNewException(long objectId, byte[] exceptionRecord, int[] frameIds) {
+        }
+
+        @Override
+        public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public void writeWeaveInfo(byte[] byteArray) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void writeEvent(int dataId, long objectId, byte[] toByteArray) {
+        }
+
+        @Override
+        public void writeEvent(int dataId, long objectId, ByteArrayOutputStream outputStream) {
+        }
+
+        @Override
+        public void errorLog(String message) {
+        }
+
+        @Override
+        public void errorLog(Throwable throwable) {
+        }
+
+        @Override
+        public void modifyThreadDepth(long delta) {
+        }
+    }
+}
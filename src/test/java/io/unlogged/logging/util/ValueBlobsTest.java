@@ -0,0 +1,80 @@
+package io.unlogged.logging.util;
+
+import io.unlogged.logging.BackpressurePolicy;
+import io.unlogged.logging.SimpleFileLogger;
+import io.unlogged.logging.perthread.RawFileCollector;
+import io.unlogged.logging.perthread.RecordingPressure;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class ValueBlobsTest {
+
+    @Test
+    public void referencesLargeValuesByHash() {
+        CollectingAggregatedFileLogger aggregatedLogger = new CollectingAggregatedFileLogger();
+        ValueBlobs valueBlobs = new ValueBlobs(aggregatedLogger);
+
+        byte[] small = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        byte[] smallPayload = valueBlobs.toEventPayload(small);
+        Assertions.assertEquals(ValueBlobs.INLINE, smallPayload[0]);
+        Assertions.assertArrayEquals(small, Arrays.copyOfRange(smallPayload, 1, smallPayload.length));
+        Assertions.assertTrue(aggregatedLogger.blobs.isEmpty());
+
+        StringBuilder body = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 20; i++) {
+            body.append("{\"name\":\"item-").append(i).append("\"},");
+        }
+        byte[] large = body.append("{}]}").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] largePayload = valueBlobs.toEventPayload(large);
+        byte[] samePayload = valueBlobs.toEventPayload(Arrays.copyOf(large, large.length));
+        large[large.length - 3] = '1';
+        byte[] otherPayload = valueBlobs.toEventPayload(large);
+
+        Assertions.assertEquals(ValueBlobs.HASH_LENGTH + 1, largePayload.length);
+        Assertions.assertEquals(ValueBlobs.REFERENCE, largePayload[0]);
+        Assertions.assertArrayEquals(largePayload, samePayload);
+        Assertions.assertFalse(Arrays.equals(largePayload, otherPayload));
+        // the collector, not the logger, keeps one copy of each value per archive
+        Assertions.assertEquals(3, aggregatedLogger.blobs.size());
+    }
+
+    @Test
+    public void valuesDroppedByTheCollectorAreWrittenInline() throws Exception {
+        File outputDir = Files.createTempDirectory("unlogged-blobs").toFile();
+        RecordingPressure recordingPressure = new RecordingPressure(BackpressurePolicy.DROP_NEWEST, 400, 64);
+        RawFileCollector fileCollector = new RawFileCollector(1,
+                new FileNameGenerator(outputDir, "index-", ".zip"), null, new SimpleFileLogger(outputDir),
+                outputDir, 0, recordingPressure);
+        ValueBlobs valueBlobs = new ValueBlobs(new CollectingAggregatedFileLogger() {
+            @Override
+            public boolean writeNewBlob(byte[] blobHash, byte[] value) {
+                return fileCollector.indexBlob(blobHash, value);
+            }
+        });
+
+        byte[] first = new byte[200];
+        Arrays.fill(first, (byte) 'a');
+        byte[] firstPayload = valueBlobs.toEventPayload(first);
+        Assertions.assertEquals(ValueBlobs.REFERENCE, firstPayload[0]);
+        long pendingBytes = recordingPressure.getPendingIndexBytes();
+        Assertions.assertTrue(pendingBytes > 0);
+
+        // the archive already has the value, it is not queued again
+        Assertions.assertArrayEquals(firstPayload, valueBlobs.toEventPayload(first.clone()));
+        Assertions.assertEquals(pendingBytes, recordingPressure.getPendingIndexBytes());
+
+        // a second value does not fit in the budget, the event carries it
+        byte[] second = new byte[200];
+        Arrays.fill(second, (byte) 'b');
+        byte[] secondPayload = valueBlobs.toEventPayload(second);
+        Assertions.assertEquals(ValueBlobs.INLINE, secondPayload[0]);
+        Assertions.assertArrayEquals(second, Arrays.copyOfRange(secondPayload, 1, secondPayload.length));
+        Assertions.assertEquals(1, recordingPressure.getDroppedObjects());
+        Assertions.assertEquals(pendingBytes, recordingPressure.getPendingIndexBytes());
+    }
+}
@@ -0,0 +1,28 @@
+package io.unlogged.testdata;
+
+/**
+ * Array loads of every element category, woven by ArrayLoadWeaveTest.
+ */
+public class ArrayLoadTarget {
+
+    public static int sumInts(int[] values) {
+        int sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    public static long addLong(long base, long[] values, int index) {
+        // a long below the array and the index on the operand stack
+        return base + values[index];
+    }
+
+    public static double scaleDouble(double[] values, int index, double factor) {
+        return values[index] * factor;
+    }
+
+    public static Object pick(Object[] values, int index) {
+        return values[index];
+    }
+}
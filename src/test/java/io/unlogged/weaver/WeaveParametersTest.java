@@ -0,0 +1,26 @@
+package io.unlogged.weaver;
+
+import io.unlogged.logging.Logging;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+public class WeaveParametersTest {
+
+    @Test
+    public void invalidMemoryBudgetFallsBackToTheDefault() {
+        Assertions.assertEquals(64, new WeaveParameters("memoryBudgetMb=64").getMemoryBudgetMb());
+        Assertions.assertEquals(256, new WeaveParameters("memoryBudgetMb=lots").getMemoryBudgetMb());
+        Assertions.assertEquals(256, new WeaveParameters("memoryBudgetMb=-5").getMemoryBudgetMb());
+        Assertions.assertEquals(256, new WeaveParameters("memoryBudgetMb=").getMemoryBudgetMb());
+    }
+
+    @Test
+    public void negativeMultiArrayElementLimitFallsBackToTheDefault() {
+        Assertions.assertEquals(10, new WeaveParameters("multiArrayElementLimit=10").getMultiArrayElementLimit());
+        Assertions.assertEquals(0, new WeaveParameters("multiArrayElementLimit=0").getMultiArrayElementLimit());
+        Assertions.assertEquals(Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT,
+                new WeaveParameters("multiArrayElementLimit=-1").getMultiArrayElementLimit());
+        Assertions.assertEquals(Logging.DEFAULT_MULTI_NEW_ARRAY_ELEMENT_LIMIT,
+                new WeaveParameters("multiArrayElementLimit=many").getMultiArrayElementLimit());
+    }
+}